@@ -0,0 +1,357 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import javax.media.opengl.GL2;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+
+/**
+ * Micro-benchmarks for the renderer's per-frame CPU paths.
+ *
+ * Everything runs against a headless GLRenderer and a RecordingGL (with call recording turned off), so buffer
+ * uploads land in plain direct ByteBuffers and no GPU is needed. Each benchmark is run at several instance counts,
+ * warmed up and then timed per iteration.
+ *
+ * Usage: java RendererBenchmark [name filter] [instance counts...]
+ *   e.g. java RendererBenchmark texturePacking 1000 500000
+ */
+public class RendererBenchmark
+{
+	private static final int[] DEFAULT_INSTANCE_COUNTS = {1000, 10000, 100000, 500000};
+	private static final int WARMUP_ITERATIONS   = 30;
+	private static final int MEASURED_ITERATIONS = 50;
+
+	// A 12 vertex piece of dirt, same size as the real thing
+	private static final float[] DIRT_VERTICES = {
+		0, 0,  .5f, 0,  .5f, .5f,
+		0, 0,  .5f, .5f,  0, .5f,
+		0, 0,  -.5f, 0,  -.5f, -.5f,
+		0, 0,  -.5f, -.5f,  0, -.5f
+	};
+
+	/**
+	 * A single benchmark. setUp is not timed, run is.
+	 */
+	static abstract class Benchmark
+	{
+		final String name;
+
+		Benchmark(String name)
+		{
+			this.name = name;
+		}
+
+		abstract void setUp(int instances);
+		abstract void run();
+	}
+
+	public static void main(String[] args)
+	{
+		String filter = args.length > 0 ? args[0] : "";
+		int[] instanceCounts = DEFAULT_INSTANCE_COUNTS;
+		if(args.length > 1)
+		{
+			instanceCounts = new int[args.length-1];
+			for(int i = 1; i < args.length; i++)
+			{
+				instanceCounts[i-1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.printf("%-24s %10s %14s %14s %14s%n", "benchmark", "instances", "min us/op", "median us/op", "mean us/op");
+		for(Benchmark benchmark : _benchmarks())
+		{
+			if(!benchmark.name.contains(filter)) continue;
+
+			for(int instances : instanceCounts)
+			{
+				benchmark.setUp(instances);
+				for(int i = 0; i < WARMUP_ITERATIONS; i++)
+				{
+					benchmark.run();
+				}
+
+				long[] times = new long[MEASURED_ITERATIONS];
+				for(int i = 0; i < MEASURED_ITERATIONS; i++)
+				{
+					long start = System.nanoTime();
+					benchmark.run();
+					times[i] = System.nanoTime() - start;
+				}
+				_report(benchmark.name, instances, times);
+			}
+		}
+	}
+
+	private static ArrayList<Benchmark> _benchmarks()
+	{
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		// publishInstances + _updatePositionBufferTexture: copy out and upload every instance position, as if everything moved
+		// Measured through display, the draw calls are only one per geometry
+		benchmarks.add(new Benchmark("texturePacking")
+		{
+			GLRenderer renderer;
+			GL2 gl;
+			Geometry geometry;
+
+			void setUp(int instances)
+			{
+				RecordingGL recorder = _recorder(InstancingMode.INSTANCING_TEXTURE);
+				gl = recorder.getGL();
+				renderer = _renderer(gl);
+				geometry = new Geometry();
+				geometry.vertices = DIRT_VERTICES;
+				_spawn(renderer, geometry, instances, new Random(1));
+				// Let the texture buffer grow to fit before timing anything
+				renderer.display(gl);
+			}
+
+			void run()
+			{
+				renderer.getInstances(geometry.geometryID).markAllDirty();
+				renderer.publishInstances();
+				renderer.display(gl);
+			}
+		});
+
+		// The same when only 1% of the instances, all spawned together, have moved
+		benchmarks.add(new Benchmark("texturePackingSettled")
+		{
+			GLRenderer renderer;
+			GL2 gl;
+			InstanceStore instances;
+			Random random;
+
+			void setUp(int count)
+			{
+				RecordingGL recorder = _recorder(InstancingMode.INSTANCING_TEXTURE);
+				gl = recorder.getGL();
+				renderer = _renderer(gl);
+				Geometry geometry = new Geometry();
+				geometry.vertices = DIRT_VERTICES;
+				random = new Random(1);
+				_spawn(renderer, geometry, count, random);
+				instances = renderer.getInstances(geometry.geometryID);
+				renderer.display(gl);
+			}
+
+			void run()
+			{
+				int moving = instances.size/100;
+				int start = random.nextInt(instances.size - moving);
+				for(int i = start; i < start+moving; i++)
+				{
+					instances.setPosition(i, instances.x[i], instances.y[i] - .01f);
+				}
+				renderer.publishInstances();
+				renderer.display(gl);
+			}
+		});
+
+		// _updatePositionBufferArray: upload every instance position in uniform array sized batches
+		benchmarks.add(new Benchmark("uniformBatching")
+		{
+			GLRenderer renderer;
+			GL2 gl;
+			Geometry geometry;
+
+			void setUp(int instances)
+			{
+				gl = _recorder(InstancingMode.INSTANCING_UNIFORM).getGL();
+				renderer = _renderer(gl);
+				geometry = new Geometry();
+				geometry.vertices = DIRT_VERTICES;
+				_spawn(renderer, geometry, instances, new Random(1));
+				// Get the instances in front of the renderer
+				renderer.display(gl);
+			}
+
+			void run()
+			{
+				int batchSize = renderer.getBatchSize();
+				for(int next = 0; next < geometry.num_instances; )
+				{
+					next = renderer._updatePositionBufferArray(gl, geometry.geometryID, batchSize, next);
+				}
+			}
+		});
+
+		// addGeometryInstance / removeInstanceGeometry: replace a tenth of the instances
+		benchmarks.add(new Benchmark("instanceChurn")
+		{
+			GLRenderer renderer;
+			Geometry geometry;
+			Random random;
+
+			void setUp(int instances)
+			{
+				renderer = _renderer(_recorder(InstancingMode.INSTANCING_TEXTURE).getGL());
+				geometry = new Geometry();
+				random = new Random(1);
+				_spawn(renderer, geometry, instances, random);
+			}
+
+			void run()
+			{
+				int churn = Math.max(1, geometry.num_instances/10);
+				for(int i = 0; i < churn; i++)
+				{
+					renderer.removeInstanceGeometry(geometry.geometryID, random.nextInt(geometry.num_instances));
+				}
+				for(int i = 0; i < churn; i++)
+				{
+					renderer.addGeometryInstance(random.nextFloat()*100, random.nextFloat()*50, geometry);
+				}
+			}
+		});
+
+		// removeInstances / addGeometryInstances: the same churn a batch at a time
+		benchmarks.add(new Benchmark("bulkChurn")
+		{
+			GLRenderer renderer;
+			Geometry geometry;
+			Random random;
+			BitSet removed = new BitSet();
+			float[] positions = new float[0];
+
+			void setUp(int instances)
+			{
+				renderer = _renderer(_recorder(InstancingMode.INSTANCING_TEXTURE).getGL());
+				geometry = new Geometry();
+				random = new Random(1);
+				_spawn(renderer, geometry, instances, random);
+			}
+
+			void run()
+			{
+				int churn = Math.max(1, geometry.num_instances/10);
+				removed.clear();
+				for(int i = 0; i < churn; i++)
+				{
+					removed.set(random.nextInt(geometry.num_instances));
+				}
+				renderer.removeInstances(geometry.geometryID, removed);
+
+				if(positions.length < churn*2)
+				{
+					positions = new float[churn*2];
+				}
+				for(int i = 0; i < churn; i++)
+				{
+					positions[i*2]   = random.nextFloat()*100;
+					positions[i*2+1] = random.nextFloat()*50;
+				}
+				renderer.addGeometryInstances(positions, 0, churn, geometry);
+			}
+		});
+
+		// _finalizeGeometry(gl, g, numInstances): the pseudo-instancing vertex expansion
+		benchmarks.add(new Benchmark("pseudoInstanceExpansion")
+		{
+			GLRenderer renderer;
+			GL2 gl;
+			Geometry geometry;
+			int instances;
+			int[] bufferID = new int[1];
+
+			void setUp(int instances)
+			{
+				gl = _recorder(InstancingMode.PSEUDO_INSTANCING_TEXTURE).getGL();
+				renderer = _renderer(gl);
+				geometry = new Geometry();
+				geometry.vertices = DIRT_VERTICES;
+				this.instances = instances;
+			}
+
+			void run()
+			{
+				// Every call generates a new vertex buffer, free the last one so they don't pile up
+				if(geometry.vertexBufferID != 0)
+				{
+					bufferID[0] = geometry.vertexBufferID;
+					gl.glDeleteBuffers(1, bufferID, 0);
+					geometry.vertexBufferID = 0;
+				}
+				renderer._finalizeGeometry(gl, geometry, instances);
+			}
+		});
+
+		// _queueDrawable + _drawQueue: walk a tree of drawables, 8 children per node, then draw them
+		benchmarks.add(new Benchmark("drawableTraversal")
+		{
+			GLRenderer renderer;
+			GL2 gl;
+			Drawable root;
+
+			void setUp(int instances)
+			{
+				gl = _recorder(InstancingMode.INSTANCING_TEXTURE).getGL();
+				renderer = _renderer(gl);
+				root = new Drawable();
+				root.didInit = true;
+				ArrayList<Drawable> level = new ArrayList<Drawable>();
+				level.add(root);
+				int made = 1;
+				for(int i = 0; made < instances; i++)
+				{
+					Drawable parent = level.get(i);
+					for(int c = 0; c < 8 && made < instances; c++, made++)
+					{
+						Drawable child = new Drawable();
+						child.didInit = true;
+						child.p[0] = c;
+						parent.drawables.add(child);
+						level.add(child);
+					}
+				}
+			}
+
+			void run()
+			{
+				renderer._queueDrawable(root, gl);
+				renderer._drawQueue(gl);
+			}
+		});
+
+		return benchmarks;
+	}
+
+	private static RecordingGL _recorder(InstancingMode mode)
+	{
+		RecordingGL recorder = RecordingGL.create(mode);
+		recorder.recordCalls = false;
+		return recorder;
+	}
+
+	private static GLRenderer _renderer(GL2 gl)
+	{
+		GLRenderer renderer = GLRenderer.createHeadless();
+		renderer.init(gl);
+		renderer.reshape(gl, 1800, 1000);
+		return renderer;
+	}
+
+	private static void _spawn(GLRenderer renderer, Geometry geometry, int instances, Random random)
+	{
+		for(int i = 0; i < instances; i++)
+		{
+			renderer.addGeometryInstance(random.nextFloat()*100, random.nextFloat()*50, geometry);
+		}
+		renderer.publishInstances();
+	}
+
+	private static void _report(String name, int instances, long[] times)
+	{
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for(long time : times)
+		{
+			total += time;
+		}
+		System.out.printf("%-24s %10d %14.1f %14.1f %14.1f%n", name, instances,
+				sorted[0]/1000.0, sorted[sorted.length/2]/1000.0, total/1000.0/times.length);
+	}
+}
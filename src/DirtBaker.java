@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+import poomonkeys.common.Renderer;
+
+/**
+ * DirtBaker keeps the number of dirt instances from growing without end over a long game by baking dirt that has
+ * settled into a DirtLayer and removing its instances.
+ *
+ * Only sleeping instances are baked, ones that have been at rest long enough for InstanceStore.updateSleep to put
+ * them to sleep, and only those lying on the layer or on the ground where there's none. Each tick looks at no more
+ * than budget of them, carrying on from where the last tick left off, and removes the ones it bakes in one go, so
+ * the work is spread evenly however much dirt an explosion leaves behind.
+ *
+ * Falling dirt comes to rest on top of the layer rather than passing through it. The ground, the terrain, only
+ * knows about itself, so shots and tanks still go through to the ground under the layer, which is never more than
+ * the baked dirt deep. An explosion loosens the baked dirt around it back into instances, see exploded, so nothing
+ * is left floating over the crater.
+ *
+ * Runs on the simulation side, after the renderer in the tick so it sees the instances that just went to sleep.
+ */
+public class DirtBaker implements Tickable
+{
+	// Sleeping instances looked at per tick
+	public static final int DEFAULT_BUDGET = InstanceStore.DIRTY_BLOCK_SIZE;
+	// Area of the terrain one piece of dirt makes up once baked
+	public static final float DEFAULT_DIRT_AREA = .04f;
+
+	private final InstanceRenderer renderer;
+	private final Geometry dirt;
+	public final DirtLayer layer;
+	// What the dirt lies on where the layer is empty
+	private final Drawable ground;
+	// The top of the ground under each column, measured at the start of each tick
+	private final float[] groundTop;
+
+	private volatile int budget = DEFAULT_BUDGET;
+	private final float dirtArea;
+	// How far above the top of a column dirt can be and still be lying on it
+	private final float reach;
+
+	// Sleeping instances are looked at counting down from here
+	private int cursor = 0;
+	// The instances being baked this tick, and the column and height each goes to
+	private int[] baking = new int[DEFAULT_BUDGET];
+	private int[] columns = new int[DEFAULT_BUDGET];
+	private float[] heights = new float[DEFAULT_BUDGET];
+	private long baked = 0;
+	// x, y and radius of the explosions since the last tick, guarded by itself
+	private final ArrayList<float[]> explosions = new ArrayList<float[]>();
+
+	/**
+	 * Bake instances of dirt lying on ground into layer
+	 */
+	public DirtBaker(InstanceRenderer renderer, Geometry dirt, DirtLayer layer, Drawable ground)
+	{
+		this(renderer, dirt, layer, ground, DEFAULT_DIRT_AREA);
+	}
+
+	public DirtBaker(InstanceRenderer renderer, Geometry dirt, DirtLayer layer, Drawable ground, float dirtArea)
+	{
+		this.renderer = renderer;
+		this.dirt     = dirt;
+		this.layer    = layer;
+		this.ground   = ground;
+		this.dirtArea = dirtArea;
+		reach = (float)Math.sqrt(dirtArea) * 2;
+		groundTop = new float[layer.getColumns()];
+	}
+
+	/**
+	 * Most sleeping instances to look at each tick, 0 to stop baking
+	 */
+	public void setBudget(int budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * Instances baked so far
+	 */
+	public synchronized long getBaked()
+	{
+		return baked;
+	}
+
+	/**
+	 * An explosion at x, y: the baked dirt within radius is loosened at the start of the next tick, to fall into the
+	 * crater. Doesn't wait on anything, so it's safe to call from wherever the explosion happens.
+	 */
+	public void exploded(float x, float y, float radius)
+	{
+		synchronized(explosions)
+		{
+			explosions.add(new float[] {x, y, radius});
+		}
+	}
+
+	@Override
+	public synchronized void tick(long tick, long tickNanos)
+	{
+		_loosenExploded();
+
+		int budget = this.budget;
+		if(budget <= 0) return;
+		_measureGround();
+
+		if(baking.length < budget)
+		{
+			baking  = new int[budget];
+			columns = new int[budget];
+			heights = new float[budget];
+		}
+
+		int count = 0;
+		synchronized(renderer.getInstanceLock())
+		{
+			int g = renderer.getGeometryID(dirt);
+			if(g == -1) return;
+			InstanceStore instances = renderer.getInstances(g);
+			_restOnLayer(instances);
+			int sleeping = instances.sleeping;
+			if(sleeping == 0) return;
+
+			if(cursor > sleeping) cursor = sleeping;
+			for(int looked = 0; looked < budget && looked < sleeping; looked++)
+			{
+				cursor = cursor > 0 ? cursor-1 : sleeping-1;
+				int i = cursor;
+				int c = layer.columnAt(instances.x[i]);
+				if(c == -1 || !_lyingOn(c, instances.y[i])) continue;
+
+				baking[count]  = i;
+				columns[count] = c;
+				heights[count] = instances.y[i];
+				count++;
+			}
+			if(count == 0) return;
+
+			// Sorted for removeInstances, the columns they go to are already noted
+			Arrays.sort(baking, 0, count);
+			renderer.removeInstances(g, baking, count);
+		}
+
+		synchronized(Renderer.drawableLock)
+		{
+			for(int n = 0; n < count; n++)
+			{
+				layer.add(columns[n], heights[n], dirtArea);
+			}
+		}
+		baked += count;
+	}
+
+	/**
+	 * Whether dirt at rest at height y in column c is lying on the layer, or on the ground where the column is empty
+	 */
+	private boolean _lyingOn(int c, float y)
+	{
+		if(layer.isEmpty(c)) return Math.abs(y - groundTop[c]) <= reach;
+		return y >= layer.getBase(c) - reach && y <= layer.getTop(c) + reach;
+	}
+
+	/**
+	 * Stop awake dirt falling into a column of baked dirt at the top of it, the layer is part of the ground for dirt
+	 */
+	private void _restOnLayer(InstanceStore instances)
+	{
+		for(int i = instances.sleeping; i < instances.size; i++)
+		{
+			int c = layer.columnAt(instances.x[i]);
+			if(c == -1 || layer.isEmpty(c) || instances.vy[i] > 0) continue;
+
+			float top = layer.getTop(c);
+			if(instances.y[i] >= top || instances.y[i] < layer.getBase(c) - reach) continue;
+
+			instances.vy[i] = 0;
+			instances.setPosition(i, instances.x[i], top);
+		}
+	}
+
+	/**
+	 * Find the top of the ground under each column from the x, y, z vertices of its geometry. Columns between
+	 * vertices are filled in along the line between the nearest ones either side.
+	 */
+	private void _measureGround()
+	{
+		Arrays.fill(groundTop, Float.NaN);
+		synchronized(Renderer.drawableLock)
+		{
+			float[] v = ground.geometry != null ? ground.geometry.vertices : ground.vertices;
+			if(v == null) return;
+			for(int i = 0; i+1 < v.length; i += 3)
+			{
+				int c = layer.columnAt(ground.p[0] + v[i]);
+				if(c == -1) continue;
+				float y = ground.p[1] + v[i+1];
+				if(Float.isNaN(groundTop[c]) || y > groundTop[c])
+				{
+					groundTop[c] = y;
+				}
+			}
+		}
+
+		int last = -1;
+		for(int c = 0; c < groundTop.length; c++)
+		{
+			if(Float.isNaN(groundTop[c])) continue;
+			if(last == -1)
+			{
+				Arrays.fill(groundTop, 0, c, groundTop[c]);
+			}
+			for(int between = last+1; last != -1 && between < c; between++)
+			{
+				groundTop[between] = groundTop[last] + (groundTop[c] - groundTop[last]) * (between - last) / (c - last);
+			}
+			last = c;
+		}
+		if(last != -1)
+		{
+			Arrays.fill(groundTop, last+1, groundTop.length, groundTop[last]);
+		}
+	}
+
+	private void _loosenExploded()
+	{
+		float[][] exploded;
+		synchronized(explosions)
+		{
+			if(explosions.isEmpty()) return;
+			exploded = explosions.toArray(new float[explosions.size()][]);
+			explosions.clear();
+		}
+		for(float[] e : exploded)
+		{
+			loosen(e[0], e[1], e[2]);
+		}
+	}
+
+	/**
+	 * Turn the baked dirt within radius of x, y back into instances
+	 *
+	 * @return the number of instances made
+	 */
+	public synchronized int loosen(float x, float y, float radius)
+	{
+		int first = Math.max(0, layer.columnAt(Math.max(0, x - radius)));
+		int last  = layer.columnAt(x + radius);
+		if(last == -1) last = layer.getColumns()-1;
+
+		float[] positions = new float[0];
+		int count = 0;
+		synchronized(Renderer.drawableLock)
+		{
+			for(int c = first; c <= last; c++)
+			{
+				if(layer.isEmpty(c) || layer.getTop(c) < y - radius || layer.getBase(c) > y + radius) continue;
+
+				float bottom = layer.getBase(c);
+				float top    = layer.getTop(c);
+				int pieces = Math.round(layer.take(c) / dirtArea);
+				if(pieces == 0) continue;
+
+				// Stacked up the middle of the column, from where it was baked to the top
+				positions = Arrays.copyOf(positions, (count + pieces)*2);
+				float left = c * layer.columnWidth;
+				for(int p = 0; p < pieces; p++, count++)
+				{
+					positions[count*2]   = left + layer.columnWidth * (p % 2 == 0 ? .25f : .75f);
+					positions[count*2+1] = bottom + (top - bottom) * (p + .5f) / pieces;
+				}
+			}
+		}
+		if(count > 0)
+		{
+			renderer.addGeometryInstances(positions, 0, count, dirt);
+		}
+		return count;
+	}
+}
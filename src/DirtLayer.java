@@ -0,0 +1,132 @@
+import javax.media.opengl.GL;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+
+/**
+ * DirtLayer is the dirt DirtBaker has taken out of the instances, drawn as a strip of narrow columns across the view.
+ * Each column is a single quad from where its dirt came to rest up by however deep the dirt baked into it is.
+ *
+ * The vertices are in view coordinates and are rewritten in place, under drawableLock, for just the columns that
+ * change. The whole strip is allocated up front, so it never changes size and the renderer only re-uploads the
+ * chunks that changed, see VertexChunks.
+ */
+public class DirtLayer extends Drawable
+{
+	// A few pieces of dirt across
+	public static final float DEFAULT_COLUMN_WIDTH = .25f;
+	// Two triangles of x, y, z vertices per column, z is always 0
+	private static final int COLUMN_FLOATS = 18;
+
+	public final float columnWidth;
+	// Per column: the bottom of its dirt and how deep it is, 0 for none
+	private final float[] base;
+	private final float[] depth;
+
+	public DirtLayer(float width)
+	{
+		this(width, DEFAULT_COLUMN_WIDTH);
+	}
+
+	public DirtLayer(float width, float columnWidth)
+	{
+		this.columnWidth = columnWidth;
+		int columns = (int)Math.ceil(width / columnWidth);
+		base  = new float[columns];
+		depth = new float[columns];
+
+		geometry = new Geometry()
+		{
+			@Override
+			public void buildGeometry(float viewWidth, float viewHeight)
+			{
+				for(int c = 0; c < base.length; c++)
+				{
+					_column(c);
+				}
+			}
+
+			@Override
+			public int getNumPoints()
+			{
+				return vertices.length / 3;
+			}
+		};
+		geometry.drawMode = GL.GL_TRIANGLES;
+		geometry.vertices = new float[columns*COLUMN_FLOATS];
+		geometry.buildGeometry(width, 0);
+	}
+
+	public int getColumns()
+	{
+		return base.length;
+	}
+
+	/**
+	 * The column under x, -1 if x is off either end
+	 */
+	public int columnAt(float x)
+	{
+		if(x < 0) return -1;
+		int c = (int)(x / columnWidth);
+		return c < base.length ? c : -1;
+	}
+
+	public boolean isEmpty(int c)
+	{
+		return depth[c] == 0;
+	}
+
+	public float getBase(int c)
+	{
+		return base[c];
+	}
+
+	public float getTop(int c)
+	{
+		return base[c] + depth[c];
+	}
+
+	/**
+	 * Pile area's worth of dirt onto column c, starting at y if the column is empty. Call under drawableLock.
+	 */
+	public void add(int c, float y, float area)
+	{
+		if(depth[c] == 0)
+		{
+			base[c] = y;
+		}
+		depth[c] += area / columnWidth;
+		_column(c);
+		geometry.hasChanged = true;
+	}
+
+	/**
+	 * Empty column c. Call under drawableLock.
+	 *
+	 * @return the area of dirt that was in it
+	 */
+	public float take(int c)
+	{
+		float area = depth[c] * columnWidth;
+		depth[c] = 0;
+		_column(c);
+		geometry.hasChanged = true;
+		return area;
+	}
+
+	private void _column(int c)
+	{
+		float[] v = geometry.vertices;
+		float left   = c * columnWidth;
+		float right  = left + columnWidth;
+		float bottom = base[c];
+		float top    = base[c] + depth[c];
+		int i = c*COLUMN_FLOATS;
+		v[i++] = left;  v[i++] = bottom; v[i++] = 0;
+		v[i++] = right; v[i++] = bottom; v[i++] = 0;
+		v[i++] = right; v[i++] = top;    v[i++] = 0;
+		v[i++] = left;  v[i++] = bottom; v[i++] = 0;
+		v[i++] = right; v[i++] = top;    v[i++] = 0;
+		v[i++] = left;  v[i++] = top;    v[i++] = 0;
+	}
+}
@@ -0,0 +1,49 @@
+import poomonkeys.common.GameEngine;
+import poomonkeys.common.Terrain;
+
+/**
+ * DirtTerrain is a Terrain that tells the dirt around an explosion about it: sleeping dirt nearby is woken for the
+ * blast to throw around, and the DirtBaker, if there is one, loosens the baked dirt over the crater.
+ *
+ * Every explosion goes through explodeCircle, a test click as well as a shot landing inside PhysicsController.
+ */
+public class DirtTerrain extends Terrain
+{
+	// Dirt this many explosion radii away is disturbed, by the explosion and the push that comes with it
+	public static final float BLAST_RADII = 3;
+
+	private final InstanceRenderer renderer;
+	private volatile DirtBaker baker = null;
+
+	public DirtTerrain(GameEngine engine, InstanceRenderer renderer)
+	{
+		super(engine, renderer);
+		this.renderer = renderer;
+	}
+
+	/**
+	 * Loosen baked dirt with baker from now on, null for none
+	 */
+	public void setBaker(DirtBaker baker)
+	{
+		this.baker = baker;
+	}
+
+	/**
+	 * x and y are from the terrain's position, like the Terrain's own
+	 */
+	@Override
+	public void explodeCircle(float x, float y, float radius)
+	{
+		float viewX = x + p[0];
+		float viewY = y + p[1];
+		float blast = radius * BLAST_RADII;
+		renderer.wakeInstances(viewX, viewY, blast);
+		DirtBaker baker = this.baker;
+		if(baker != null)
+		{
+			baker.exploded(viewX, viewY, blast);
+		}
+		super.explodeCircle(x, y, radius);
+	}
+}
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+
+/**
+ * DrawableBounds keeps a bounding circle for each Drawable and the subtree under it, so the renderer can skip
+ * drawables that are entirely off screen without visiting their children.
+ *
+ * A drawable's own circle is centered on its origin and covers its vertices and its geometry's. It is cached until
+ * the drawable's vertex arrays are replaced (or invalidate is called for drawables that change them in place).
+ * Subtree circles depend on where the children are, so they are worked out again each frame, but only once per
+ * drawable however many times they're asked for. Render thread only, under drawableLock.
+ */
+public class DrawableBounds
+{
+	private static final float SQRT_2 = (float)Math.sqrt(2);
+
+	private static class Entry
+	{
+		// The arrays the own radius was measured from
+		float[] vertices, geometryVertices;
+		float radius;
+		boolean measured = false;
+
+		// Subtree radius and number of drawables in the subtree, as of frame
+		float subtreeRadius;
+		int subtreeSize;
+		long frame = -1;
+	}
+
+	// Weak so drawables that are dropped from the scene don't need to be removed
+	private final WeakHashMap<Drawable, Entry> entries = new WeakHashMap<Drawable, Entry>();
+	private long frame = 0;
+	// Whether each drawable's rotation and scale are applied when drawing
+	private final boolean transformed;
+
+	/**
+	 * @param transformed true if drawables are drawn rotated and scaled, false if only translated
+	 */
+	public DrawableBounds(boolean transformed)
+	{
+		this.transformed = transformed;
+	}
+
+	/**
+	 * Start a new frame, subtree bounds are worked out again
+	 */
+	public void beginFrame()
+	{
+		frame++;
+	}
+
+	/**
+	 * Forget a drawable's own bounds, for drawables that change their vertices without replacing the arrays
+	 */
+	public void invalidate(Drawable d)
+	{
+		Entry entry = entries.get(d);
+		if(entry != null)
+		{
+			entry.measured = false;
+			entry.frame = -1;
+		}
+	}
+
+	/**
+	 * Radius around the drawable's position, in its parent's space, of a circle holding it and everything under it.
+	 * Infinite if anything in the subtree hasn't been initialized, since its vertices aren't known yet.
+	 */
+	public float getSubtreeRadius(Drawable d)
+	{
+		return _subtree(d).subtreeRadius;
+	}
+
+	/**
+	 * Number of drawables in the subtree, including d
+	 */
+	public int getSubtreeSize(Drawable d)
+	{
+		return _subtree(d).subtreeSize;
+	}
+
+	private Entry _subtree(Drawable d)
+	{
+		Entry entry = _entry(d);
+		if(entry.frame == frame) return entry;
+
+		float radius = _radius(d, entry);
+		int size = 1;
+		ArrayList<Drawable> children = d.drawables;
+		for(int i = 0; i < children.size(); i++)
+		{
+			Drawable child = children.get(i);
+			if(child.removeFromGLEngine) continue;
+
+			Entry childEntry = _subtree(child);
+			float distance = (float)Math.sqrt(child.p[0]*child.p[0] + child.p[1]*child.p[1]);
+			radius = Math.max(radius, distance + childEntry.subtreeRadius);
+			size  += childEntry.subtreeSize;
+		}
+		if(transformed)
+		{
+			radius *= Math.max(Math.abs(d.scale.x), Math.abs(d.scale.y));
+		}
+
+		entry.subtreeRadius = radius;
+		entry.subtreeSize   = size;
+		entry.frame = frame;
+		return entry;
+	}
+
+	/**
+	 * The drawable's own radius, measured again if its vertex arrays have been replaced
+	 */
+	private float _radius(Drawable d, Entry entry)
+	{
+		if(!d.didInit) return Float.POSITIVE_INFINITY;
+
+		Geometry geometry = d.geometry;
+		float[] geometryVertices = geometry == null ? null : geometry.vertices;
+		if(!entry.measured || entry.vertices != d.vertices || entry.geometryVertices != geometryVertices)
+		{
+			entry.vertices         = d.vertices;
+			entry.geometryVertices = geometryVertices;
+			entry.radius   = Math.max(_radius(d.vertices), _radius(geometryVertices));
+			entry.measured = true;
+		}
+		return entry.radius;
+	}
+
+	/**
+	 * Radius of a circle around the origin holding every vertex. Vertices can be 2 or 3 floats each, so this goes by
+	 * the largest coordinate, which is never less than the real radius.
+	 */
+	private static float _radius(float[] vertices)
+	{
+		if(vertices == null) return 0;
+
+		float max = 0;
+		for(int v = 0; v < vertices.length; v++)
+		{
+			max = Math.max(max, Math.abs(vertices[v]));
+		}
+		return max * SQRT_2;
+	}
+
+	private Entry _entry(Drawable d)
+	{
+		Entry entry = entries.get(d);
+		if(entry == null)
+		{
+			entry = new Entry();
+			entries.put(d, entry);
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,47 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one rendered frame, spanning the whole of GLRenderer.display.
+ * Lines up with the GC and safepoint events in the same recording to tell what a long frame was waiting on.
+ */
+@Name("poomonkeys.Frame")
+@Label("Frame")
+@Category({"PooMonkeys", "Renderer"})
+@Description("One frame drawn by GLRenderer, broken down by phase")
+@StackTrace(false)
+public class FrameEvent extends jdk.jfr.Event
+{
+	@Label("Drawables") @Timespan
+	long drawablesNanos;
+	@Label("Position Packing") @Timespan
+	long packingNanos;
+	@Label("Instanced Draw") @Timespan
+	long instancedDrawNanos;
+	@Label("Geometry Compilation") @Timespan
+	long geometryCompileNanos;
+
+	@Label("Draw Calls")
+	long drawCalls;
+	@Label("Buffer Binds")
+	long bufferBinds;
+	@Label("Bytes Uploaded") @DataAmount
+	long bytesUploaded;
+	@Label("Instances Drawn")
+	long instancesDrawn;
+	@Label("Drawables Removed")
+	long drawablesRemoved;
+	@Label("Fence Stalls")
+	long fenceStalls;
+	@Label("Instances Culled")
+	long instancesCulled;
+	@Label("Drawables Culled")
+	long drawablesCulled;
+	@Label("GPU Buffer Memory") @DataAmount
+	long gpuBytes;
+}
@@ -3,7 +3,11 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.Map;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
@@ -16,7 +20,6 @@ import poomonkeys.common.Drawable;
 import poomonkeys.common.Geometry;
 import poomonkeys.common.Matrix3x3;
 import poomonkeys.common.Movable;
-import poomonkeys.common.Renderer;
 import poomonkeys.common.ShaderLoader;
 import com.jogamp.opengl.util.FPSAnimator;
 
@@ -26,8 +29,9 @@ import com.jogamp.opengl.util.FPSAnimator;
  * Complex objects that are not drawn many times in a scene are rendered on an individual bases.
  * Simple objects that need to be drawn many times are rendered using specialized 'instance rendering' methods that are faster for this purpose.
  * 
- * 5 possible instance rendering modes are supported
- * The options will be configured automagically based on calls to isFunctionAvailable during initialization
+ * 5 possible instance rendering modes are supported (see InstancingMode)
+ * The mode is picked during initialization by an InstancingAutotuner, out of the ones isFunctionAvailable allows,
+ * by benchmarking them (a headless renderer just takes the best available one, or whatever setInstancingMode says)
  * but for reference they are listed below.
  * 
  * In order of rendering efficiency (more or less) they are:
@@ -51,84 +55,178 @@ import com.jogamp.opengl.util.FPSAnimator;
  *      Best case scenario.
  *      Uses glDrawArraysInstanced to draw multiple instances of a single copy of the vertices in a VBO.
  *      The texture buffer is used to store position data.
+ * 
+ * Instances are changed through addGeometryInstance, removeInstanceGeometry and the stores from getInstances
+ * on the simulation side, under instanceLock. None of that is visible to the renderer until publishInstances
+ * is called at the end of a simulation tick, after which the renderer draws from an immutable snapshot.
+ * The renderer never takes instanceLock so the simulation and rendering never wait on each other.
+ * 
+ * When driven by a SimulationLoop the renderer is Tickable and publishes at the end of every tick. Frames are then
+ * drawn between the last two published ticks, blending each instance from its previous to its current position
+ * by how far into the next tick the frame is, so motion is smooth at any frame rate.
+ * 
+ * Anything entirely outside the view is skipped: instances in blocks with nothing on screen are neither uploaded
+ * nor drawn (see InstanceCuller), and where positions are batched one at a time off screen instances are left out
+ * of the batches. Drawables whose bounds, children included, are off screen are skipped along with their children
+ * (see DrawableBounds).
+ * 
+ * Every frame is timed by phase and its draw calls, binds and uploads counted in a RendererStats, see getStats.
+ * 
+ * Normally the renderer draws to its own GLCanvas, driven by an FPSAnimator.
+ * A headless renderer (see createHeadless) has no canvas, frames are driven by calling init, reshape and display
+ * directly with any GL2, such as a RecordingGL on a machine without a GPU.
  *      
  * @author Zebadiah Long
  */
-public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
+public class GLRenderer extends InstanceRenderer implements GLEventListener, Tickable
 {
-	// This is actually max instances per type of geometry, but oh well, it's arbitrary right now anyway
-	private static final int MAX_INSTANCES = 100000;
+	// Starting size for the position texture buffer, grows as needed
+	private static final int INITIAL_POSITION_BUFFER_CAPACITY = 4096;
+	// Time each frame can spend uploading drawables from the upload queue
+	public static final long DEFAULT_UPLOAD_BUDGET_NANOS = 2000000;
 	private static final int FLOAT_BYTES   = Float.SIZE / Byte.SIZE;
+	private static final int BLOCK = InstanceStore.DIRTY_BLOCK_SIZE;
 
-	// Only used for uniform array position batching right now, not used for texture buffer. 
-	// This could eventually be a problem.
-	private static final int BATCH_SIZE    = 512;
+	private static final float[] IDENTITY = {1, 0, 0, 0,  0, 1, 0, 0,  0, 0, 1, 0,  0, 0, 0, 1};
+	
+	// Picks the instancing mode in init, null to just take the best available one
+	private InstancingAutotuner autotuner;
+	// The mode being used, set before init to skip choosing
+	private InstancingMode instancingMode;
 	
 	// If fixedPipelineOnly is used then manuallyIndexVertices is always false and useTextureBuffer is ignored
 	private boolean fixedPipelineOnly;
 	
 	// Include an element index as the z-component with each vertex
 	// Used for pseudo-instancing shaders
-	private static boolean manuallyIndexVertices; 
+	private boolean manuallyIndexVertices; 
 	
 	// Batch position data into the texture buffer, this is the preferred option and allows for much larger batches than the alternate uniform array method
 	// Both methods require shader support.
-	private static boolean useTextureBuffer;
+	private boolean useTextureBuffer;
 	
 	private IntBuffer idBuffer = IntBuffer.allocate(1);
 	// only used when uniform array position batching is used (no texture buffer available)
-	private FloatBuffer positionBatchBuffer;
+	// Instances per batch, as many as the driver's uniform limit allows, and two per vec4 in positionBatch
+	private int uniformBatchSize;
+	private float[] positionBatch;
+	// Number of positions in positionBatch from the last _updatePositionBufferArray
+	private int batchCount;
 
 	// Buffers and shader attributes
-	private int currentlyBoundVertexBuffer = 0;
-	private int positionBufferID = 0;
+	// All array buffer binds, vertex pointers and other draw state go through the state cache
+	private GLStateCache state = new GLStateCache();
+	// Only used when the texture buffer is used for position data
+	private PositionBuffer positionBuffer;
+	// Only used when pseudo-instancing, builds the copies of each geometry's vertices
+	private PseudoInstanceVertices pseudoVertices = new PseudoInstanceVertices();
+	// What was last uploaded for big geometries, so only the parts that change are uploaded again
+	private VertexChunks chunks = new VertexChunks();
 	private int defaultShaderProgram=-1, instancingShaderProgram;
 	private int projectionAttribute, vertexAttribute, positionAttribute, positionOffsetAttribute, mvpAttribute;
 
 	// All of the things that will be drawn
 	// Drawables are for the more complex geometry or geometry that needs to be able to change
 	private ArrayList<Drawable> drawables          = new ArrayList<Drawable>();
-	// Instance geometries holds the list of simple geometries to draw instances of
-	private ArrayList<Geometry> instanceGeometries = new ArrayList<Geometry>();
-	// Movables hold the position and velocity for instance geometries. Each instance geometry can be used to draw many movable instances.
-	private ArrayList<Movable[]> geometryInstances = new ArrayList<Movable[]>();
+	// Drawables built off the GL thread, waiting for their geometry to be uploaded before they're drawn
+	private UploadQueue uploads = new UploadQueue();
+	private long uploadBudgetNanos = DEFAULT_UPLOAD_BUDGET_NANOS;
+	// Draws of the drawables for the current frame, in the order they're drawn
+	private RenderQueue queue = new RenderQueue();
+	// Bounds for skipping off screen drawables, and the transform they're checked with
+	private DrawableBounds drawableBounds;
+	private float[] cullTransform = new float[16];
+	// The instance geometries and their live stores are kept in the registry (see InstanceRenderer).
+	// The simulation works on those, the renderer only sees published snapshots of them.
+	// Geometries whose vertex buffers are to be deleted, with the id they were drawn under or -1. Guarded by itself.
+	private IdentityHashMap<Geometry, Integer> releasedGeometries = new IdentityHashMap<Geometry, Integer>();
+	
+	// Hands snapshots of the instances from the simulation to the renderer
+	private SnapshotExchange instanceSnapshots = new SnapshotExchange();
+	// The snapshot being drawn and whether it is new this frame
+	private InstanceSnapshot instances;
+	private boolean instancesChanged;
+	// Which of them are on screen
+	private InstanceCuller culler = new InstanceCuller();
+	// How far to blend between the snapshot's previous and current positions this frame, and last frame
+	private float interpolation = 1;
+	private float drawnInterpolation = 1;
+	// Length of a simulation tick when driven by a SimulationLoop, 0 otherwise
+	private volatile long simulationTickNanos = 0;
+	
+	// Per frame timing and counters
+	private RendererStats stats = new RendererStats();
 	
 	private long timeSinceLastDraw;
 	private long lastDrawTime;
 	public float viewWidth, viewHeight;
 	private float screenWidth, screenHeight;
 	private boolean didInit = false;
+	// Both null for a headless renderer
+	private GLCanvas canvas;
 	private FPSAnimator animator;
 	
 	public GLRenderer()
 	{
 		// setup OpenGL Version 2
-		super(new GLCapabilities(GLProfile.get(GLProfile.GL2)));
-
-		this.addGLEventListener(this);
-		this.setSize(1800, 1000);
-		animator = new FPSAnimator(this, 60);
+		this(new GLCanvas(new GLCapabilities(GLProfile.get(GLProfile.GL2))));
+	}
+	
+	private GLRenderer(GLCanvas canvas)
+	{
+		this.canvas = canvas;
+		if(canvas != null)
+		{
+			autotuner = new InstancingAutotuner();
+			canvas.addGLEventListener(this);
+			canvas.setSize(1800, 1000);
+			animator = new FPSAnimator(canvas, 60);
+		}
+	}
+	
+	/**
+	 * Create a renderer with no canvas or animator. 
+	 * Nothing happens until init, reshape and display are called with some GL.
+	 */
+	public static GLRenderer createHeadless()
+	{
+		return new GLRenderer(null);
+	}
+	
+	/**
+	 * The canvas that is drawn to, null if headless
+	 */
+	public GLCanvas getCanvas()
+	{
+		return canvas;
 	}
 
 	/**
 	 * Called when the OpenGL context is first made available
-	 * 
-	 * Sets up the GL environment and shaders if available. 
 	 */
 	public void init(GLAutoDrawable d)
 	{
-		final GL2 gl = d.getGL().getGL2();
-		
+		init(d.getGL().getGL2());
+	}
+	
+	/**
+	 * Sets up the GL environment and shaders if available. 
+	 */
+	public void init(GL2 gl)
+	{
 		gl.glClearColor(0f, 0f, 0f, 1f);
 
 		gl.glBlendFunc(GL2.GL_SRC_ALPHA, GL2.GL_ONE_MINUS_SRC_ALPHA);
 		gl.glEnable(GL2.GL_BLEND);
 		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
 		
-		// Check for shader support
-		fixedPipelineOnly     = !gl.isFunctionAvailable("glCreateShader");
-		manuallyIndexVertices = !gl.isFunctionAvailable("glDrawArraysInstanced");
-		useTextureBuffer      = gl.isFunctionAvailable("glTexBuffer");
+		// Pick the instancing mode, and so whether there are shaders at all
+		if(instancingMode == null)
+		{
+			instancingMode = autotuner != null ? autotuner.choose(gl) : InstancingAutotuner.bestAvailable(gl);
+		}
+		_useMode(instancingMode);
+		uniformBatchSize = InstancingAutotuner.uniformBatchSize(gl);
 		
 		if(!fixedPipelineOnly)
 		{
@@ -144,7 +242,8 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	        }
         	else if(!manuallyIndexVertices && !useTextureBuffer)
         	{
-        		instancingShaderProgram = ShaderLoader.compileProgram(gl, "instancing_uniform");
+        		// The uniform array shaders are generated with room for a full batch
+        		instancingShaderProgram = InstancingAutotuner.compileProgram(gl, "instancing_uniform", uniformBatchSize);
         	}
 	        else if(manuallyIndexVertices && useTextureBuffer)
 	        {
@@ -152,8 +251,16 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	        }
         	else // if(manuallyIndexVertices && !useTextureBuffer)
         	{
-        		instancingShaderProgram = ShaderLoader.compileProgram(gl, "pseudo_instancing_uniform");
+        		instancingShaderProgram = InstancingAutotuner.compileProgram(gl, "pseudo_instancing_uniform", uniformBatchSize);
         	}
+	        
+	        if(instancingShaderProgram == 0)
+	        {
+	        	// Nothing else to try, fall back to drawing instances one at a time, getInstancingMode shows it
+	        	instancingMode = InstancingMode.FIXED_PIPELINE;
+	        	_useMode(instancingMode);
+	        	return;
+	        }
 	        gl.glLinkProgram(instancingShaderProgram);
 	        
 	        // Grab references to the shader attributes
@@ -166,7 +273,7 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	        }
 	        else
 	        {
-	        	positionBatchBuffer = ByteBuffer.allocateDirect(BATCH_SIZE*2*FLOAT_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	        	positionBatch = new float[uniformBatchSize*2];
 	        	positionAttribute   = gl.glGetUniformLocation(instancingShaderProgram, "positions");
 	        }
 	
@@ -180,6 +287,18 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 		}
 	}
 	
+	/**
+	 * Set the flags the drawing code goes by for a mode
+	 */
+	private void _useMode(InstancingMode mode)
+	{
+		fixedPipelineOnly     = !mode.shaders;
+		manuallyIndexVertices = mode.shaders && !mode.drawArraysInstanced;
+		useTextureBuffer      = mode.textureBuffer;
+		// Only the fixed pipeline rotates and scales drawables
+		drawableBounds = new DrawableBounds(fixedPipelineOnly);
+	}
+	
 	/**
 	 * Set up a texture buffer to hold the position data and tell TEXTURE0 to use it.
 	 * Also makes sure that the positionSampler is hooked up to TEXTURE0.
@@ -192,44 +311,40 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	    gl.glUniform1i(positionAttribute, 0); // 0 means TEXTURE0
 	    gl.glActiveTexture(GL2.GL_TEXTURE0);
 	    
-		// Bind a texture buffer
-		positionBufferID = _generateBufferID(gl);
-		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, positionBufferID);
-	    
-	    // Allocate some space
-	    int size = MAX_INSTANCES * 2 * FLOAT_BYTES;
-	    // Use STREAM_DRAW since the positions get updated very often 
-	    gl.glBufferData(GL2.GL_TEXTURE_BUFFER, size, null, GL2.GL_STREAM_DRAW);
-	    
-	    // Unbind
-	    gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
-
-	    // The magic: Point the active texture (TEXTURE0) at the position texture buffer
-	    // Right now the buffer is empty, but once we fill it, the positionSampler in
-	    // the vertex shader will be able to access the data using texelFetch
-	    gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_RGBA32F, positionBufferID);
+		// Create the texture buffer and point TEXTURE0 at it
+		positionBuffer = new PositionBuffer(gl, INITIAL_POSITION_BUFFER_CAPACITY);
+		stats.bufferAllocated(positionBuffer.getBufferID(), positionBuffer.getBytes());
 	}
 
 	/**
-	 * Renders all drawables and all geometryInstances
+	 * Called by OpenGL to draw a frame
 	 */
 	public void display(GLAutoDrawable d)
 	{
-		final GL2 gl = d.getGL().getGL2();
+		display(d.getGL().getGL2());
+	}
+	
+	/**
+	 * Renders all drawables and all geometryInstances
+	 */
+	public void display(GL2 gl)
+	{
 		timeSinceLastDraw = System.currentTimeMillis() - lastDrawTime;
 		lastDrawTime = System.currentTimeMillis();
+		stats.beginFrame();
+		drawableBounds.beginFrame();
+		// Anything could have happened to the GL state since the last frame
+		state.invalidate();
 		
 		gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
 
 		/*
 		 * Draw the drawables. Also handles removing drawables when removeFromGLEngine is set
 		 */
+		long phaseStart = System.nanoTime();
 		synchronized(drawableLock)
 		{
-			if(!fixedPipelineOnly)
-			{
-				gl.glUseProgram(defaultShaderProgram);
-			}
+			_drainUploads(gl);
 			ListIterator<Drawable> itr = drawables.listIterator();
 			while(itr.hasNext())
 			{
@@ -237,39 +352,67 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 				if(drawable.removeFromGLEngine)
 				{
 					itr.remove();
+					stats.drawableRemoved();
 				}
 				else
 				{
-					_drawDrawable(drawable, gl);
+					_queueDrawable(drawable, gl);
 				}
 			}
+			_drawQueue(gl);
 		}	
+		stats.addPhase(RendererStats.PHASE_DRAWABLES, System.nanoTime() - phaseStart);
 
 		/*
-		 * Draw the geometryInstances
+		 * Draw the latest published snapshot of the geometryInstances
 		 */
-		synchronized(instanceLock)
+		phaseStart = System.nanoTime();
+		instancesChanged = instanceSnapshots.acquire();
+		instances = instanceSnapshots.getFront();
+		_deleteReleasedGeometries(gl);
+		interpolation = _interpolation(instances);
+		// While blending, the instances that moved last tick move every frame, not just when a new snapshot comes in
+		boolean positionsChanged = instancesChanged || drawnInterpolation < 1;
+		drawnInterpolation = interpolation;
+		culler.cull(instances, instancesChanged, viewWidth, viewHeight);
+		
+		if(fixedPipelineOnly)
 		{
-			if(fixedPipelineOnly)
+			_drawInstancesFixedPipeline(gl);
+		}
+		else 
+		{
+			// Bind appropriate instancing shader
+			state.useProgram(gl, instancingShaderProgram);
+			
+			if(useTextureBuffer)
 			{
-				_drawInstancesFixedPipeline(gl);
+				_updatePositionBufferTexture(gl, positionsChanged);
+				_drawInstancesTextureBuffer(gl);
+				positionBuffer.fence(gl);
 			}
-			else 
+			else // using uniform array
 			{
-				// Bind appropriate instancing shader
-				gl.glUseProgram(instancingShaderProgram);
-				
-				if(useTextureBuffer)
-				{
-					_updatePositionBufferTexture(gl);
-					_drawInstancesTextureBuffer(gl);
-				}
-				else // using uniform array
-				{
-					_drawInstancesUniformArray(gl);
-				}
+				_drawInstancesUniformArray(gl);
 			}
 		}
+		// Packing is timed on its own, the rest of this is the draw
+		long instancesNanos = System.nanoTime() - phaseStart;
+		stats.addPhase(RendererStats.PHASE_INSTANCED_DRAW, instancesNanos - stats.getPhaseNanos(RendererStats.PHASE_PACKING));
+		
+		stats.endFrame();
+	}
+	
+	/**
+	 * How far the current time is between the snapshot's tick and the next one, from 0 to 1.
+	 * Always 1 if the snapshot isn't from a fixed length tick.
+	 */
+	private float _interpolation(InstanceSnapshot snapshot)
+	{
+		if(snapshot.tickNanos == 0) return 1;
+		
+		float alpha = (float)(System.nanoTime() - snapshot.publishTime) / snapshot.tickNanos;
+		return Math.max(0, Math.min(1, alpha));
 	}
 	
 	/**
@@ -277,47 +420,55 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	 */
 	private void _drawInstancesUniformArray(GL2 gl)
 	{
-		for(int g = 0; g < geometryInstances.size(); g++)
+		for(int g = 0; g < instances.stores.size(); g++)
 		{
-			Geometry geometry = instanceGeometries.get(g);
+			Geometry geometry = instances.geometries.get(g);
+			int numInstances  = instances.stores.get(g).size;
 			
-			if(geometry.num_instances == 0)
+			if(numInstances == 0 || culler.getVisibleInstances(g) == 0)
 			{
-				// Move on if there are no longer any instances of this geometry
+				// Move on if there are no longer any instances of this geometry, or none on screen
+				stats.instancesCulled(numInstances);
 				continue;
 			}
 			
+			// Never more than a batch of instances drawn at once
+			int wanted = Math.min(numInstances, uniformBatchSize);
 			if(geometry.hasChanged)
 			{
 				// Makes sure current vertex set is loaded into vertex buffer
-				_compileGeometry(gl, geometry);
+				_compileGeometry(gl, geometry, wanted);
+			}
+			int batchSize = uniformBatchSize;
+			if(manuallyIndexVertices)
+			{
+				// Can't draw more instances at once than there are copies of the vertices
+				batchSize = Math.min(uniformBatchSize, _prepareExpandedGeometry(gl, geometry, wanted));
 			}
 			
 			// Bind the vertex buffer and point at it
-			currentlyBoundVertexBuffer = geometry.vertexBufferID;
-	    	gl.glBindBuffer(GL.GL_ARRAY_BUFFER, currentlyBoundVertexBuffer);
+	    	if(state.bindArrayBuffer(gl, geometry.vertexBufferID)) stats.bufferBind();
 	    	if(!manuallyIndexVertices)
 		    {
-				gl.glVertexPointer(2, GL.GL_FLOAT, 0, 0);
+				state.vertexPointer(gl, 2, 0);
 		    }
 			else 
 			{
 		    	// Pseudo instancing requires an element index stored in the z-component of each vertex, so 3 floats are required
-				gl.glVertexPointer(3, GL.GL_FLOAT, 0, 0);
+				state.vertexPointer(gl, 3, 0);
 			}
 	    	
 			// Using a uniform array for position data. Batching is required.
-			int b;
-			for(b = 0; b < geometry.num_instances/BATCH_SIZE; b++)
+			// Load a batch of on screen positions into the uniform array and draw a batch of instances until they run out
+			int drawn = 0;
+			for(int next = 0; next < numInstances; )
 			{
-				// Load a batch of position into the uniform array on draw a batch of instances
-				_updatePositionBufferArray(gl, geometry, BATCH_SIZE, b*BATCH_SIZE);
-				_drawInstances(gl, geometry, BATCH_SIZE);
+				next = _updatePositionBufferArray(gl, g, batchSize, next);
+				_drawInstances(gl, geometry, batchCount);
+				drawn += batchCount;
 			}
-			// Get the remainder
-			int num_remaining = geometry.num_instances - b*BATCH_SIZE;
-			_updatePositionBufferArray(gl, geometry, num_remaining, b*BATCH_SIZE);
-			_drawInstances(gl, geometry, num_remaining);
+			stats.instancesDrawn(g, drawn);
+			stats.instancesCulled(numInstances - drawn);
 		}
 	}
 	
@@ -326,42 +477,59 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	 */
 	private void _drawInstancesTextureBuffer(GL2 gl)
 	{
-		int offset = 0;
-		for(int g = 0; g < geometryInstances.size(); g++)
+		for(int g = 0; g < instances.stores.size(); g++)
 		{
-			Geometry geometry = instanceGeometries.get(g);
+			Geometry geometry = instances.geometries.get(g);
+			int numInstances  = instances.stores.get(g).size;
 			
-			if(geometry.num_instances == 0)
+			int visibleInstances = culler.getVisibleInstances(g);
+			stats.instancesCulled(numInstances - visibleInstances);
+			if(visibleInstances == 0)
 			{
-				// Move on if there are no longer any instances of this geometry
+				// Move on if there are no longer any instances of this geometry, or none on screen
 				continue;
 			}
+			stats.instancesDrawn(g, visibleInstances);
 			
 			if(geometry.hasChanged)
 			{
 				// Makes sure current vertex set is loaded into vertex buffer
-				_compileGeometry(gl, geometry);
+				_compileGeometry(gl, geometry, numInstances);
+			}
+			int chunkSize = numInstances;
+			if(manuallyIndexVertices)
+			{
+				// Can't draw more instances at once than there are copies of the vertices
+				chunkSize = _prepareExpandedGeometry(gl, geometry, numInstances);
 			}
 			
 			// Bind the vertex buffer and point at it
-			currentlyBoundVertexBuffer = geometry.vertexBufferID;
-	    	gl.glBindBuffer(GL.GL_ARRAY_BUFFER, currentlyBoundVertexBuffer);
+	    	if(state.bindArrayBuffer(gl, geometry.vertexBufferID)) stats.bufferBind();
 	    	if(!manuallyIndexVertices)
 		    {
-				gl.glVertexPointer(2, GL.GL_FLOAT, 0, 0);
+				state.vertexPointer(gl, 2, 0);
 		    }
 			else 
 			{
 		    	// Pseudo instancing requires an element index stored in the z-component of each vertex, so 3 floats are required
-				gl.glVertexPointer(3, GL.GL_FLOAT, 0, 0);
+				state.vertexPointer(gl, 3, 0);
 			}
 	    	
-			// Using the texture buffer, all the positions are already loaded and bound for all geometry instances
-			// set the positionOffset in the shader and draw some instances
-	    	gl.glUniform1i(positionOffsetAttribute, offset*2);
-	    	_drawInstances(gl, geometry, geometry.num_instances);
-	    	
-	    	offset += geometry.num_instances;
+			// Using the texture buffer, all the positions of visible blocks are already loaded and bound
+			// for each run of visible blocks set the positionOffset in the shader and draw some instances
+			int offset = positionBuffer.getOffset(g);
+			BitSet visible = culler.getVisibleBlocks(g);
+			for(int block = visible.nextSetBit(0); block >= 0; )
+			{
+				int endBlock = visible.nextClearBit(block);
+				int end = Math.min(endBlock*BLOCK, numInstances);
+				for(int first = block*BLOCK; first < end; first += chunkSize)
+				{
+			    	gl.glUniform1i(positionOffsetAttribute, offset + first*2);
+			    	_drawInstances(gl, geometry, Math.min(chunkSize, end-first));
+				}
+				block = visible.nextSetBit(endBlock);
+			}
 		}
 	}
 	
@@ -370,37 +538,58 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	 */
 	private void _drawInstancesFixedPipeline(GL2 gl)
 	{
-		for(int g = 0; g < geometryInstances.size(); g++)
+		for(int g = 0; g < instances.stores.size(); g++)
 		{
-			Geometry geometry = instanceGeometries.get(g);
+			Geometry geometry = instances.geometries.get(g);
+			int numInstances  = instances.stores.get(g).size;
 			
-			if(geometry.num_instances == 0)
+			if(numInstances == 0 || culler.getVisibleInstances(g) == 0)
 			{
-				// Move on if there are no longer any instances of this geometry
+				// Move on if there are no longer any instances of this geometry, or none on screen
+				stats.instancesCulled(numInstances);
 				continue;
 			}
 			
 			if(geometry.hasChanged)
 			{
 				// Makes sure current vertex set is loaded into vertex buffer
-				_compileGeometry(gl, geometry);
+				_compileGeometry(gl, geometry, 1);
 			}
 			
 			// Bind the vertex buffer and point at it
-			currentlyBoundVertexBuffer = geometry.vertexBufferID;
-	    	gl.glBindBuffer(GL.GL_ARRAY_BUFFER, currentlyBoundVertexBuffer);
-			gl.glVertexPointer(2, GL.GL_FLOAT, 0, 0);
+	    	if(state.bindArrayBuffer(gl, geometry.vertexBufferID)) stats.bufferBind();
+			state.vertexPointer(gl, 2, 0);
 			
 			// Fixed pipeline code. Use the standard matrix stack, no shaders, no instancing.
 			// Draw things one at a time
-			Movable[] instances = geometryInstances.get(g);
-			for(int i = 0; i < geometry.num_instances; i++)
+			float[] x  = instances.stores.get(g).x;
+			float[] y  = instances.stores.get(g).y;
+			float[] px = instances.stores.get(g).px;
+			float[] py = instances.stores.get(g).py;
+			float alpha = interpolation;
+			BitSet visible = culler.getVisibleBlocks(g);
+			int drawn = 0;
+			for(int i = 0; i < numInstances; i++)
 			{
+				if(!visible.get(i/BLOCK))
+				{
+					// Skip the rest of the block
+					i = (i/BLOCK+1)*BLOCK - 1;
+					continue;
+				}
+				float ix = px[i] + (x[i]-px[i])*alpha;
+				float iy = py[i] + (y[i]-py[i])*alpha;
+				if(!culler.isVisible(g, ix, iy)) continue;
+				
 				gl.glPushMatrix();
-				gl.glTranslatef(instances[i].x, instances[i].y, 0);
+				gl.glTranslatef(ix, iy, 0);
 				gl.glDrawArrays(GL2.GL_TRIANGLES, 0, geometry.vertices.length/2);
 				gl.glPopMatrix();
+				drawn++;
 			}
+			stats.drawCalls(drawn);
+			stats.instancesDrawn(g, drawn);
+			stats.instancesCulled(numInstances - drawn);
 		}
 	}
 	
@@ -409,7 +598,9 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	 */
 	private void _drawInstances(GL2 gl, Geometry g, int num_instances)
 	{
-		gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
+		if(num_instances == 0) return;
+		
+		state.polygonMode(gl, GL2.GL_LINE);
 		if(!manuallyIndexVertices)
 		{
     		gl.glDrawArraysInstanced(GL2.GL_TRIANGLES, 0, g.vertices.length/2, num_instances);
@@ -418,64 +609,142 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 		{
 			gl.glDrawArrays(GL2.GL_TRIANGLES, 0, num_instances*g.vertices.length/2);
 		}
+		stats.drawCalls(1);
 	}
 	
 	/**
-	 * Upload a batch of instance positions for a single geometry type into a uniform array
+	 * Upload a batch of up to batchSize on screen instance positions for the geometry with id g into a uniform array,
+	 * starting from instance from. The number packed is left in batchCount.
+	 * Package-private so the benchmarks can call it directly.
+	 * 
+	 * @return the instance to start the next batch from
 	 */
-	private void _updatePositionBufferArray(GL2 gl, Geometry g, int batchSize, int batchOffset)
+	int _updatePositionBufferArray(GL2 gl, int g, int batchSize, int from)
 	{
-		Movable[] instances = geometryInstances.get(g.geometryID);
+		InstanceStore store = instances.stores.get(g);
+		float[] x  = store.x;
+		float[] y  = store.y;
+		float[] px = store.px;
+		float[] py = store.py;
+		float[] batch = positionBatch;
+		float alpha = interpolation;
+		BitSet visible = culler.getVisibleBlocks(g);
+		long start = System.nanoTime();
 		
-		for(int i = 0; i < batchSize; i++)
+		int o = 0;
+		int i = from;
+		while(i < store.size && o < batchSize*2)
 		{
-			positionBatchBuffer.put(instances[batchOffset+i].x);
-			positionBatchBuffer.put(instances[batchOffset+i].y);
+			if(!visible.get(i/BLOCK))
+			{
+				// Nothing in this block is on screen, go straight to the next block that has something
+				int block = visible.nextSetBit(i/BLOCK);
+				i = block < 0 ? store.size : block*BLOCK;
+				continue;
+			}
+			float bx = px[i] + (x[i]-px[i])*alpha;
+			float by = py[i] + (y[i]-py[i])*alpha;
+			if(culler.isVisible(g, bx, by))
+			{
+				batch[o++] = bx;
+				batch[o++] = by;
+			}
+			i++;
 		}
-		positionBatchBuffer.position(0);
+		batchCount = o/2;
 		
-		gl.glUniform1fv(positionAttribute, batchSize*2, positionBatchBuffer);
+		if(batchCount > 0)
+		{
+			// Two instances per vec4, an odd one out takes a whole vec4 with whatever was left in the second half
+			int vectors = (batchCount+1)/2;
+			gl.glUniform4fv(positionAttribute, vectors, batch, 0);
+			stats.bytesUploaded(vectors*4*FLOAT_BYTES);
+		}
+		stats.addPhase(RendererStats.PHASE_PACKING, System.nanoTime() - start);
+		return i;
 	}
 	
 	/**
 	 * Update the instance positions in the texture buffer
+	 * Package-private so the benchmarks can call it directly.
 	 */
-	private void _updatePositionBufferTexture(GL2 gl)
+	void _updatePositionBufferTexture(GL2 gl, boolean changed)
 	{
-		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, positionBufferID);
-		ByteBuffer textureBuffer = gl.glMapBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_WRITE_ONLY);
-		FloatBuffer textureFloatBuffer = textureBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		long start = System.nanoTime();
+		long binds = positionBuffer.getBinds(), bytes = positionBuffer.getBytesUploaded(), stalls = positionBuffer.getStalls();
+		int capacity = positionBuffer.getCapacity();
+		
+		// Only the positions that changed and are on screen are sent
+		positionBuffer.update(gl, instances.stores, changed, interpolation, culler.getVisibleBlocks());
 		
-		for(int g = 0; g < geometryInstances.size(); g++)
+		if(positionBuffer.getCapacity() != capacity)
 		{
-			Movable[] instances = geometryInstances.get(g);
-			Geometry geometry = instanceGeometries.get(g);
-			
-			for(int i = 0; i < geometry.num_instances; i++)
+			stats.bufferAllocated(positionBuffer.getBufferID(), positionBuffer.getBytes());
+		}
+		stats.bufferBinds(positionBuffer.getBinds() - binds);
+		stats.bytesUploaded(positionBuffer.getBytesUploaded() - bytes);
+		stats.fenceStalls(positionBuffer.getStalls() - stalls);
+		stats.addPhase(RendererStats.PHASE_PACKING, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Upload whatever geometry the upload queue has waiting, until the frame's upload budget runs out.
+	 * At least one geometry goes up each frame, however big. Drawables start being drawn once all of their 
+	 * geometry is up. Called under drawableLock.
+	 */
+	private void _drainUploads(GL2 gl)
+	{
+		long start = System.nanoTime();
+		UploadQueue.Upload upload;
+		while((upload = uploads.peek()) != null)
+		{
+			while(!upload.isDone())
 			{
-				textureFloatBuffer.put(instances[i].x);
-				textureFloatBuffer.put(instances[i].y);
+				long uploadStart = System.nanoTime();
+				_uploadGeometry(gl, upload.next(), 1);
+				long now = System.nanoTime();
+				stats.addPhase(RendererStats.PHASE_GEOMETRY_COMPILE, now - uploadStart);
+				if(now - start >= uploadBudgetNanos && !upload.isDone()) return;
 			}
+			uploads.remove();
+			drawables.add(upload.drawable);
+			if(upload.uploaded != null)
+			{
+				upload.uploaded.run();
+			}
+			if(System.nanoTime() - start >= uploadBudgetNanos) return;
 		}
-		
-		gl.glUnmapBuffer(GL2.GL_TEXTURE_BUFFER);
 	}
 	
 	/**
 	 * Assemble and bind some vertex data
+	 * 
+	 * @param instances the most instances of the geometry that will be drawn at once
 	 */
-	private void _compileGeometry(GL2 gl, Geometry geometry)
+	private void _compileGeometry(GL2 gl, Geometry geometry, int instances)
 	{
+		long start = System.nanoTime();
 		geometry.buildGeometry(viewWidth, viewHeight);
-	    
+		_uploadGeometry(gl, geometry, instances);
+		stats.addPhase(RendererStats.PHASE_GEOMETRY_COMPILE, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Bind some vertex data that's already been built
+	 * 
+	 * @param instances the most instances of the geometry that will be drawn at once
+	 */
+	private void _uploadGeometry(GL2 gl, Geometry geometry, int instances)
+	{
 		if(!manuallyIndexVertices)
 		{
 			_finalizeGeometry(gl, geometry);
 		}
-		else
+		else if(geometry.vertices != null)
 		{
 			// Texture and uniform buffer methods require multiple instances of the geometry to be loaded
-			_finalizeGeometry(gl, geometry, MAX_INSTANCES);
+			// Start with enough for the instances there are now, more are built in the background as needed
+			_finalizeGeometry(gl, geometry, pseudoVertices.rebuild(geometry, instances));
 		}
 		
 		geometry.hasChanged = false;
@@ -483,6 +752,7 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	
 	/**
 	 * Load one instance of some geometry's vertices into a buffer.
+	 * A big geometry that changed without changing size only uploads the chunks that changed, see VertexChunks.
 	 */
 	private void _finalizeGeometry(GL2 gl, Geometry g)
 	{
@@ -492,23 +762,37 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 		
 		int numBytes = g.vertices.length * FLOAT_BYTES;
         
-        g.vertexBufferID = _generateBufferID(gl);
+		// A geometry that changes keeps its buffer, glBufferData below replaces the storage
+		if(g.vertexBufferID == 0)
+		{
+			g.vertexBufferID = _generateBufferID(gl);
+		}
         
-        currentlyBoundVertexBuffer = g.vertexBufferID;
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, currentlyBoundVertexBuffer);
-		
-		gl.glBufferData(GL2.GL_ARRAY_BUFFER, numBytes, null, GL2.GL_STATIC_DRAW);
+		if(state.bindArrayBuffer(gl, g.vertexBufferID)) stats.bufferBind();
 		
-		ByteBuffer vertexBuffer = gl.glMapBuffer(GL2.GL_ARRAY_BUFFER, GL2.GL_WRITE_ONLY);
-		FloatBuffer vertexFloatBuffer = vertexBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		
-		vertexFloatBuffer.put(g.vertices);
-		
-		gl.glUnmapBuffer(GL2.GL_ARRAY_BUFFER);
+		long changedBytes = chunks.update(gl, g);
+		if(changedBytes >= 0)
+		{
+			stats.bytesUploaded(changedBytes);
+		}
+		else
+		{
+			gl.glBufferData(GL2.GL_ARRAY_BUFFER, numBytes, null, GL2.GL_STATIC_DRAW);
+			stats.bytesUploaded(numBytes);
+			stats.bufferAllocated(g.vertexBufferID, numBytes);
+			
+			ByteBuffer vertexBuffer = gl.glMapBuffer(GL2.GL_ARRAY_BUFFER, GL2.GL_WRITE_ONLY);
+			FloatBuffer vertexFloatBuffer = vertexBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			
+			vertexFloatBuffer.put(g.vertices);
+			
+			gl.glUnmapBuffer(GL2.GL_ARRAY_BUFFER);
+			chunks.uploaded(g);
+		}
 		
 		if(fixedPipelineOnly)
 		{
-			gl.glVertexPointer(2, GL.GL_FLOAT, 0, 0);
+			state.vertexPointer(gl, 2, 0);
 		}
 		else
 		{
@@ -519,47 +803,63 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	/**
 	 * Load numInstances of some geometry's vertices into a buffer.
 	 * Each vertices z-component functions as an instance index
+	 * Package-private so the benchmarks can call it directly.
 	 */
-	private void _finalizeGeometry(GL2 gl, Geometry g, int numInstances)
+	void _finalizeGeometry(GL2 gl, Geometry g, int numInstances)
 	{
 		g.hasChanged = false;
 		
 		if(g.vertices == null) return;
 		
-
-		int numBytes = 3*g.vertices.length*FLOAT_BYTES*MAX_INSTANCES/2;
-        
-		g.vertexBufferID = _generateBufferID(gl);
+		_finalizeGeometry(gl, g, PseudoInstanceVertices.expand(g.vertices, numInstances));
+	}
+	
+	/**
+	 * Load already expanded vertices into a geometry's buffer, replacing whatever was there
+	 */
+	private void _finalizeGeometry(GL2 gl, Geometry g, FloatBuffer expanded)
+	{
+		g.hasChanged = false;
 		
-		currentlyBoundVertexBuffer = g.vertexBufferID;
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, currentlyBoundVertexBuffer);
+		if(g.vertexBufferID == 0)
+		{
+			g.vertexBufferID = _generateBufferID(gl);
+		}
 		
-		gl.glBufferData(GL2.GL_ARRAY_BUFFER, numBytes, null, GL2.GL_STATIC_DRAW);
+		if(state.bindArrayBuffer(gl, g.vertexBufferID)) stats.bufferBind();
 		
-		ByteBuffer vertexBuffer = gl.glMapBuffer(GL2.GL_ARRAY_BUFFER, GL2.GL_WRITE_ONLY);
-		FloatBuffer vertexFloatBuffer = vertexBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
-        
-        // add the coordinates to the FloatBuffer
-        for(int i = 0; i < numInstances; i++)
-        {
-        	for(int v = 0; v < g.vertices.length; v+=2)
-            {
-        		vertexFloatBuffer.put(g.vertices[v]);
-        		vertexFloatBuffer.put(g.vertices[v+1]);
-        		vertexFloatBuffer.put(i);
-            }
-        }
-        
-        gl.glUnmapBuffer(GL2.GL_ARRAY_BUFFER);
+		long numBytes = (long)expanded.remaining()*FLOAT_BYTES;
+		gl.glBufferData(GL2.GL_ARRAY_BUFFER, numBytes, expanded, GL2.GL_STATIC_DRAW);
+		stats.bytesUploaded(numBytes);
+		stats.bufferAllocated(g.vertexBufferID, numBytes);
         
         // Texture and uniform buffer methods require an element index stored in the z-component of each vertex, so 3 floats are required
      	gl.glVertexAttribPointer(vertexAttribute, 3, GL.GL_FLOAT, false, 0, 0);
 	}
+	
+	/**
+	 * Make sure a pseudo-instanced geometry has enough copies of its vertices for wanted instances, 
+	 * uploading any that have finished building.
+	 * 
+	 * @return how many instances can be drawn at once right now
+	 */
+	private int _prepareExpandedGeometry(GL2 gl, Geometry g, int wanted)
+	{
+		FloatBuffer grown = pseudoVertices.poll(g, wanted);
+		if(grown != null)
+		{
+			long start = System.nanoTime();
+			_finalizeGeometry(gl, g, grown);
+			stats.addPhase(RendererStats.PHASE_GEOMETRY_COMPILE, System.nanoTime() - start);
+		}
+		return Math.max(1, pseudoVertices.getCopies(g));
+	}
 
 	/**
-	 * Draw a single Drawable thing
+	 * Queue the draws for a Drawable and its children
+	 * Package-private so the benchmarks can call it directly.
 	 */
-	private void _drawDrawable(Drawable thing, GL2 gl)
+	void _queueDrawable(Drawable thing, GL2 gl)
 	{
 		// Make sure Drawable is initialized
 		if (!thing.didInit)
@@ -568,24 +868,30 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 			
 			if(thing.geometry != null && thing.geometry.hasChanged && thing.geometry.vertices != null)
 			{
-				_compileGeometry(gl, thing.geometry);
+				// Drawables are drawn one at a time
+				_compileGeometry(gl, thing.geometry, 1);
 			}
 		}
+		else if(thing.geometry != null && thing.geometry.hasChanged && thing.geometry.vertices != null && thing.geometry.vertexBufferID != 0)
+		{
+			// Vertices changed in place, like the terrain after an explosion, only the chunks that changed go up
+			long start = System.nanoTime();
+			_uploadGeometry(gl, thing.geometry, 1);
+			stats.addPhase(RendererStats.PHASE_GEOMETRY_COMPILE, System.nanoTime() - start);
+		}
+		
+		// Skip the whole subtree if none of it is on screen
+		if(!_isOnScreen(thing))
+		{
+			stats.drawablesCulled(drawableBounds.getSubtreeSize(thing));
+			return;
+		}
 		
 		// Transform matrices
 		if(fixedPipelineOnly)
 		{
-			// Crappy fixed pipeline transformations
-			gl.glPushMatrix();
-			gl.glTranslatef(thing.p[0], thing.p[1], 0);
-			if (thing.rotation != 0)
-			{
-				gl.glRotatef(thing.rotation, 0, 0, 1);
-			}
-			if (thing.scale.x != 1 || thing.scale.y != 1)
-			{
-				gl.glScalef(thing.scale.x, thing.scale.y, 0);
-			}
+			// Crappy fixed pipeline transformations, worked out on the CPU since the draws get reordered
+			queue.pushTransform(thing.p[0], thing.p[1], thing.rotation, thing.scale.x, thing.scale.y);
 		}
 		else
 		{
@@ -593,22 +899,25 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 			Matrix3x3.translate(thing.p[0], thing.p[1]);
 
 			// Rotation and scaling not implemented for shaders yet
-	
-			gl.glUniformMatrix3fv(mvpAttribute, 1, false, Matrix3x3.getMatrix());
 		}
 		
-		// Render the drawable
-		if (thing.vertices != null)
+		// Queue the drawable
+		if (thing.vertices != null && thing.vertexBuffer != null && thing.getNumPoints() > 0)
 		{
-			_render(gl, thing.drawMode, thing);
+			RenderQueue.Item item = queue.add(defaultShaderProgram, 0, thing.drawMode, thing.getNumPoints());
+			item.drawable = thing;
+			_setItemMatrix(item);
 		}
-		// Render optional geometry if the drawable has one
-		if (thing.geometry != null && thing.geometry.vertices != null)
+		// Queue optional geometry if the drawable has one
+		Geometry geometry = thing.geometry;
+		if (geometry != null && geometry.vertices != null && geometry.vertexBufferID != 0 && geometry.getNumPoints() > 0)
 		{
-			_render(gl, thing.geometry.drawMode, thing.geometry);
+			RenderQueue.Item item = queue.add(defaultShaderProgram, geometry.vertexBufferID, geometry.drawMode, geometry.getNumPoints());
+			item.geometry = geometry;
+			_setItemMatrix(item);
 		}
 		
-		// Recursively draw child drawables
+		// Recursively queue child drawables
 		ListIterator<Drawable> itr = thing.drawables.listIterator();
 		while(itr.hasNext())
 		{
@@ -616,16 +925,17 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 			if(drawable.removeFromGLEngine)
 			{
 				itr.remove();
+				stats.drawableRemoved();
 			}
 			else
 			{
-				this._drawDrawable(drawable, gl);
+				this._queueDrawable(drawable, gl);
 			}
 		}
 		
 		if(fixedPipelineOnly)
 		{
-			gl.glPopMatrix();
+			queue.popTransform();
 		}
 		else
 		{
@@ -634,36 +944,95 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	}
 	
 	/**
-	 * Render a single piece of geometry
+	 * Whether any of a drawable or its children could be on screen, going by their bounds and the current transform
 	 */
-	public void _render(GL2 gl, int draw_mode, Geometry geometry)
+	private boolean _isOnScreen(Drawable thing)
 	{
-		if(geometry.vertexBufferID != currentlyBoundVertexBuffer)
+		float radius = drawableBounds.getSubtreeRadius(thing);
+		if(radius == Float.POSITIVE_INFINITY) return true;
+		
+		// The 2d affine part of the transform the drawable is placed with, and the view it has to land in
+		float a, b, c, d, tx, ty;
+		float minX, maxX, minY, maxY;
+		float[] m = cullTransform;
+		if(fixedPipelineOnly)
 		{
-			if(geometry.vertexBufferID == 0) return;
-			
-			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, geometry.vertexBufferID);
-			currentlyBoundVertexBuffer = geometry.vertexBufferID;
-
-			gl.glVertexPointer(3, GL.GL_FLOAT, 0, 0);
+			// Modelview only, so view coordinates
+			queue.getTransform(m);
+			a = m[0]; b = m[1]; c = m[4]; d = m[5]; tx = m[12]; ty = m[13];
+			minX = 0; maxX = viewWidth;
+			minY = 0; maxY = viewHeight;
 		}
-		gl.glDrawArrays(draw_mode, 0, geometry.getNumPoints());
+		else
+		{
+			// The mvp, so clip coordinates
+			RenderQueue.copyMatrix(Matrix3x3.getMatrix(), m);
+			a = m[0]; b = m[1]; c = m[3]; d = m[4]; tx = m[6]; ty = m[7];
+			minX = -1; maxX = 1;
+			minY = -1; maxY = 1;
+		}
+		
+		// The bounding circle transforms to an ellipse, check the box around that
+		float x = a*thing.p[0] + c*thing.p[1] + tx;
+		float y = b*thing.p[0] + d*thing.p[1] + ty;
+		float halfWidth  = radius * (float)Math.sqrt(a*a + c*c);
+		float halfHeight = radius * (float)Math.sqrt(b*b + d*d);
+		return x + halfWidth >= minX && x - halfWidth <= maxX && y + halfHeight >= minY && y - halfHeight <= maxY;
 	}
-
+	
+	private void _setItemMatrix(RenderQueue.Item item)
+	{
+		if(fixedPipelineOnly)
+		{
+			queue.getTransform(item.matrix);
+		}
+		else
+		{
+			RenderQueue.copyMatrix(Matrix3x3.getMatrix(), item.matrix);
+		}
+	}
+	
 	/**
-	 * Render a single Drawable
+	 * Draw the queued draws in the order they were queued, skipping any state changes that aren't needed
+	 * Package-private so the benchmarks can call it directly.
 	 */
-	public void _render(GL2 gl, int draw_mode, Drawable thing)
+	void _drawQueue(GL2 gl)
 	{
-		gl.glColor3f(1, 1, 1);
-		if(thing.vertexBuffer == null) return;
-		if(currentlyBoundVertexBuffer != 0)
+		for(int i = 0; i < queue.size(); i++)
 		{
-			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+			RenderQueue.Item item = queue.get(i);
+			
+			if(fixedPipelineOnly)
+			{
+				state.loadMatrix(gl, item.matrix);
+			}
+			else
+			{
+				state.useProgram(gl, item.program);
+				state.uniformMatrix3fv(gl, mvpAttribute, item.matrix);
+			}
+			
+			if(item.drawable != null)
+			{
+				state.color3f(gl, 1, 1, 1);
+				if(state.bindArrayBuffer(gl, 0)) stats.bufferBind();
+				state.vertexPointer(gl, 3, item.drawable.vertexBuffer);
+			}
+			else
+			{
+				if(state.bindArrayBuffer(gl, item.buffer)) stats.bufferBind();
+				state.vertexPointer(gl, 3, 0);
+			}
+			gl.glDrawArrays(item.drawMode, 0, item.count);
+			stats.drawCalls(1);
+		}
+		queue.clear();
+		
+		if(fixedPipelineOnly)
+		{
+			// The instances are drawn relative to the identity
+			state.loadMatrix(gl, IDENTITY);
 		}
-		gl.glVertexPointer(3, GL.GL_FLOAT, 0, thing.vertexBuffer);
-		gl.glDrawArrays(draw_mode, 0, thing.getNumPoints());
-		currentlyBoundVertexBuffer = 0;
 	}
 	
 	/**
@@ -677,6 +1046,8 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 		{
 			Drawable drawable = itr.next();
 			drawable.reshape(viewWidth, viewHeight);
+			// Reshaping can rebuild the vertices in place
+			drawableBounds.invalidate(drawable);
 			_reshapeDrawables(drawable.drawables);
 		}
 	}
@@ -686,7 +1057,24 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	 */
 	public void reshape(GLAutoDrawable d, int x, int y, int width, int height)
 	{
-		final GL2 gl = d.getGL().getGL2();
+		reshape(d.getGL().getGL2(), width, height);
+        
+		if (!didInit)
+		{
+			PooMonkeysEngine.getInstance().init();
+			didInit = true;
+		} 
+		else
+		{
+			_reshapeDrawables(drawables);
+		}
+	}
+	
+	/**
+	 * Set up the viewport and projection for a view of the given size
+	 */
+	public void reshape(GL2 gl, int width, int height)
+	{
 		gl.glViewport(0, 0, width, height);
 		float ratio = (float) height / width;
 
@@ -714,82 +1102,85 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 			gl.glMatrixMode(GL2.GL_MODELVIEW);
 			gl.glLoadIdentity();
 		}
-        
-		if (!didInit)
-		{
-			PooMonkeysEngine.getInstance().init();
-			didInit = true;
-		} 
-		else
+	}
+	
+	/**
+	 * A geometry that's back before its buffer was deleted keeps it
+	 */
+	@Override
+	protected void geometryRegistered(Geometry geom)
+	{
+		synchronized(releasedGeometries)
 		{
-			_reshapeDrawables(drawables);
+			releasedGeometries.remove(geom);
 		}
 	}
 	
 	/**
-	 * Add an instance of some geometry to the instanceGeometries list so it will be drawn
+	 * An unregistered geometry's vertex buffer is deleted once the renderer is no longer drawing it
 	 */
 	@Override
-	public void addGeometryInstance(float x, float y, Geometry geom) 
+	protected void geometryUnregistered(Geometry geom, int id)
 	{
-		synchronized(instanceLock)
+		synchronized(releasedGeometries)
 		{
-			if(geom.geometryID == -1)
-			{
-				instanceGeometries.add(geom);
-				geometryInstances.add(new Movable[MAX_INSTANCES]);
-				geom.geometryID = instanceGeometries.size()-1;
-			}
-			
-			Movable movable = new Movable();
-			movable.x = x;
-			movable.y = y;
-			movable.geometryID = geom.geometryID; // geometry id
-			
-			geometryInstances.get(geom.geometryID)[geom.num_instances] = movable;
-			geom.num_instances++;
+			releasedGeometries.put(geom, id);
 		}
 	}
-
+	
 	/**
-	 * Removes an instance of some geometry from the instanceGeometries list
+	 * Delete a geometry's vertex buffer at the end of the next frame's drawables, for the geometry of a Drawable 
+	 * that's being thrown away. If it is drawn again after that it's compiled again from scratch.
+	 * Instance geometries are released with unregisterGeometry.
 	 */
-	@Override
-	public boolean removeInstanceGeometry(int g, int i) 
+	public void releaseGeometry(Geometry geom)
+	{
+		synchronized(releasedGeometries)
+		{
+			releasedGeometries.put(geom, -1);
+		}
+	}
+	
+	/**
+	 * Delete the vertex buffers of released geometries that aren't in the instance snapshot being drawn
+	 */
+	private void _deleteReleasedGeometries(GL2 gl)
 	{
-		synchronized(instanceLock)
+		synchronized(releasedGeometries)
 		{
-			Movable[] instances = geometryInstances.get(g);
-			Geometry geometry = instanceGeometries.get(g);
+			if(releasedGeometries.isEmpty()) return;
 			
-			if(geometry.num_instances <= i) 
+			Iterator<Map.Entry<Geometry, Integer>> itr = releasedGeometries.entrySet().iterator();
+			while(itr.hasNext())
 			{
-				System.out.println("Trying to delete past the end of list");
-				return false;
+				Map.Entry<Geometry, Integer> entry = itr.next();
+				Geometry geometry = entry.getKey();
+				int id = entry.getValue();
+				// Still drawn until a snapshot published after it was unregistered comes in
+				if(id >= 0 && id < instances.geometries.size() && instances.geometries.get(id) == geometry) continue;
+				
+				_deleteGeometryBuffer(gl, geometry);
+				itr.remove();
 			}
-			
-			geometry.num_instances--;
-			instances[i] = instances[geometry.num_instances];
-			instances[geometry.num_instances] = null;
-			
-			return true;
 		}
 	}
 	
 	/**
-	 * Get the geometry id in the instanceGeometries list
+	 * Delete a geometry's vertex buffer and anything built for it, leaving it to be compiled again if it's ever drawn
 	 */
-	@Override
-	public int getGeometryID(Geometry geom) 
+	private void _deleteGeometryBuffer(GL2 gl, Geometry geometry)
 	{
-		for(int i = 0; i < instanceGeometries.size(); i++)
+		if(geometry.vertexBufferID != 0)
 		{
-			if(instanceGeometries.get(i) == geom)
-			{
-				return i;
-			}
+			idBuffer.put(0, geometry.vertexBufferID);
+			gl.glDeleteBuffers(1, idBuffer);
+			state.forgetBuffer(geometry.vertexBufferID);
+			stats.bufferDeleted(geometry.vertexBufferID);
+			geometry.vertexBufferID = 0;
 		}
-		return -1;
+		pseudoVertices.remove(geometry);
+		chunks.remove(geometry);
+		geometry.hasChanged = true;
 	}
 
 	/**
@@ -803,27 +1194,147 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 		return idBuffer.get(0);
 	}
 	
+	/**
+	 * Make the current state of the instances visible to the renderer. Call at the end of each simulation tick.
+	 * Only the blocks of instances that changed since the last publish are copied.
+	 */
+	public void publishInstances()
+	{
+		synchronized(lock)
+		{
+			endTick();
+			instanceSnapshots.publish(registry.getGeometries(), registry.getStores(), simulationTickNanos);
+		}
+	}
+	
+	/**
+	 * End of a SimulationLoop tick, wait for physics to finish its step, publish what the tick did, then let physics
+	 * take the next step. Physics takes exactly one step per tick from the first tick on.
+	 * Once this has been called the renderer assumes it is being ticked and interpolates between ticks.
+	 */
 	@Override
-	public Geometry getGeometry(int id)
+	public void tick(long tick, long tickNanos)
 	{
-		return instanceGeometries.get(id);
+		simulationTickNanos = tickNanos;
+		boolean held = holdPhysics();
+		publishInstances();
+		if(held)
+		{
+			physics.step();
+		}
+	}
+	
+	/**
+	 * Version of the instance snapshot most recently drawn
+	 */
+	public long getDrawnInstanceVersion()
+	{
+		return instances == null ? 0 : instances.version;
 	}
 
+	/**
+	 * Movable views of the instance stores, see InstanceRenderer.getMovables.
+	 * 
+	 * PhysicsController asks for these at the start of every step, so without a SimulationLoop this is also where
+	 * the previous step's state is published. With one it is held here until the next tick. Simulation side only.
+	 */
 	@Override
 	public ArrayList<Movable[]> getMovables() 
 	{
-		synchronized(instanceLock)
+		if(simulationTickNanos == 0)
 		{
-			return geometryInstances;
+			publishInstances();
 		}
+		return super.getMovables();
 	}
 
+	/**
+	 * The time step for the simulation in milliseconds. 
+	 * The length of a tick when driven by a SimulationLoop, which lets physics take one step per tick, otherwise
+	 * the time between the last two frames.
+	 */
 	@Override
 	public long getTimeSinceLastDraw()
 	{
+		if(simulationTickNanos != 0)
+		{
+			return Math.round(simulationTickNanos / 1000000.0);
+		}
 		return timeSinceLastDraw;
 	}
 	
+	/**
+	 * Timing and counters for the frames drawn so far
+	 */
+	public RendererStats getStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * Number of instances drawn per batch when a uniform array holds the position data
+	 */
+	int getBatchSize()
+	{
+		return uniformBatchSize;
+	}
+	
+	/**
+	 * Use the given instancing mode instead of choosing one. Only has an effect before init.
+	 */
+	public void setInstancingMode(InstancingMode mode)
+	{
+		instancingMode = mode;
+	}
+	
+	/**
+	 * Have init pick the instancing mode with the given autotuner, null to just take the best available mode
+	 */
+	public void setAutotuner(InstancingAutotuner autotuner)
+	{
+		this.autotuner = autotuner;
+	}
+	
+	/**
+	 * The instancing mode in use, null before init
+	 */
+	public InstancingMode getInstancingMode()
+	{
+		return instancingMode;
+	}
+	
+	/**
+	 * Delete the GL objects the renderer made for its instances, for a renderer that is done with before its
+	 * GL context is, like the ones InstancingAutotuner benchmarks with.
+	 */
+	void release(GL2 gl)
+	{
+		for(int g = 0; g < registry.size(); g++)
+		{
+			if(registry.getGeometry(g) != null)
+			{
+				_deleteGeometryBuffer(gl, registry.getGeometry(g));
+			}
+		}
+		synchronized(releasedGeometries)
+		{
+			for(Geometry geometry : releasedGeometries.keySet())
+			{
+				_deleteGeometryBuffer(gl, geometry);
+			}
+			releasedGeometries.clear();
+		}
+		if(positionBuffer != null)
+		{
+			stats.bufferDeleted(positionBuffer.getBufferID());
+			positionBuffer.delete(gl);
+			positionBuffer = null;
+		}
+		gl.glUseProgram(0);
+		if(instancingShaderProgram > 0) gl.glDeleteProgram(instancingShaderProgram);
+		if(defaultShaderProgram > 0)    gl.glDeleteProgram(defaultShaderProgram);
+	}
+	
 	public float getViewWidth()
 	{
 		return viewWidth;
@@ -836,9 +1347,24 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	
 	public void start()
 	{
-		animator.start();
+		if(animator != null)
+		{
+			animator.start();
+		}
 	}
 
+	/**
+	 * Let the renderer know a drawable has changed its vertices without replacing its vertex arrays, 
+	 * so its bounds are measured again
+	 */
+	public void invalidateBounds(Drawable d)
+	{
+		synchronized(drawableLock)
+		{
+			drawableBounds.invalidate(d);
+		}
+	}
+	
 	public void registerDrawable(Drawable d)
 	{
 		synchronized(drawableLock)
@@ -846,6 +1372,24 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 			drawables.add(d);
 		}
 	}
+	
+	/**
+	 * Register a drawable built off the GL thread with UploadQueue.prepare. Its geometry is uploaded over the next 
+	 * frames within the upload budget, and it's drawn from then on. uploaded, if not null, is run on the render 
+	 * thread once it is.
+	 */
+	public void registerPreparedDrawable(Drawable d, Runnable uploaded)
+	{
+		uploads.add(d, uploaded);
+	}
+	
+	/**
+	 * Most time each frame spends uploading prepared drawables, beyond the first geometry
+	 */
+	public void setUploadBudget(long nanos)
+	{
+		uploadBudgetNanos = nanos;
+	}
 
 	public void screenToViewCoords(float[] xy)
 	{
@@ -857,4 +1401,4 @@ public class GLRenderer extends GLCanvas implements GLEventListener, Renderer
 	
 	@Override
 	public void dispose(GLAutoDrawable drawable) {}
-}
\ No newline at end of file
+}
\ No newline at end of file
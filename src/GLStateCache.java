@@ -0,0 +1,228 @@
+import java.nio.Buffer;
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+/**
+ * GLStateCache remembers the GL state the renderer last set and skips calls that wouldn't change it.
+ *
+ * Only covers the state GLRenderer actually changes while drawing: the program, the array buffer binding,
+ * the vertex pointer, the color, the polygon mode and the mvp matrix (as a uniform or the fixed pipeline modelview).
+ * Anything that changes that state behind the cache's back has to call invalidate (or forgetBuffer when a buffer
+ * is deleted), otherwise the cache will skip calls that are needed.
+ */
+public class GLStateCache
+{
+	private static final int UNKNOWN = -1;
+
+	private int program = UNKNOWN;
+	private int arrayBuffer = UNKNOWN;
+
+	// The vertex pointer is either an offset into pointerBuffer or a client side array
+	private int pointerBuffer = UNKNOWN;
+	private int pointerSize;
+	private long pointerOffset;
+	private Buffer pointerArray;
+	private int pointerArrayPosition;
+
+	private boolean colorKnown = false;
+	private float red, green, blue;
+
+	private int polygonMode = UNKNOWN;
+
+	// Last matrix sent, for the program and uniform it was sent to (program 0 is the fixed pipeline modelview)
+	private int matrixProgram = UNKNOWN, matrixLocation;
+	private final float[] matrix = new float[16];
+
+	// Calls made and calls skipped, since creation
+	private long issued = 0, skipped = 0;
+
+	/**
+	 * Forget everything, the next call of each kind will always be made
+	 */
+	public void invalidate()
+	{
+		program       = UNKNOWN;
+		arrayBuffer   = UNKNOWN;
+		pointerBuffer = UNKNOWN;
+		pointerArray  = null;
+		colorKnown    = false;
+		polygonMode   = UNKNOWN;
+		matrixProgram = UNKNOWN;
+	}
+
+	/**
+	 * Call when a buffer is deleted, its id may be handed out again for a different buffer
+	 */
+	public void forgetBuffer(int id)
+	{
+		if(arrayBuffer == id)   arrayBuffer   = UNKNOWN;
+		if(pointerBuffer == id) pointerBuffer = UNKNOWN;
+	}
+
+	public long getIssued()
+	{
+		return issued;
+	}
+
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	public void useProgram(GL2 gl, int id)
+	{
+		if(program == id)
+		{
+			skipped++;
+			return;
+		}
+		gl.glUseProgram(id);
+		program = id;
+		issued++;
+	}
+
+	/**
+	 * Bind a buffer to GL_ARRAY_BUFFER
+	 *
+	 * @return true if the bind was actually made
+	 */
+	public boolean bindArrayBuffer(GL2 gl, int id)
+	{
+		if(arrayBuffer == id)
+		{
+			skipped++;
+			return false;
+		}
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, id);
+		arrayBuffer = id;
+		issued++;
+		return true;
+	}
+
+	/**
+	 * Point the vertex array at floats in the bound array buffer
+	 */
+	public void vertexPointer(GL2 gl, int size, long offset)
+	{
+		if(pointerArray == null && pointerBuffer == arrayBuffer && pointerSize == size && pointerOffset == offset && arrayBuffer != UNKNOWN)
+		{
+			skipped++;
+			return;
+		}
+		gl.glVertexPointer(size, GL.GL_FLOAT, 0, offset);
+		pointerBuffer = arrayBuffer;
+		pointerSize   = size;
+		pointerOffset = offset;
+		pointerArray  = null;
+		issued++;
+	}
+
+	/**
+	 * Point the vertex array at a client side array. Only call with no array buffer bound.
+	 */
+	public void vertexPointer(GL2 gl, int size, Buffer array)
+	{
+		if(pointerArray == array && pointerArrayPosition == array.position() && pointerSize == size)
+		{
+			skipped++;
+			return;
+		}
+		gl.glVertexPointer(size, GL.GL_FLOAT, 0, array);
+		pointerBuffer = UNKNOWN;
+		pointerSize   = size;
+		pointerArray  = array;
+		pointerArrayPosition = array.position();
+		issued++;
+	}
+
+	/**
+	 * Note that a vertex pointer was set without going through the cache
+	 */
+	public void forgetVertexPointer()
+	{
+		pointerBuffer = UNKNOWN;
+		pointerArray  = null;
+	}
+
+	public void color3f(GL2 gl, float r, float g, float b)
+	{
+		if(colorKnown && red == r && green == g && blue == b)
+		{
+			skipped++;
+			return;
+		}
+		gl.glColor3f(r, g, b);
+		red   = r;
+		green = g;
+		blue  = b;
+		colorKnown = true;
+		issued++;
+	}
+
+	public void polygonMode(GL2 gl, int mode)
+	{
+		if(polygonMode == mode)
+		{
+			skipped++;
+			return;
+		}
+		gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, mode);
+		polygonMode = mode;
+		issued++;
+	}
+
+	/**
+	 * Send a 3x3 matrix to a uniform of the current program
+	 */
+	public void uniformMatrix3fv(GL2 gl, int location, float[] m)
+	{
+		if(_sameMatrix(program, location, m, 9))
+		{
+			skipped++;
+			return;
+		}
+		gl.glUniformMatrix3fv(location, 1, false, m, 0);
+		_rememberMatrix(program, location, m, 9);
+		issued++;
+	}
+
+	/**
+	 * Replace the fixed pipeline's current matrix (the modelview while drawing)
+	 */
+	public void loadMatrix(GL2 gl, float[] m)
+	{
+		if(_sameMatrix(0, UNKNOWN, m, 16))
+		{
+			skipped++;
+			return;
+		}
+		gl.glLoadMatrixf(m, 0);
+		_rememberMatrix(0, UNKNOWN, m, 16);
+		issued++;
+	}
+
+	/**
+	 * Note that the fixed pipeline's current matrix was changed without going through the cache
+	 */
+	public void forgetMatrix()
+	{
+		matrixProgram = UNKNOWN;
+	}
+
+	private boolean _sameMatrix(int program, int location, float[] m, int length)
+	{
+		if(matrixProgram != program || matrixLocation != location) return false;
+		for(int i = 0; i < length; i++)
+		{
+			if(matrix[i] != m[i]) return false;
+		}
+		return true;
+	}
+
+	private void _rememberMatrix(int program, int location, float[] m, int length)
+	{
+		matrixProgram  = program;
+		matrixLocation = location;
+		System.arraycopy(m, 0, matrix, 0, length);
+	}
+}
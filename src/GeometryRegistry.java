@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import poomonkeys.common.Geometry;
+
+/**
+ * GeometryRegistry hands out the ids of instance geometries and holds the live InstanceStore for each one.
+ *
+ * A geometry's id is its slot in the lists, so looking a geometry or its instances up by id is a list get, and
+ * looking up a geometry's id is a check that its geometryID still points back at it. Unregistering a geometry frees
+ * its slot and drops its instances. The slot stays in the lists with no geometry and an empty store so the ids of
+ * the others don't move, and the lowest free slot is handed to the next geometry registered.
+ *
+ * Only keeps the books, the renderer is in charge of the GL side. Simulation side only, under instanceLock.
+ */
+public class GeometryRegistry
+{
+	private final ArrayList<Geometry> geometries  = new ArrayList<Geometry>();
+	private final ArrayList<InstanceStore> stores = new ArrayList<InstanceStore>();
+	// Slots with no geometry in them
+	private final BitSet free = new BitSet();
+	private final int initialCapacity;
+
+	/**
+	 * @param initialCapacity number of instances each new store starts with room for
+	 */
+	public GeometryRegistry(int initialCapacity)
+	{
+		this.initialCapacity = initialCapacity;
+	}
+
+	/**
+	 * Give a geometry an id and an empty store, if it doesn't already have them
+	 *
+	 * @return the geometry's id
+	 */
+	public int register(Geometry g)
+	{
+		int id = getID(g);
+		if(id != -1) return id;
+
+		id = free.nextSetBit(0);
+		if(id == -1)
+		{
+			id = geometries.size();
+			geometries.add(g);
+			stores.add(new InstanceStore(id, initialCapacity));
+		}
+		else
+		{
+			free.clear(id);
+			geometries.set(id, g);
+		}
+		g.geometryID = id;
+		return id;
+	}
+
+	/**
+	 * Take a geometry out of the registry along with all of its instances. Its id can be given to the next geometry
+	 * registered, and the geometry's own geometryID goes back to -1.
+	 *
+	 * @return the id it had, or -1 if it wasn't registered
+	 */
+	public int unregister(Geometry g)
+	{
+		int id = getID(g);
+		if(id == -1) return -1;
+
+		geometries.set(id, null);
+		// A fresh store rather than emptying the old one, so the memory of a big one goes with it
+		stores.set(id, new InstanceStore(id, initialCapacity));
+		free.set(id);
+		g.geometryID    = -1;
+		g.num_instances = 0;
+		return id;
+	}
+
+	/**
+	 * The geometry's id, or -1 if it isn't registered
+	 */
+	public int getID(Geometry g)
+	{
+		int id = g.geometryID;
+		if(id < 0 || id >= geometries.size() || geometries.get(id) != g) return -1;
+		return id;
+	}
+
+	/**
+	 * The geometry with the given id, null if the id is free
+	 */
+	public Geometry getGeometry(int id)
+	{
+		return geometries.get(id);
+	}
+
+	/**
+	 * The live instances of the geometry with the given id, empty if the id is free
+	 */
+	public InstanceStore getInstances(int id)
+	{
+		return stores.get(id);
+	}
+
+	/**
+	 * Number of ids in use or free, ids go from 0 up to this
+	 */
+	public int size()
+	{
+		return geometries.size();
+	}
+
+	/**
+	 * Number of geometries registered
+	 */
+	public int getRegisteredCount()
+	{
+		return geometries.size() - free.cardinality();
+	}
+
+	/**
+	 * Every slot's geometry, null for free slots. For publishing, don't change it.
+	 */
+	ArrayList<Geometry> getGeometries()
+	{
+		return geometries;
+	}
+
+	/**
+	 * Every slot's store. For publishing, don't change it.
+	 */
+	ArrayList<InstanceStore> getStores()
+	{
+		return stores;
+	}
+}
@@ -0,0 +1,111 @@
+import poomonkeys.common.Drawable;
+
+/**
+ * HeadlessRenderer is a Renderer for a simulation with no window and no GL, like a dedicated server's matches.
+ * It keeps the instances the simulation asks it to but never draws anything, so nothing about it needs a display
+ * or the JOGL natives. Drawables are initialized when they're registered, as GLRenderer would before drawing them,
+ * since the simulation relies on that, and then forgotten.
+ *
+ * Add it to the SimulationLoop after everything that changes instances, like GLRenderer. Instead of publishing a
+ * snapshot for drawing the end of each tick just settles the stores, which leaves behind which blocks of instances
+ * moved for a SnapshotStreamer to send on. As with GLRenderer physics takes one step per tick.
+ */
+public class HeadlessRenderer extends InstanceRenderer implements Tickable
+{
+	// Same view a GLRenderer has on its default canvas
+	public static final float DEFAULT_VIEW_WIDTH  = 100;
+	public static final float DEFAULT_VIEW_HEIGHT = 100 * 1000f / 1800f;
+
+	public float viewWidth, viewHeight;
+	protected volatile long tickNanos = 1000000000L / SimulationLoop.DEFAULT_TICKS_PER_SECOND;
+
+	public HeadlessRenderer()
+	{
+		this(DEFAULT_VIEW_WIDTH, DEFAULT_VIEW_HEIGHT);
+	}
+
+	public HeadlessRenderer(float viewWidth, float viewHeight)
+	{
+		this(viewWidth, viewHeight, instanceLock);
+	}
+
+	/**
+	 * A renderer with its instances guarded by lock, see InstanceRenderer.getInstanceLock
+	 */
+	public HeadlessRenderer(float viewWidth, float viewHeight, Object lock)
+	{
+		super(lock);
+		this.viewWidth  = viewWidth;
+		this.viewHeight = viewHeight;
+	}
+
+	/**
+	 * End of a SimulationLoop tick, wait for physics to finish its step, settle whatever the tick moved, then let
+	 * physics take the next step
+	 */
+	@Override
+	public void tick(long tick, long tickNanos)
+	{
+		this.tickNanos = tickNanos;
+		boolean held = holdPhysics();
+		settle();
+		if(held)
+		{
+			physics.step();
+		}
+	}
+
+	/**
+	 * Pick up what physics did and settle the stores
+	 */
+	protected void settle()
+	{
+		synchronized(lock)
+		{
+			endTick();
+			for(int g = 0; g < registry.size(); g++)
+			{
+				registry.getInstances(g).settle();
+			}
+		}
+	}
+
+	/**
+	 * The time step for the simulation in milliseconds, always the length of a tick
+	 */
+	@Override
+	public long getTimeSinceLastDraw()
+	{
+		return Math.round(tickNanos / 1000000.0);
+	}
+
+	public void registerDrawable(Drawable d)
+	{
+		synchronized(drawableLock)
+		{
+			_init(d);
+		}
+	}
+
+	private void _init(Drawable d)
+	{
+		if(!d.didInit)
+		{
+			d.init(viewWidth, viewHeight);
+		}
+		for(int i = 0; i < d.drawables.size(); i++)
+		{
+			_init(d.drawables.get(i));
+		}
+	}
+
+	public float getViewWidth()
+	{
+		return viewWidth;
+	}
+
+	public float getViewHeight()
+	{
+		return viewHeight;
+	}
+}
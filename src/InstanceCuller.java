@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import poomonkeys.common.Geometry;
+
+/**
+ * InstanceCuller works out which instances are on screen so the rest don't have to be packed, uploaded or drawn.
+ *
+ * Culling is done in the same blocks of InstanceStore.DIRTY_BLOCK_SIZE instances the dirty tracking uses.
+ * The bounds of each block's positions are kept from snapshot to snapshot and only recomputed for the blocks
+ * that changed, so each frame only the blocks are checked against the view, not every instance. The bounds cover
+ * both the previous and current positions, so they hold for any amount of interpolation between the two.
+ *
+ * Where positions are packed one at a time anyway (the uniform array and fixed pipeline paths) single instances
+ * in visible blocks can also be checked with isVisible. Render thread only.
+ */
+public class InstanceCuller
+{
+	private static final int BLOCK = InstanceStore.DIRTY_BLOCK_SIZE;
+
+	// Bounds of the positions in each block, per geometry. Only the first blocksKnown blocks are up to date.
+	private float[][] blockMinX = new float[0][], blockMaxX = new float[0][];
+	private float[][] blockMinY = new float[0][], blockMaxY = new float[0][];
+	private int[] blocksKnown = new int[0];
+
+	// Per geometry: the blocks with anything on screen, and the range of positions an instance can have and still be on screen
+	private final ArrayList<BitSet> visible = new ArrayList<BitSet>();
+	private float[] left = new float[0], right = new float[0], bottom = new float[0], top = new float[0];
+	private int[] visibleInstances = new int[0];
+
+	/**
+	 * Cull the snapshot's instances against a view from 0, 0 to viewWidth, viewHeight
+	 *
+	 * @param changed true if the snapshot is new since the last call, in which case its dirty blocks are re-measured
+	 * @return the number of instances in blocks that are entirely off screen
+	 */
+	public int cull(InstanceSnapshot snapshot, boolean changed, float viewWidth, float viewHeight)
+	{
+		_ensureGeometries(snapshot.stores.size());
+
+		int culled = 0;
+		for(int g = 0; g < snapshot.stores.size(); g++)
+		{
+			InstanceStore instances = snapshot.stores.get(g);
+			int blocks = (instances.size + BLOCK-1) / BLOCK;
+			_measure(g, instances, changed ? instances.getDirtyBlocks() : null, blocks);
+			_setRange(g, snapshot.geometries.get(g), viewWidth, viewHeight);
+
+			BitSet onScreen = visible.get(g);
+			onScreen.clear();
+			int count = 0;
+			for(int b = 0; b < blocks; b++)
+			{
+				if(blockMaxX[g][b] >= left[g] && blockMinX[g][b] <= right[g] && blockMaxY[g][b] >= bottom[g] && blockMinY[g][b] <= top[g])
+				{
+					onScreen.set(b);
+					count += Math.min(BLOCK, instances.size - b*BLOCK);
+				}
+			}
+			visibleInstances[g] = count;
+			culled += instances.size - count;
+		}
+		return culled;
+	}
+
+	/**
+	 * The blocks of a geometry's instances with anything on screen, as of the last cull
+	 */
+	public BitSet getVisibleBlocks(int g)
+	{
+		return visible.get(g);
+	}
+
+	/**
+	 * The visible blocks of every geometry, by geometry id
+	 */
+	public ArrayList<BitSet> getVisibleBlocks()
+	{
+		return visible;
+	}
+
+	/**
+	 * Number of instances in a geometry's visible blocks
+	 */
+	public int getVisibleInstances(int g)
+	{
+		return visibleInstances[g];
+	}
+
+	/**
+	 * Whether a single instance of a geometry at x, y is on screen
+	 */
+	public boolean isVisible(int g, float x, float y)
+	{
+		return x >= left[g] && x <= right[g] && y >= bottom[g] && y <= top[g];
+	}
+
+	/**
+	 * Recompute the bounds of the changed blocks, and of any blocks that weren't there before
+	 */
+	private void _measure(int g, InstanceStore instances, BitSet changed, int blocks)
+	{
+		if(blockMinX[g].length < blocks)
+		{
+			int length = Math.max(blocks, blockMinX[g].length*2);
+			blockMinX[g] = Arrays.copyOf(blockMinX[g], length);
+			blockMaxX[g] = Arrays.copyOf(blockMaxX[g], length);
+			blockMinY[g] = Arrays.copyOf(blockMinY[g], length);
+			blockMaxY[g] = Arrays.copyOf(blockMaxY[g], length);
+		}
+
+		if(changed != null)
+		{
+			for(int b = changed.nextSetBit(0); b >= 0 && b < blocksKnown[g]; b = changed.nextSetBit(b+1))
+			{
+				_measureBlock(g, instances, b);
+			}
+		}
+		for(int b = blocksKnown[g]; b < blocks; b++)
+		{
+			_measureBlock(g, instances, b);
+		}
+		// Blocks past the end are forgotten so they get measured again if the store grows back into them
+		blocksKnown[g] = blocks;
+	}
+
+	private void _measureBlock(int g, InstanceStore instances, int b)
+	{
+		float[] x = instances.x, y = instances.y, px = instances.px, py = instances.py;
+		float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+
+		int end = Math.min((b+1)*BLOCK, instances.size);
+		for(int i = b*BLOCK; i < end; i++)
+		{
+			minX = Math.min(minX, Math.min(x[i], px[i]));
+			maxX = Math.max(maxX, Math.max(x[i], px[i]));
+			minY = Math.min(minY, Math.min(y[i], py[i]));
+			maxY = Math.max(maxY, Math.max(y[i], py[i]));
+		}
+		blockMinX[g][b] = minX;
+		blockMaxX[g][b] = maxX;
+		blockMinY[g][b] = minY;
+		blockMaxY[g][b] = maxY;
+	}
+
+	/**
+	 * Work out where an instance of the geometry can be and still have some of its vertices on screen.
+	 * Before the geometry has vertices anything goes, and a free geometry id has no instances to check anyway.
+	 */
+	private void _setRange(int g, Geometry geometry, float viewWidth, float viewHeight)
+	{
+		float[] vertices = geometry == null ? null : geometry.vertices;
+		if(vertices == null || vertices.length < 2)
+		{
+			left[g]   = bottom[g] = Float.NEGATIVE_INFINITY;
+			right[g]  = top[g]    = Float.POSITIVE_INFINITY;
+			return;
+		}
+
+		float minX = vertices[0], maxX = vertices[0], minY = vertices[1], maxY = vertices[1];
+		for(int v = 2; v+1 < vertices.length; v += 2)
+		{
+			minX = Math.min(minX, vertices[v]);
+			maxX = Math.max(maxX, vertices[v]);
+			minY = Math.min(minY, vertices[v+1]);
+			maxY = Math.max(maxY, vertices[v+1]);
+		}
+		left[g]   = -maxX;
+		right[g]  = viewWidth - minX;
+		bottom[g] = -maxY;
+		top[g]    = viewHeight - minY;
+	}
+
+	private void _ensureGeometries(int geometries)
+	{
+		int known = blocksKnown.length;
+		if(known >= geometries) return;
+
+		blockMinX   = Arrays.copyOf(blockMinX, geometries);
+		blockMaxX   = Arrays.copyOf(blockMaxX, geometries);
+		blockMinY   = Arrays.copyOf(blockMinY, geometries);
+		blockMaxY   = Arrays.copyOf(blockMaxY, geometries);
+		blocksKnown = Arrays.copyOf(blocksKnown, geometries);
+		left   = Arrays.copyOf(left, geometries);
+		right  = Arrays.copyOf(right, geometries);
+		bottom = Arrays.copyOf(bottom, geometries);
+		top    = Arrays.copyOf(top, geometries);
+		visibleInstances = Arrays.copyOf(visibleInstances, geometries);
+		for(int g = known; g < geometries; g++)
+		{
+			blockMinX[g] = new float[0];
+			blockMaxX[g] = new float[0];
+			blockMinY[g] = new float[0];
+			blockMaxY[g] = new float[0];
+			visible.add(new BitSet());
+		}
+	}
+}
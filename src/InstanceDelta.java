@@ -0,0 +1,34 @@
+import java.util.Arrays;
+
+/**
+ * InstanceDelta is the body of an INSTANCES message: the new positions of some of one geometry's instances, and how
+ * many instances the geometry has now.
+ *
+ * One is reused for every INSTANCES message decoded, so a listener must copy out anything it wants to keep before
+ * it returns. Only the first count entries mean anything, in index order.
+ */
+public class InstanceDelta
+{
+	// The shared id of the geometry, see NetProtocol
+	public int geometryID;
+	// Sequence number to acknowledge the message with
+	public int seq;
+	// Number of instances the geometry has, anything past this has been removed
+	public int size;
+	public int count = 0;
+	public int[] indices = new int[0];
+	public float[] x = new float[0], y = new float[0];
+
+	/**
+	 * Make room for at least capacity entries
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if(indices.length >= capacity) return;
+
+		int length = Math.max(capacity, indices.length*2);
+		indices = Arrays.copyOf(indices, length);
+		x = Arrays.copyOf(x, length);
+		y = Arrays.copyOf(y, length);
+	}
+}
@@ -0,0 +1,313 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * InstanceGrid is a spatial hash over the positions of one InstanceStore's instances, for finding the instances
+ * near a point or inside a box without looking at all of them.
+ *
+ * Space is divided into square cells of cellSize and each cell is hashed into a table of buckets. Every instance is
+ * on a doubly linked list (kept in parallel arrays, like the store) for the bucket of the cell it's in, so adding,
+ * removing and moving an instance is constant time. The store keeps the grid up to date as instances are added,
+ * removed and moved with setPosition. Anything that writes x and y directly is picked up from markDirty the next
+ * time the grid is queried, by re-checking the instances in the marked blocks.
+ *
+ * Positions changed through the store's Movable view only reach the arrays, and so the grid, at pullMovables.
+ * Visitors can move the instances they're given, those are re-filed on the next query, but must not add or remove
+ * instances. Simulation side only, under instanceLock like the store itself.
+ */
+public class InstanceGrid
+{
+	/**
+	 * Called for each instance a query finds
+	 */
+	public interface Visitor
+	{
+		/**
+		 * @return false to stop the query
+		 */
+		public boolean visit(int i);
+	}
+
+	private static final int EMPTY = -1;
+	private static final int BLOCK = InstanceStore.DIRTY_BLOCK_SIZE;
+
+	private final InstanceStore store;
+	private final float cellSize;
+	private final float inverseCellSize;
+
+	// First instance in each bucket, the table is a power of two at least as big as the store
+	private int[] heads;
+	private int mask;
+
+	// Per instance: the bucket list it's on and the cell it was filed under
+	private int[] next, previous;
+	private int[] cellX, cellY;
+	private int size = 0;
+
+	// Blocks of instances that may have moved without the grid being told
+	private final BitSet stale = new BitSet();
+	// Set while visiting, moves are put off until the next query so the lists being walked don't change
+	private boolean querying = false;
+
+	/**
+	 * Build a grid over the store's current instances. Normally made through InstanceStore.getGrid.
+	 */
+	public InstanceGrid(InstanceStore store, float cellSize)
+	{
+		this.store    = store;
+		this.cellSize = cellSize;
+		this.inverseCellSize = 1/cellSize;
+
+		int capacity = store.capacity();
+		next     = new int[capacity];
+		previous = new int[capacity];
+		cellX    = new int[capacity];
+		cellY    = new int[capacity];
+		_rehash(capacity);
+		for(int i = 0; i < store.size; i++)
+		{
+			add(i);
+		}
+	}
+
+	public float getCellSize()
+	{
+		return cellSize;
+	}
+
+	/**
+	 * Instance i has just been added to the store
+	 */
+	void add(int i)
+	{
+		if(i >= next.length)
+		{
+			_grow(store.capacity());
+		}
+		cellX[i] = _cell(store.x[i]);
+		cellY[i] = _cell(store.y[i]);
+		_link(i, _bucket(cellX[i], cellY[i]));
+		size = i+1;
+	}
+
+	/**
+	 * Instance i has been removed from the store and the last instance, last, moved into its place
+	 */
+	void remove(int i, int last)
+	{
+		_unlink(i);
+		if(i != last)
+		{
+			// The last instance keeps its cell, it just goes by a new index
+			int bucket = _bucket(cellX[last], cellY[last]);
+			_unlink(last);
+			cellX[i] = cellX[last];
+			cellY[i] = cellY[last];
+			_link(i, bucket);
+			if(stale.get(last/BLOCK))
+			{
+				stale.set(i/BLOCK);
+			}
+		}
+		size = last;
+	}
+
+	/**
+	 * Instance i has moved to wherever the store says it is now
+	 */
+	void move(int i)
+	{
+		if(querying)
+		{
+			stale.set(i/BLOCK);
+			return;
+		}
+		int x = _cell(store.x[i]);
+		int y = _cell(store.y[i]);
+		if(x == cellX[i] && y == cellY[i]) return;
+
+		_unlink(i);
+		cellX[i] = x;
+		cellY[i] = y;
+		_link(i, _bucket(x, y));
+	}
+
+	/**
+	 * Instances [from, to) may have been moved without telling the grid
+	 */
+	void markStale(int from, int to)
+	{
+		if(from >= to) return;
+		stale.set(from / BLOCK, (to-1) / BLOCK + 1);
+	}
+
+	/**
+	 * Visit every instance within radius of x, y
+	 *
+	 * @return the number of instances visited
+	 */
+	public int queryRadius(float x, float y, float radius, Visitor visitor)
+	{
+		return _query(x-radius, y-radius, x+radius, y+radius, x, y, radius*radius, visitor);
+	}
+
+	/**
+	 * Visit every instance inside the box from minX, minY to maxX, maxY, edges included
+	 *
+	 * @return the number of instances visited
+	 */
+	public int queryBox(float minX, float minY, float maxX, float maxY, Visitor visitor)
+	{
+		return _query(minX, minY, maxX, maxY, 0, 0, -1, visitor);
+	}
+
+	/**
+	 * Visit the instances in the box that are also within the circle, if radiusSquared isn't negative
+	 */
+	private int _query(float minX, float minY, float maxX, float maxY, float circleX, float circleY, float radiusSquared, Visitor visitor)
+	{
+		_sync();
+		querying = true;
+		try
+		{
+			return _visit(minX, minY, maxX, maxY, circleX, circleY, radiusSquared, visitor);
+		}
+		finally
+		{
+			querying = false;
+		}
+	}
+
+	private int _visit(float minX, float minY, float maxX, float maxY, float circleX, float circleY, float radiusSquared, Visitor visitor)
+	{
+		float[] x = store.x, y = store.y;
+
+		int fromX = _cell(minX), toX = _cell(maxX);
+		int fromY = _cell(minY), toY = _cell(maxY);
+		long cells = ((long)toX - fromX + 1) * ((long)toY - fromY + 1);
+
+		int visited = 0;
+		if(cells > size)
+		{
+			// Checking every instance is less work than checking every cell
+			for(int i = 0; i < size; i++)
+			{
+				if(_inside(x[i], y[i], minX, minY, maxX, maxY, circleX, circleY, radiusSquared))
+				{
+					visited++;
+					if(!visitor.visit(i)) return visited;
+				}
+			}
+			return visited;
+		}
+
+		// Counted in longs so a box reaching the edge of int range can't wrap around
+		for(long cy = fromY; cy <= toY; cy++)
+		{
+			for(long cx = fromX; cx <= toX; cx++)
+			{
+				int i = heads[_bucket((int)cx, (int)cy)];
+				while(i != EMPTY)
+				{
+					// Other cells can share the bucket, only look at this cell's instances
+					if(cellX[i] == cx && cellY[i] == cy && _inside(x[i], y[i], minX, minY, maxX, maxY, circleX, circleY, radiusSquared))
+					{
+						visited++;
+						if(!visitor.visit(i)) return visited;
+					}
+					i = next[i];
+				}
+			}
+		}
+		return visited;
+	}
+
+	private static boolean _inside(float x, float y, float minX, float minY, float maxX, float maxY, float circleX, float circleY, float radiusSquared)
+	{
+		if(x < minX || x > maxX || y < minY || y > maxY) return false;
+		if(radiusSquared < 0) return true;
+
+		float dx = x - circleX, dy = y - circleY;
+		return dx*dx + dy*dy <= radiusSquared;
+	}
+
+	/**
+	 * Re-file the instances in stale blocks under the cells they're in now
+	 */
+	private void _sync()
+	{
+		int block = stale.nextSetBit(0);
+		while(block >= 0)
+		{
+			int end = Math.min((block+1)*BLOCK, size);
+			for(int i = block*BLOCK; i < end; i++)
+			{
+				move(i);
+			}
+			block = stale.nextSetBit(block+1);
+		}
+		stale.clear();
+	}
+
+	private int _cell(float coordinate)
+	{
+		return (int)Math.floor(coordinate * inverseCellSize);
+	}
+
+	private int _bucket(int x, int y)
+	{
+		return (x * 73856093 ^ y * 19349663) & mask;
+	}
+
+	private void _link(int i, int bucket)
+	{
+		int head = heads[bucket];
+		next[i]     = head;
+		previous[i] = EMPTY;
+		if(head != EMPTY)
+		{
+			previous[head] = i;
+		}
+		heads[bucket] = i;
+	}
+
+	private void _unlink(int i)
+	{
+		if(previous[i] != EMPTY)
+		{
+			next[previous[i]] = next[i];
+		}
+		else
+		{
+			heads[_bucket(cellX[i], cellY[i])] = next[i];
+		}
+		if(next[i] != EMPTY)
+		{
+			previous[next[i]] = previous[i];
+		}
+	}
+
+	/**
+	 * Make room for capacity instances, with a bucket table to match
+	 */
+	private void _grow(int capacity)
+	{
+		next     = Arrays.copyOf(next, capacity);
+		previous = Arrays.copyOf(previous, capacity);
+		cellX    = Arrays.copyOf(cellX, capacity);
+		cellY    = Arrays.copyOf(cellY, capacity);
+		_rehash(capacity);
+		for(int i = 0; i < size; i++)
+		{
+			_link(i, _bucket(cellX[i], cellY[i]));
+		}
+	}
+
+	private void _rehash(int capacity)
+	{
+		int buckets = Integer.highestOneBit(Math.max(16, capacity-1)) << 1;
+		heads = new int[buckets];
+		Arrays.fill(heads, EMPTY);
+		mask = buckets-1;
+	}
+}
@@ -0,0 +1,413 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import poomonkeys.common.Geometry;
+import poomonkeys.common.Movable;
+import poomonkeys.common.Renderer;
+
+/**
+ * InstanceRenderer is the simulation side of a Renderer: the instance geometries and the live InstanceStores
+ * holding the positions and velocities of their instances. GLRenderer draws them, HeadlessRenderer only keeps them
+ * for a simulation with nothing to draw to.
+ *
+ * Instances are changed through addGeometryInstance, removeInstanceGeometry and the stores from getInstances,
+ * always under the renderer's instance lock, see getInstanceLock. That's Renderer.instanceLock unless the renderer
+ * was given one of its own, which lets simulations that have nothing to do with each other, like a server's
+ * matches, run without waiting on each other.
+ *
+ * PhysicsController comes through getMovables at the start of every step, where a PhysicsGate holds it to one
+ * step per tick once the renderer is being ticked, see holdPhysics.
+ *
+ * On a client the instances mirror the host's simulation instead, see setMirroring.
+ */
+public abstract class InstanceRenderer implements Renderer
+{
+	// Starting size for instance storage, grows as needed
+	protected static final int INITIAL_INSTANCE_CAPACITY = 64;
+	// What physics is handed for a geometry whose instances it mustn't move
+	private static final Movable[] NO_MOVABLES = new Movable[0];
+	// Longest a tick waits on physics to finish its step before going on without it
+	protected static final long PHYSICS_TIMEOUT_NANOS = 1000000000L;
+
+	// The simple geometries to draw instances of, by id, each with the store holding the position and velocity of its instances.
+	// Each instance geometry can be used to draw many instances.
+	protected final GeometryRegistry registry = new GeometryRegistry(INITIAL_INSTANCE_CAPACITY);
+	// Movable views of the instance stores, only built if something asks for them through getMovables
+	private ArrayList<Movable[]> movables = null;
+	// Instances slower than sleepSpeed for sleepTicks ticks in a row are put to sleep, never if sleepSpeed is 0
+	private float sleepSpeed = 0;
+	private int sleepTicks = 0;
+	// The instances are somebody else's simulation, only mirrorInstances and the stores change them
+	private boolean mirroring = false;
+	// Guards the instances, Renderer.instanceLock unless given another
+	protected final Object lock;
+	// Stops PhysicsController at the start of each step until the tick lets it through
+	protected final PhysicsGate physics = new PhysicsGate();
+
+	public InstanceRenderer()
+	{
+		this(instanceLock);
+	}
+
+	/**
+	 * A renderer whose instances are guarded by lock instead of the shared Renderer.instanceLock
+	 */
+	public InstanceRenderer(Object lock)
+	{
+		this.lock = lock;
+	}
+
+	/**
+	 * The lock to hold while changing or reading the live instances from the simulation side
+	 */
+	public Object getInstanceLock()
+	{
+		return lock;
+	}
+
+	/**
+	 * Add an instance of some geometry so it will be drawn, registering the geometry if it's new
+	 */
+	@Override
+	public void addGeometryInstance(float x, float y, Geometry geom)
+	{
+		synchronized(lock)
+		{
+			if(mirroring) return;
+
+			InstanceStore instances = _instancesOf(geom);
+			instances.add(x, y);
+			_instancesChanged(geom, instances);
+		}
+	}
+
+	/**
+	 * Add many instances of some geometry at once, from x, y pairs in positions starting at offset.
+	 * Takes instanceLock once for the lot, so spawning a burst of debris costs one call instead of one per piece.
+	 *
+	 * @return the index of the first new instance, the rest follow it, -1 if mirroring
+	 */
+	public int addGeometryInstances(float[] positions, int offset, int count, Geometry geom)
+	{
+		synchronized(lock)
+		{
+			if(mirroring) return -1;
+
+			return mirrorInstances(positions, offset, count, geom);
+		}
+	}
+
+	/**
+	 * addGeometryInstances for whatever is mirroring somebody else's instances here, which goes ahead while mirroring
+	 */
+	int mirrorInstances(float[] positions, int offset, int count, Geometry geom)
+	{
+		synchronized(lock)
+		{
+			InstanceStore instances = _instancesOf(geom);
+			int first = instances.addAll(positions, offset, count);
+			_instancesChanged(geom, instances);
+			return first;
+		}
+	}
+
+	/**
+	 * The store for a geometry's instances, registering the geometry if this is its first instance
+	 */
+	private InstanceStore _instancesOf(Geometry geom)
+	{
+		if(registry.getID(geom) == -1)
+		{
+			int id = registry.register(geom);
+			geometryRegistered(geom);
+			if(movables != null && movables.size() == id)
+			{
+				// Filled in by _instancesChanged
+				movables.add(null);
+			}
+		}
+		return registry.getInstances(geom.geometryID);
+	}
+
+	private void _instancesChanged(Geometry geom, InstanceStore instances)
+	{
+		geom.num_instances = instances.size;
+
+		if(movables != null)
+		{
+			// The Movable view is replaced when the store grows
+			movables.set(geom.geometryID, _movablesOf(instances));
+		}
+	}
+
+	/**
+	 * Removes an instance of some geometry
+	 */
+	@Override
+	public boolean removeInstanceGeometry(int g, int i)
+	{
+		synchronized(lock)
+		{
+			InstanceStore instances = registry.getInstances(g);
+			Geometry geometry = registry.getGeometry(g);
+
+			if(instances.size <= i)
+			{
+				System.out.println("Trying to delete past the end of list");
+				return false;
+			}
+
+			instances.remove(i);
+			geometry.num_instances = instances.size;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Remove every instance of a geometry whose index is set in indices, all under one lock.
+	 * Unlike calling removeInstanceGeometry in a loop the indices all refer to the instances as they were before
+	 * the call, so nothing is removed by mistake when earlier removals move instances around.
+	 *
+	 * @return the number of instances removed
+	 */
+	public int removeInstances(int g, BitSet indices)
+	{
+		synchronized(lock)
+		{
+			InstanceStore instances = registry.getInstances(g);
+			int removed = instances.removeAll(indices);
+			if(removed > 0)
+			{
+				registry.getGeometry(g).num_instances = instances.size;
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Remove the instances of a geometry at the first count indices, sorted lowest first, all under one lock.
+	 * See removeInstances(int, BitSet).
+	 *
+	 * @return the number of instances removed
+	 */
+	public int removeInstances(int g, int[] indices, int count)
+	{
+		synchronized(lock)
+		{
+			InstanceStore instances = registry.getInstances(g);
+			int removed = instances.removeAll(indices, count);
+			if(removed > 0)
+			{
+				registry.getGeometry(g).num_instances = instances.size;
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Get the id of an instance geometry, -1 if it has no instances here
+	 */
+	@Override
+	public int getGeometryID(Geometry geom)
+	{
+		return registry.getID(geom);
+	}
+
+	/**
+	 * Stop drawing a geometry and drop all of its instances. The next new geometry can be given its id.
+	 * Adding an instance of it later registers it again as if it were new.
+	 *
+	 * @return false if the geometry had no instances here
+	 */
+	public boolean unregisterGeometry(Geometry geom)
+	{
+		synchronized(lock)
+		{
+			int id = registry.unregister(geom);
+			if(id == -1) return false;
+
+			if(movables != null)
+			{
+				movables.set(id, _movablesOf(registry.getInstances(id)));
+			}
+			geometryUnregistered(geom, id);
+			return true;
+		}
+	}
+
+	/**
+	 * Called under instanceLock when a geometry is given an id
+	 */
+	protected void geometryRegistered(Geometry geom) {}
+
+	/**
+	 * Called under instanceLock when a geometry gives up the given id
+	 */
+	protected void geometryUnregistered(Geometry geom, int id) {}
+
+	@Override
+	public Geometry getGeometry(int id)
+	{
+		return registry.getGeometry(id);
+	}
+
+	/**
+	 * Number of geometry ids handed out, ids go from 0 up to this. Some may be free, with no geometry.
+	 */
+	public int getGeometryCount()
+	{
+		return registry.size();
+	}
+
+	/**
+	 * Get the live instances of the geometry with the given id.
+	 * Only change them from the simulation side while holding instanceLock, and call markDirty for anything moved directly.
+	 */
+	public InstanceStore getInstances(int g)
+	{
+		return registry.getInstances(g);
+	}
+
+	/**
+	 * Get the spatial index of the live instances of the geometry with the given id, for finding the instances
+	 * near a point or in a box. Only query it from the simulation side while holding instanceLock.
+	 */
+	public InstanceGrid getGrid(int g)
+	{
+		return registry.getInstances(g).getGrid();
+	}
+
+	/**
+	 * Pick up anything that was moved through the Movable views and put instances that have come to rest to sleep.
+	 * Call under instanceLock at the end of a tick.
+	 */
+	protected void endTick()
+	{
+		for(int g = 0; g < registry.size(); g++)
+		{
+			InstanceStore instances = registry.getInstances(g);
+			instances.pullMovables();
+			if(sleepSpeed > 0)
+			{
+				instances.updateSleep(sleepSpeed, sleepTicks);
+			}
+		}
+	}
+
+	/**
+	 * Put instances to sleep once they've been slower than speed for ticks ticks in a row, see InstanceStore.updateSleep.
+	 * Sleeping instances aren't picked up from the Movable views or uploaded again until they wake. A speed of 0
+	 * turns it off and wakes everything.
+	 *
+	 * Only for the side running the simulation, sleep reorders instances so it can't be used where their indices
+	 * have to match somebody else's, like on a client receiving snapshots.
+	 */
+	public void setSleep(float speed, int ticks)
+	{
+		synchronized(lock)
+		{
+			sleepSpeed = speed;
+			sleepTicks = ticks;
+			if(speed <= 0)
+			{
+				for(int g = 0; g < registry.size(); g++)
+				{
+					registry.getInstances(g).wakeAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mirror somebody else's simulation, like a client does the host's: physics is handed no instances to move, and
+	 * the local simulation can't add any, so explosions here don't make dirt the host doesn't know about. Only
+	 * mirrorInstances, removeInstances and the stores change them. Sleep should be off, see setSleep.
+	 */
+	public void setMirroring(boolean mirroring)
+	{
+		synchronized(lock)
+		{
+			this.mirroring = mirroring;
+			if(movables != null)
+			{
+				for(int g = 0; g < registry.size(); g++)
+				{
+					movables.set(g, _movablesOf(registry.getInstances(g)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The Movables physics is handed for a store, none while mirroring
+	 */
+	private Movable[] _movablesOf(InstanceStore instances)
+	{
+		return mirroring ? NO_MOVABLES : instances.getMovables();
+	}
+
+	/**
+	 * Wake the sleeping instances of every geometry within radius of x, y, before something disturbs them
+	 *
+	 * @return the number of instances woken
+	 */
+	public int wakeInstances(float x, float y, float radius)
+	{
+		synchronized(lock)
+		{
+			int woken = 0;
+			for(int g = 0; g < registry.size(); g++)
+			{
+				woken += registry.getInstances(g).wakeNear(x, y, radius);
+			}
+			return woken;
+		}
+	}
+
+	/**
+	 * Start of a tick: hold physics to one step per tick from now on, and wait for it to finish the step the last
+	 * tick let it take. Call physics.step once the tick is done with the instances if this returns true.
+	 *
+	 * @return false if there's no physics coming to the gate yet, or it didn't finish within PHYSICS_TIMEOUT_NANOS
+	 */
+	protected boolean holdPhysics()
+	{
+		physics.hold();
+		return physics.isAttached() && physics.await(PHYSICS_TIMEOUT_NANOS);
+	}
+
+	/**
+	 * Done with the instances for good: the physics thread is let go from the gate and ends at its next step
+	 * instead of waiting there forever. Call it when throwing the renderer away.
+	 */
+	public void retirePhysics()
+	{
+		physics.close();
+	}
+
+	/**
+	 * Movable views of the instance stores for code that still works on Movable objects.
+	 * The views are only built the first time they are asked for, changes to them are picked up by endTick.
+	 * Simulation side only.
+	 *
+	 * PhysicsController calls this at the start of every step, and is held here until the tick lets it take the step.
+ * Once retirePhysics has been called it gets a PhysicsGate.ClosedException instead of the Movables.
+	 */
+	@Override
+	public ArrayList<Movable[]> getMovables()
+	{
+		physics.arrive();
+		synchronized(lock)
+		{
+			if(movables == null)
+			{
+				movables = new ArrayList<Movable[]>();
+				for(int g = 0; g < registry.size(); g++)
+				{
+					movables.add(_movablesOf(registry.getInstances(g)));
+				}
+			}
+			return movables;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+import java.util.ArrayList;
+import poomonkeys.common.Geometry;
+
+/**
+ * A copy of every instance store and instanced geometry, as published by the simulation for the renderer to draw.
+ *
+ * Once published a snapshot is never modified until the renderer hands it back, see SnapshotExchange.
+ * The dirty blocks of each store are the blocks that changed since the last snapshot the renderer took.
+ * Those are also the only blocks where x, y and px, py differ, and so the only ones that need re-uploading
+ * while interpolating between the two.
+ */
+public class InstanceSnapshot
+{
+	public final ArrayList<Geometry> geometries   = new ArrayList<Geometry>();
+	public final ArrayList<InstanceStore> stores  = new ArrayList<InstanceStore>();
+
+	// Incremented with every publish, so the renderer can tell which state it is drawing
+	public long version = 0;
+	// When this was published (System.nanoTime) and the length of the simulation tick it ended
+	// A tickNanos of 0 means the state isn't tick based and shouldn't be interpolated
+	public long publishTime = 0;
+	public long tickNanos = 0;
+
+	// Set by the writer when published, cleared by the renderer when it takes the snapshot
+	volatile boolean fresh = false;
+}
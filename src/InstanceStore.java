@@ -0,0 +1,569 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import poomonkeys.common.Movable;
+
+/**
+ * InstanceStore holds the position and velocity of every instance of a single instanced Geometry.
+ *
+ * The data is kept in parallel primitive arrays (structure-of-arrays) rather than one Movable per instance.
+ * Spawning an instance allocates nothing and packing positions for upload is a linear scan over x and y.
+ *
+ * Instances are always packed into [0, size). Removing an instance moves the last instance into its slot.
+ * The arrays start small and double whenever an add would overrun them.
+ *
+ * Positions that change are tracked in blocks of DIRTY_BLOCK_SIZE instances so that only those need to be uploaded.
+ * Anything that writes to x or y directly should call markDirty for the instances it changed.
+ *
+ * px and py hold each instance's position as of the previous simulation tick so the renderer can interpolate
+ * between ticks. settle() brings them up to date for the blocks that moved, see SnapshotExchange.publish.
+ *
+ * Once getGrid has been called the instances are also kept in an InstanceGrid for neighborhood queries.
+ *
+ * Instances that come to rest can be put to sleep by updateSleep. Sleeping instances are kept packed at the front,
+ * in [0, sleeping), and awake ones after them in [sleeping, size). Nothing pulled from the Movable view touches the
+ * sleeping region, so once it has been uploaded it stays clean and is never uploaded again until something in it
+ * wakes. Putting an instance to sleep or waking it swaps it across the boundary, so indices aren't stable while
+ * sleep is in use.
+ */
+public class InstanceStore
+{
+	public static final int DIRTY_BLOCK_SIZE = 256;
+	// Cell size of the spatial index, a few pieces of dirt across
+	public static final float GRID_CELL_SIZE = 2;
+	// Slower than this, in the units of vx and vy, for this many ticks in a row and an instance goes to sleep
+	public static final float DEFAULT_SLEEP_SPEED = 0.001f;
+	public static final int DEFAULT_SLEEP_TICKS = 30;
+
+	// The id of the Geometry these are instances of
+	public final int geometryID;
+
+	public float[] x, y;
+	public float[] px, py;
+	public float[] vx, vy;
+	public int size = 0;
+	// Instances [0, sleeping) are asleep
+	public int sleeping = 0;
+	// Ticks each awake instance has been slower than the sleep speed for
+	private short[] resting;
+
+	// Movable view of the instances for code that still works on Movable objects (PhysicsController)
+	// Only built if somebody asks for it, after that it is kept in step with the arrays.
+	private Movable[] movables = null;
+	// Spatial index of the positions, only built if somebody asks for it
+	private InstanceGrid grid = null;
+
+	// One bit per DIRTY_BLOCK_SIZE instances whose positions have changed since the last clearDirty
+	private BitSet dirtyBlocks = new BitSet();
+	// Blocks whose previous positions were brought up to date by the last settle
+	private BitSet settledBlocks = new BitSet();
+
+	public InstanceStore(int geometryID, int capacity)
+	{
+		this.geometryID = geometryID;
+		x  = new float[capacity];
+		y  = new float[capacity];
+		px = new float[capacity];
+		py = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		resting = new short[capacity];
+	}
+
+	public int capacity()
+	{
+		return x.length;
+	}
+
+	/**
+	 * Add an instance at x, y with no velocity
+	 *
+	 * @return the index of the new instance
+	 */
+	public int add(float newX, float newY)
+	{
+		ensureCapacity(size+1);
+		
+		int i = size;
+		x[i]  = newX;
+		y[i]  = newY;
+		px[i] = newX;
+		py[i] = newY;
+		vx[i] = 0;
+		vy[i] = 0;
+		resting[i] = 0;
+		size++;
+		_dirty(i);
+
+		if(grid != null)
+		{
+			grid.add(i);
+		}
+
+		if(movables != null)
+		{
+			_pushMovable(i);
+		}
+
+		return i;
+	}
+
+	/**
+	 * Add count instances with no velocity, from x, y pairs in positions starting at offset
+	 *
+	 * @return the index of the first new instance, the rest follow it
+	 */
+	public int addAll(float[] positions, int offset, int count)
+	{
+		ensureCapacity(size+count);
+
+		int first = size;
+		for(int i = first, p = offset; i < first+count; i++, p += 2)
+		{
+			x[i]  = positions[p];
+			y[i]  = positions[p+1];
+			px[i] = x[i];
+			py[i] = y[i];
+			vx[i] = 0;
+			vy[i] = 0;
+			resting[i] = 0;
+		}
+		size += count;
+		if(count > 0)
+		{
+			dirtyBlocks.set(first / DIRTY_BLOCK_SIZE, (size-1) / DIRTY_BLOCK_SIZE + 1);
+		}
+
+		for(int i = first; i < size; i++)
+		{
+			if(grid != null)
+			{
+				grid.add(i);
+			}
+			if(movables != null)
+			{
+				_pushMovable(i);
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Remove the instance at index i by moving the last instance into its place.
+	 * A sleeping instance is first swapped with the last sleeping one so the sleeping region stays packed.
+	 */
+	public void remove(int i)
+	{
+		if(i < sleeping)
+		{
+			sleeping--;
+			_swap(i, sleeping);
+			i = sleeping;
+		}
+
+		size--;
+		x[i]  = x[size];
+		y[i]  = y[size];
+		px[i] = px[size];
+		py[i] = py[size];
+		vx[i] = vx[size];
+		vy[i] = vy[size];
+		resting[i] = resting[size];
+		if(i < size)
+		{
+			_dirty(i);
+		}
+
+		if(grid != null)
+		{
+			grid.remove(i, size);
+		}
+
+		if(movables != null)
+		{
+			// Swap rather than null out so the Movable can be reused by the next add
+			Movable removed = movables[i];
+			movables[i] = movables[size];
+			movables[size] = removed;
+		}
+	}
+
+	/**
+	 * Remove every instance whose index is set in indices. Indices past the end are ignored.
+	 * Works from the highest index down so the instances moved into the gaps are never ones being removed,
+	 * sleeping ones included since they're only swapped with higher indices.
+	 *
+	 * @return the number of instances removed
+	 */
+	public int removeAll(BitSet indices)
+	{
+		int removed = 0;
+		for(int i = indices.previousSetBit(size-1); i >= 0; i = indices.previousSetBit(i-1))
+		{
+			remove(i);
+			removed++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove the instances at the first count indices, which must be sorted lowest first. 
+	 * Repeated indices and indices past the end are ignored.
+	 *
+	 * @return the number of instances removed
+	 */
+	public int removeAll(int[] indices, int count)
+	{
+		int removed = 0;
+		int last = Integer.MAX_VALUE;
+		for(int n = count-1; n >= 0; n--)
+		{
+			int i = indices[n];
+			if(i == last || i >= size) continue;
+			remove(i);
+			removed++;
+			last = i;
+		}
+		return removed;
+	}
+
+	/**
+	 * Move the instance at index i, and its Movable so pullMovables doesn't move it back
+	 */
+	public void setPosition(int i, float newX, float newY)
+	{
+		x[i] = newX;
+		y[i] = newY;
+		_dirty(i);
+		if(movables != null)
+		{
+			_pushMovable(i);
+		}
+
+		if(grid != null)
+		{
+			grid.move(i);
+		}
+	}
+
+	public void markDirty(int i)
+	{
+		_dirty(i);
+		if(grid != null)
+		{
+			grid.markStale(i, i+1);
+		}
+	}
+
+	/**
+	 * Mark instances [from, to) as changed
+	 */
+	public void markDirty(int from, int to)
+	{
+		if(from >= to) return;
+		dirtyBlocks.set(from / DIRTY_BLOCK_SIZE, (to-1) / DIRTY_BLOCK_SIZE + 1);
+		if(grid != null)
+		{
+			grid.markStale(from, to);
+		}
+	}
+
+	/**
+	 * Mark a changed position that the grid already knows about
+	 */
+	private void _dirty(int i)
+	{
+		dirtyBlocks.set(i / DIRTY_BLOCK_SIZE);
+	}
+
+	public void markAllDirty()
+	{
+		markDirty(0, size);
+	}
+
+	public void clearDirty()
+	{
+		dirtyBlocks.clear();
+	}
+
+	/**
+	 * Blocks of DIRTY_BLOCK_SIZE instances that have changed since the last clearDirty
+	 */
+	public BitSet getDirtyBlocks()
+	{
+		return dirtyBlocks;
+	}
+
+	/**
+	 * Blocks whose previous positions were changed by the last settle
+	 */
+	public BitSet getSettledBlocks()
+	{
+		return settledBlocks;
+	}
+
+	/**
+	 * End of a tick: the current positions of the dirty blocks become their previous positions and the dirty blocks are cleared.
+	 */
+	public void settle()
+	{
+		settledBlocks.clear();
+		int block = dirtyBlocks.nextSetBit(0);
+		while(block >= 0)
+		{
+			int endBlock = dirtyBlocks.nextClearBit(block);
+			int from = block * DIRTY_BLOCK_SIZE;
+			int to   = Math.min(endBlock * DIRTY_BLOCK_SIZE, size);
+			if(from < to)
+			{
+				System.arraycopy(x, from, px, from, to-from);
+				System.arraycopy(y, from, py, from, to-from);
+			}
+			block = dirtyBlocks.nextSetBit(endBlock);
+		}
+		settledBlocks.or(dirtyBlocks);
+		dirtyBlocks.clear();
+	}
+
+	/**
+	 * Make sure there is room for at least minCapacity instances, growing the arrays if there isn't
+	 */
+	public void ensureCapacity(int minCapacity)
+	{
+		if(minCapacity <= capacity()) return;
+		
+		int newCapacity = Math.max(minCapacity, capacity()*2);
+		x  = Arrays.copyOf(x, newCapacity);
+		y  = Arrays.copyOf(y, newCapacity);
+		px = Arrays.copyOf(px, newCapacity);
+		py = Arrays.copyOf(py, newCapacity);
+		vx = Arrays.copyOf(vx, newCapacity);
+		vy = Arrays.copyOf(vy, newCapacity);
+		resting = Arrays.copyOf(resting, newCapacity);
+		
+		if(movables != null)
+		{
+			movables = Arrays.copyOf(movables, newCapacity);
+		}
+	}
+
+	/**
+	 * Get the spatial index of these instances, building it the first time
+	 */
+	public InstanceGrid getGrid()
+	{
+		if(grid == null)
+		{
+			grid = new InstanceGrid(this, GRID_CELL_SIZE);
+		}
+		return grid;
+	}
+
+	/**
+	 * Get the Movable view of these instances.
+	 * The array is replaced when the store grows so don't hold on to it across adds.
+	 * Changes made to the Movables are copied back into the arrays by pullMovables.
+	 */
+	public Movable[] getMovables()
+	{
+		if(movables == null)
+		{
+			movables = new Movable[capacity()];
+			for(int i = 0; i < size; i++)
+			{
+				_pushMovable(i);
+			}
+		}
+		return movables;
+	}
+
+	/**
+	 * Copy any changes made through the Movable view back into the arrays, for the awake instances.
+	 * Sleeping instances keep the positions they went to sleep with, see updateSleep.
+	 */
+	public void pullMovables()
+	{
+		if(movables == null) return;
+
+		for(int i = sleeping; i < size; i++)
+		{
+			Movable m = movables[i];
+			if(m.x != x[i] || m.y != y[i])
+			{
+				x[i] = m.x;
+				y[i] = m.y;
+				markDirty(i);
+			}
+			vx[i] = m.vx;
+			vy[i] = m.vy;
+		}
+	}
+
+	/**
+	 * End of a tick, after pullMovables: wake sleeping instances that have been given a velocity over speed, and put
+	 * awake ones that have been slower than speed for ticks ticks in a row to sleep.
+	 *
+	 * A sleeping instance's velocity is read from its Movable if there is one, since that's where physics pushes it.
+	 *
+	 * @return the number of instances that went to sleep or woke
+	 */
+	public int updateSleep(float speed, int ticks)
+	{
+		float speed2 = speed*speed;
+		int changed = 0;
+
+		// From the top down, so what's swapped into i from the end of the region has already been looked at
+		for(int i = sleeping-1; i >= 0; i--)
+		{
+			float svx = movables != null ? movables[i].vx : vx[i];
+			float svy = movables != null ? movables[i].vy : vy[i];
+			if(svx*svx + svy*svy > speed2)
+			{
+				_wake(i);
+				changed++;
+			}
+		}
+
+		// From the bottom up, so what's swapped into i from the start of the region has already been looked at
+		for(int i = sleeping; i < size; i++)
+		{
+			if(vx[i]*vx[i] + vy[i]*vy[i] > speed2)
+			{
+				resting[i] = 0;
+				continue;
+			}
+			if(++resting[i] < ticks) continue;
+
+			vx[i] = 0;
+			vy[i] = 0;
+			if(movables != null)
+			{
+				movables[i].vx = 0;
+				movables[i].vy = 0;
+			}
+			_swap(i, sleeping);
+			sleeping++;
+			changed++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Wake every sleeping instance within radius of x, y, for when something is about to disturb them like an
+	 * explosion or the terrain under them changing
+	 *
+	 * @return the number of instances woken
+	 */
+	public int wakeNear(float nearX, float nearY, float radius)
+	{
+		if(sleeping == 0) return 0;
+
+		final int[][] found = {new int[16]};
+		final int[] count = {0};
+		getGrid().queryRadius(nearX, nearY, radius, new InstanceGrid.Visitor()
+		{
+			public boolean visit(int i)
+			{
+				if(i < sleeping)
+				{
+					if(count[0] == found[0].length)
+					{
+						found[0] = Arrays.copyOf(found[0], count[0]*2);
+					}
+					found[0][count[0]++] = i;
+				}
+				return true;
+			}
+		});
+
+		// Waking swaps with the end of the sleeping region, so go from the top down as updateSleep does
+		Arrays.sort(found[0], 0, count[0]);
+		for(int n = count[0]-1; n >= 0; n--)
+		{
+			_wake(found[0][n]);
+		}
+		return count[0];
+	}
+
+	/**
+	 * Wake every instance, leaving them where they are
+	 */
+	public void wakeAll()
+	{
+		for(int i = 0; i < sleeping; i++)
+		{
+			resting[i] = 0;
+			if(movables != null)
+			{
+				_pushMovable(i);
+			}
+		}
+		sleeping = 0;
+	}
+
+	/**
+	 * Move the sleeping instance at i to the front of the awake region and let it go on from where it went to sleep
+	 */
+	private void _wake(int i)
+	{
+		sleeping--;
+		_swap(i, sleeping);
+		i = sleeping;
+		resting[i] = 0;
+		if(movables != null)
+		{
+			// Physics may have nudged it while it slept, only the velocity it was given counts
+			Movable m = movables[i];
+			m.x = x[i];
+			m.y = y[i];
+			vx[i] = m.vx;
+			vy[i] = m.vy;
+		}
+	}
+
+	/**
+	 * Swap the instances at i and j, Movables included
+	 */
+	private void _swap(int i, int j)
+	{
+		if(i == j) return;
+
+		float f;
+		f = x[i];  x[i]  = x[j];  x[j]  = f;
+		f = y[i];  y[i]  = y[j];  y[j]  = f;
+		f = px[i]; px[i] = px[j]; px[j] = f;
+		f = py[i]; py[i] = py[j]; py[j] = f;
+		f = vx[i]; vx[i] = vx[j]; vx[j] = f;
+		f = vy[i]; vy[i] = vy[j]; vy[j] = f;
+		short r = resting[i]; resting[i] = resting[j]; resting[j] = r;
+		_dirty(i);
+		_dirty(j);
+
+		if(grid != null)
+		{
+			grid.move(i);
+			grid.move(j);
+		}
+
+		if(movables != null)
+		{
+			Movable m = movables[i];
+			movables[i] = movables[j];
+			movables[j] = m;
+		}
+	}
+
+	private void _pushMovable(int i)
+	{
+		Movable m = movables[i];
+		if(m == null)
+		{
+			m = new Movable();
+			m.geometryID = geometryID;
+			movables[i] = m;
+		}
+		m.x  = x[i];
+		m.y  = y[i];
+		m.vx = vx[i];
+		m.vy = vy[i];
+	}
+}
@@ -0,0 +1,19 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for the instances of one geometry drawn in a frame. Committed alongside each FrameEvent.
+ */
+@Name("poomonkeys.InstancesDrawn")
+@Label("Instances Drawn")
+@Category({"PooMonkeys", "Renderer"})
+@StackTrace(false)
+public class InstancesDrawnEvent extends jdk.jfr.Event
+{
+	@Label("Geometry ID")
+	int geometryID;
+	@Label("Instances")
+	long instances;
+}
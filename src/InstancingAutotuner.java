@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import javax.media.opengl.GL2;
+import poomonkeys.common.Geometry;
+
+/**
+ * InstancingAutotuner picks the instancing mode and uniform batch size for the GL the game is running on.
+ *
+ * The batch size comes straight from the driver's vertex uniform limit, and the uniform array shaders are generated
+ * to match it (see compileProgram). The mode is whichever of the modes the GL supports drew a test scene fastest,
+ * since driver shortcuts mean the theoretical best mode isn't always the fastest one. The fixed pipeline is only
+ * a candidate when there are no shaders. The result is saved per GL vendor, renderer and version so the benchmark
+ * only runs the first time, or again if the saved mode stops being available.
+ *
+ * Everything only needs a GL2, so the choice can be checked against a RecordingGL with setInteger and
+ * setFunctionAvailable standing in for a driver's limits and extensions.
+ */
+public class InstancingAutotuner
+{
+	// Used when the driver won't say what its uniform limit is, the batch size the shaders always had
+	public static final int DEFAULT_BATCH_SIZE = 512;
+	// More than this doesn't save any draw calls worth having and just makes each upload bigger
+	public static final int MAX_BATCH_SIZE = 4096;
+	// Vertex uniform components left for the projection matrix and whatever the driver uses itself
+	private static final int RESERVED_UNIFORM_COMPONENTS = 64;
+
+	// The test scene, as many pieces of dirt as a busy level and every one of them moving each frame
+	private static final int BENCHMARK_INSTANCES = 20000;
+	private static final int WARMUP_FRAMES = 5;
+	public static final int DEFAULT_BENCHMARK_FRAMES = 20;
+	private static final float[] DIRT_VERTICES = {
+		0, 0,  .5f, 0,  .5f, .5f,
+		0, 0,  .5f, .5f,  0, .5f
+	};
+
+	private final Preferences preferences;
+	private final int benchmarkFrames;
+	// Median frame time of each mode benchmarked by the last choose, in nanoseconds
+	private final EnumMap<InstancingMode, Long> timings = new EnumMap<InstancingMode, Long>(InstancingMode.class);
+
+	/**
+	 * Tune with the default benchmark length, saving the choice in the user's preferences
+	 */
+	public InstancingAutotuner()
+	{
+		this(Preferences.userRoot().node("poomonkeys/instancing"), DEFAULT_BENCHMARK_FRAMES);
+	}
+
+	/**
+	 * @param preferences where the choice is saved, null to not save it
+	 * @param benchmarkFrames frames to time each mode for, 0 to skip benchmarking and take the best available mode
+	 */
+	public InstancingAutotuner(Preferences preferences, int benchmarkFrames)
+	{
+		this.preferences     = preferences;
+		this.benchmarkFrames = benchmarkFrames;
+	}
+
+	/**
+	 * The modes the GL's functions allow, from least to most efficient (in theory)
+	 */
+	public static ArrayList<InstancingMode> availableModes(GL2 gl)
+	{
+		boolean shaders             = gl.isFunctionAvailable("glCreateShader");
+		boolean drawArraysInstanced = gl.isFunctionAvailable("glDrawArraysInstanced");
+		boolean textureBuffer       = gl.isFunctionAvailable("glTexBuffer");
+
+		ArrayList<InstancingMode> modes = new ArrayList<InstancingMode>();
+		for(InstancingMode mode : InstancingMode.values())
+		{
+			if(mode.shaders != shaders) continue;
+			if(mode.drawArraysInstanced && !drawArraysInstanced) continue;
+			if(mode.textureBuffer && !textureBuffer) continue;
+			modes.add(mode);
+		}
+		return modes;
+	}
+
+	/**
+	 * The mode the GL's functions allow that should be the most efficient, without measuring anything
+	 */
+	public static InstancingMode bestAvailable(GL2 gl)
+	{
+		ArrayList<InstancingMode> modes = availableModes(gl);
+		return modes.get(modes.size()-1);
+	}
+
+	/**
+	 * The most instances a uniform array shader can take at once on this GL, always even since each vec4 of the
+	 * positions array holds two.
+	 */
+	public static int uniformBatchSize(GL2 gl)
+	{
+		int[] components = new int[1];
+		gl.glGetIntegerv(GL2.GL_MAX_VERTEX_UNIFORM_COMPONENTS, components, 0);
+		if(components[0] <= RESERVED_UNIFORM_COMPONENTS) return DEFAULT_BATCH_SIZE;
+
+		int vectors = (components[0] - RESERVED_UNIFORM_COMPONENTS)/4;
+		return Math.min(MAX_BATCH_SIZE, vectors*2);
+	}
+
+	/**
+	 * Decide which mode to use: the saved choice for this GL if it's still available, otherwise benchmark the
+	 * available modes (or just take the best one) and save the result.
+	 */
+	public InstancingMode choose(GL2 gl)
+	{
+		ArrayList<InstancingMode> modes = availableModes(gl);
+		String key = _key(gl);
+		timings.clear();
+
+		if(preferences != null)
+		{
+			InstancingMode saved = _mode(preferences.get(key, null));
+			if(saved != null && modes.contains(saved)) return saved;
+		}
+
+		InstancingMode chosen = modes.get(modes.size()-1);
+		if(benchmarkFrames > 0 && modes.size() > 1)
+		{
+			chosen = _fastest(_benchmark(gl, modes), chosen);
+		}
+
+		if(preferences != null)
+		{
+			preferences.put(key, chosen.name());
+			try
+			{
+				preferences.flush();
+			}
+			catch(BackingStoreException e)
+			{
+				// Not fatal, the benchmark just runs again next time
+				e.printStackTrace();
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Median frame times from the last benchmark, empty if choose didn't run one
+	 */
+	public EnumMap<InstancingMode, Long> getTimings()
+	{
+		return timings.clone();
+	}
+
+	/**
+	 * Compile one of the uniform array instancing shaders with room for batchSize instances.
+	 * Same as ShaderLoader.compileProgram, the program still needs linking.
+	 *
+	 * @return the program, or 0 if the shaders couldn't be loaded or didn't compile
+	 */
+	public static int compileProgram(GL2 gl, String name, int batchSize)
+	{
+		String vertexSource, fragmentSource;
+		try
+		{
+			vertexSource   = "#define BATCH_SIZE " + batchSize + "\n" + _read(name + ".vertex");
+			fragmentSource = _read(name + ".fragment");
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+
+		int vertexShader   = _compileShader(gl, GL2.GL_VERTEX_SHADER, name, vertexSource);
+		int fragmentShader = _compileShader(gl, GL2.GL_FRAGMENT_SHADER, name, fragmentSource);
+		if(vertexShader == 0 || fragmentShader == 0)
+		{
+			if(vertexShader != 0)   gl.glDeleteShader(vertexShader);
+			if(fragmentShader != 0) gl.glDeleteShader(fragmentShader);
+			return 0;
+		}
+
+		int program = gl.glCreateProgram();
+		gl.glAttachShader(program, vertexShader);
+		gl.glAttachShader(program, fragmentShader);
+		// Attached shaders stay alive until the program is deleted
+		gl.glDeleteShader(vertexShader);
+		gl.glDeleteShader(fragmentShader);
+		return program;
+	}
+
+	private static int _compileShader(GL2 gl, int type, String name, String source)
+	{
+		int shader = gl.glCreateShader(type);
+		gl.glShaderSource(shader, 1, new String[] { source }, null, 0);
+		gl.glCompileShader(shader);
+
+		int[] status = new int[1];
+		gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+		if(status[0] == 0)
+		{
+			// compileProgram returns 0 and the caller falls back to another mode
+			gl.glDeleteShader(shader);
+			return 0;
+		}
+		return shader;
+	}
+
+	/**
+	 * Read a shader from the shaders directory, or from the classpath if it isn't there
+	 */
+	private static String _read(String file) throws IOException
+	{
+		Path path = Paths.get("shaders", file);
+		if(Files.exists(path))
+		{
+			return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+		}
+
+		InputStream in = InstancingAutotuner.class.getResourceAsStream("/shaders/" + file);
+		if(in == null) throw new IOException("Missing shader " + file);
+		try
+		{
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Draw the test scene in each mode with a renderer of its own, timing whole frames including waiting for the GPU.
+	 * Modes that don't come up (their shaders didn't compile) are left out.
+	 */
+	private EnumMap<InstancingMode, Long> _benchmark(GL2 gl, ArrayList<InstancingMode> modes)
+	{
+		for(InstancingMode mode : modes)
+		{
+			GLRenderer renderer = GLRenderer.createHeadless();
+			renderer.setInstancingMode(mode);
+			renderer.init(gl);
+			if(renderer.getInstancingMode() == mode)
+			{
+				timings.put(mode, _time(gl, renderer));
+			}
+			renderer.release(gl);
+		}
+		return timings;
+	}
+
+	private long _time(GL2 gl, GLRenderer renderer)
+	{
+		renderer.reshape(gl, 1800, 1000);
+
+		Geometry dirt = new Geometry();
+		dirt.vertices = DIRT_VERTICES;
+		Random random = new Random(1);
+		for(int i = 0; i < BENCHMARK_INSTANCES; i++)
+		{
+			renderer.addGeometryInstance(random.nextFloat()*100, random.nextFloat()*50, dirt);
+		}
+		InstanceStore instances = renderer.getInstances(dirt.geometryID);
+
+		long[] frames = new long[benchmarkFrames];
+		for(int f = -WARMUP_FRAMES; f < benchmarkFrames; f++)
+		{
+			long start = System.nanoTime();
+			instances.markAllDirty();
+			renderer.publishInstances();
+			renderer.display(gl);
+			gl.glFinish();
+			if(f >= 0) frames[f] = System.nanoTime() - start;
+		}
+		Arrays.sort(frames);
+		return frames[frames.length/2];
+	}
+
+	/**
+	 * The mode with the lowest time, or fallback if nothing was timed
+	 */
+	private static InstancingMode _fastest(EnumMap<InstancingMode, Long> timings, InstancingMode fallback)
+	{
+		InstancingMode fastest = fallback;
+		long best = Long.MAX_VALUE;
+		for(InstancingMode mode : timings.keySet())
+		{
+			if(timings.get(mode) < best)
+			{
+				best    = timings.get(mode);
+				fastest = mode;
+			}
+		}
+		return fastest;
+	}
+
+	private static InstancingMode _mode(String name)
+	{
+		if(name == null) return null;
+		try
+		{
+			return InstancingMode.valueOf(name);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Preferences key for the GL, keys are limited in length so the driver strings are hashed
+	 */
+	private static String _key(GL2 gl)
+	{
+		String identity = gl.glGetString(GL2.GL_VENDOR) + "|" + gl.glGetString(GL2.GL_RENDERER) + "|" + gl.glGetString(GL2.GL_VERSION);
+		return "mode." + Integer.toHexString(identity.hashCode());
+	}
+}
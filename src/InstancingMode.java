@@ -0,0 +1,27 @@
+/**
+ * The 5 instance rendering modes supported by GLRenderer, see GLRenderer for a description of each.
+ *
+ * Each mode corresponds to a combination of the functions checked with isFunctionAvailable during initialization.
+ */
+public enum InstancingMode
+{
+	FIXED_PIPELINE            (false, false, false),
+	PSEUDO_INSTANCING_UNIFORM (true,  false, false),
+	PSEUDO_INSTANCING_TEXTURE (true,  false, true),
+	INSTANCING_UNIFORM        (true,  true,  false),
+	INSTANCING_TEXTURE        (true,  true,  true);
+
+	// glCreateShader
+	public final boolean shaders;
+	// glDrawArraysInstanced
+	public final boolean drawArraysInstanced;
+	// glTexBuffer
+	public final boolean textureBuffer;
+
+	private InstancingMode(boolean shaders, boolean drawArraysInstanced, boolean textureBuffer)
+	{
+		this.shaders             = shaders;
+		this.drawArraysInstanced = drawArraysInstanced;
+		this.textureBuffer       = textureBuffer;
+	}
+}
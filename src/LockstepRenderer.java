@@ -0,0 +1,56 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LockstepRenderer is a HeadlessRenderer that lets PhysicsController take exactly one step at a time, when told to,
+ * so a simulation can be run again tick for tick (see ReplayRunner).
+ *
+ * PhysicsController runs on its own thread and asks for the Movables at the start of every step. Here it's held
+ * there from its very first step until step lets it through, and step returns once it's back asking for the next
+ * one, so between steps the instances and anything else physics touches can be changed safely, and each step sees
+ * exactly the same changes every run. Nothing waits on a clock so a run goes as fast as the steps do.
+ *
+ * tick only settles, the caller steps physics itself with awaitPhysics and step.
+ */
+public class LockstepRenderer extends HeadlessRenderer
+{
+	// Longest to wait on physics to finish a step before deciding it isn't going to
+	private static final long STEP_TIMEOUT_SECONDS = 10;
+
+	public LockstepRenderer(float viewWidth, float viewHeight)
+	{
+		super(viewWidth, viewHeight);
+		physics.hold();
+	}
+
+	/**
+	 * Wait for physics to be at the start of a step. Everything it touches can be changed until step is called.
+	 *
+	 * @throws IllegalStateException if physics hasn't got there within STEP_TIMEOUT_SECONDS
+	 */
+	public void awaitPhysics() throws InterruptedException
+	{
+		if(!physics.await(TimeUnit.SECONDS.toNanos(STEP_TIMEOUT_SECONDS)))
+		{
+			if(Thread.interrupted()) throw new InterruptedException();
+			throw new IllegalStateException("PhysicsController didn't ask for the instances within " + STEP_TIMEOUT_SECONDS + "s");
+		}
+	}
+
+	/**
+	 * Let physics take one step, after awaitPhysics. The step is done when the next awaitPhysics returns.
+	 */
+	public void step()
+	{
+		physics.step();
+	}
+
+	/**
+	 * Settle whatever the tick moved, physics is stepped by the caller
+	 */
+	@Override
+	public void tick(long tick, long tickNanos)
+	{
+		this.tickNanos = tickNanos;
+		settle();
+	}
+}
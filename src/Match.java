@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import poomonkeys.common.DirtGeometry;
+import poomonkeys.common.GameEngine;
+import poomonkeys.common.PhysicsController;
+import poomonkeys.common.Player;
+import poomonkeys.common.Shot;
+import poomonkeys.common.Terrain;
+import poomonkeys.common.TerrainGenerator;
+
+/**
+ * Match is one game on a dedicated server: its own Terrain, PhysicsController, players and shots, simulated on a
+ * HeadlessRenderer and hosted to its players over a NetSession. Nothing in it is shared with any other match, so
+ * a server can run as many of them side by side as it has the CPU for, see MatchServer.
+ *
+ * Every player is remote, player ids are connection ids. Shots are relayed to everyone else in the match and the
+ * debris the host simulates is streamed to all of them by a SnapshotStreamer.
+ *
+ * The match's SimulationLoop is never started, its ticks are run on the MatchServer's pool instead. Each tick
+ * polls the network, then the renderer settles what the tick did and the streamer sends it. Only one tick of a
+ * match runs at a time, on whichever worker picks it up.
+ *
+ * Each match's instances have a lock of their own rather than the shared Renderer.instanceLock, so matches never
+ * wait on each other. PhysicsController still has a thread per match, but the renderer lets it take just one step
+ * per tick and the next tick waits for that step to finish (see PhysicsGate), so a match's physics thread is idle
+ * except for one step between each of its ticks rather than looping as fast as it can.
+ */
+public class Match implements GameEngine, NetListener, Tickable, Runnable
+{
+	public final int id;
+	public ArrayList<Player> players = new ArrayList<Player>();
+	ArrayList<Shot> shots = new ArrayList<Shot>();
+	int gameState = STATE_CHOOSE_ANGLE;
+
+	final HeadlessRenderer renderer;
+	final SimulationLoop simulation;
+	final NetSession network;
+	final SnapshotStreamer streamer;
+	private PhysicsController physicsController;
+	private Terrain terrain;
+
+	// Ticks that have come due but haven't been run, and whether a worker has been asked to run them
+	private final AtomicInteger dueTicks = new AtomicInteger();
+	private final AtomicBoolean queued = new AtomicBoolean();
+	private volatile long droppedTicks = 0;
+	private Executor executor;
+	private volatile boolean closed = false;
+
+	/**
+	 * Set up a match and start hosting it on the given port, 0 for any free port
+	 */
+	public Match(int id, int port, int ticksPerSecond) throws IOException
+	{
+		this.id = id;
+		simulation = new SimulationLoop(ticksPerSecond);
+		renderer = new HeadlessRenderer(HeadlessRenderer.DEFAULT_VIEW_WIDTH, HeadlessRenderer.DEFAULT_VIEW_HEIGHT, new Object());
+		renderer.setSleep(InstanceStore.DEFAULT_SLEEP_SPEED, InstanceStore.DEFAULT_SLEEP_TICKS);
+
+		// Wakes the sleeping dirt around explosions
+		terrain = new DirtTerrain(this, renderer);
+		terrain.setWidth(renderer.viewWidth);
+		terrain.setHeight(renderer.viewHeight);
+		TerrainGenerator.generate(terrain);
+		renderer.registerDrawable(terrain);
+
+		physicsController = new PhysicsController(this, renderer);
+
+		network = new NetSession(this);
+		network.host(port);
+		streamer = new SnapshotStreamer(renderer);
+		streamer.share(NetProtocol.SHARED_DIRT, DirtGeometry.getInstance());
+		streamer.stream(network);
+
+		// Network first so this tick sees what came in, then the renderer settles and the streamer sends
+		simulation.add(this);
+		simulation.add(renderer);
+		simulation.add(streamer);
+	}
+
+	/**
+	 * The port the match is hosted on
+	 */
+	public int getPort()
+	{
+		return network.getPort();
+	}
+
+	/**
+	 * Number of ticks skipped because the match fell too far behind
+	 */
+	public long getDroppedTicks()
+	{
+		return droppedTicks;
+	}
+
+	/**
+	 * Another tick has come due, have the executor run it unless the match is already queued or running.
+	 * If more than maxDue ticks are waiting the extra is dropped, like SimulationLoop does. Called by the
+	 * MatchServer's clock.
+	 */
+	void schedule(Executor executor, int maxDue)
+	{
+		this.executor = executor;
+		if(dueTicks.incrementAndGet() > maxDue)
+		{
+			dueTicks.decrementAndGet();
+			droppedTicks++;
+		}
+		if(queued.compareAndSet(false, true))
+		{
+			executor.execute(this);
+		}
+	}
+
+	/**
+	 * Run the ticks that are due, on a worker
+	 */
+	public void run()
+	{
+		try
+		{
+			synchronized(this)
+			{
+				while(!closed && dueTicks.get() > 0)
+				{
+					simulation.step();
+					dueTicks.decrementAndGet();
+				}
+			}
+		}
+		finally
+		{
+			queued.set(false);
+		}
+		// A tick may have come due after the last check but before queued was cleared. Once closed the ticks
+		// still due are never run, so don't keep handing them back to the executor.
+		if(!closed && dueTicks.get() > 0 && queued.compareAndSet(false, true))
+		{
+			executor.execute(this);
+		}
+	}
+
+	/**
+	 * Start of each tick, take in whatever has arrived
+	 */
+	@Override
+	public void tick(long tick, long tickNanos)
+	{
+		try
+		{
+			network.poll(0);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop hosting and ticking the match, once any tick it's in the middle of is done. Its physics thread ends too.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		renderer.retirePhysics();
+		try
+		{
+			network.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	public void enemyFiredShot(int playerID, float x, float y, float vx, float vy)
+	{
+		gameState = STATE_ENEMY_FIRING_SHOT;
+		Shot shot = new Shot(players.get(playerID), 0, x, y, vx, vy, renderer.viewWidth, renderer.viewHeight);
+		players.get(playerID).fireShot(shot);
+		renderer.registerDrawable(shot);
+		physicsController.addCollidable(shot);
+		shots.add(shot);
+	}
+
+	@Override
+	public void connected(int connection)
+	{
+		Player player = new Player();
+		players.add(player);
+		renderer.registerDrawable(player.tank);
+		terrain.addTankRandom(player.tank);
+	}
+
+	@Override
+	public void disconnected(int connection)
+	{
+		streamer.forget(connection);
+	}
+
+	/**
+	 * A player fired from their tank at an angle and power
+	 */
+	public void playerFired(int playerID, float angle, float power)
+	{
+		gameState = STATE_ENEMY_FIRING_SHOT;
+		Player player = players.get(playerID);
+		player.setAngle(angle);
+		Shot shot = new Shot(player, 0, power, renderer.viewWidth, renderer.viewHeight);
+		player.fireShot(shot);
+		renderer.registerDrawable(shot);
+		physicsController.addCollidable(shot);
+		shots.add(shot);
+	}
+
+	@Override
+	public void fireReceived(int connection, float angle, float power)
+	{
+		playerFired(connection, angle, power);
+
+		// Everyone else hears about it from the host
+		for(int c = 0; c < network.getConnectionCount(); c++)
+		{
+			if(c != connection && network.isConnected(c))
+			{
+				network.sendFire(c, angle, power);
+			}
+		}
+		network.flush();
+	}
+
+	@Override
+	public void shotReceived(int connection, float x, float y, float vx, float vy)
+	{
+		enemyFiredShot(connection, x, y, vx, vy);
+
+		// Everyone else hears about it from the host
+		for(int c = 0; c < network.getConnectionCount(); c++)
+		{
+			if(c != connection && network.isConnected(c))
+			{
+				network.sendShot(c, x, y, vx, vy);
+			}
+		}
+		network.flush();
+	}
+
+	@Override
+	public void stateReceived(int connection, NetState state) {}
+
+	/**
+	 * The host's debris is its own, there's nothing for a client to tell it
+	 */
+	@Override
+	public void instancesReceived(int connection, InstanceDelta delta) {}
+
+	@Override
+	public void instancesAcked(int connection, int geometryID, int seq)
+	{
+		streamer.ack(connection, geometryID, seq);
+	}
+
+	@Override
+	public Terrain getTerrain()
+	{
+		return terrain;
+	}
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MatchServer runs many headless Matches side by side in one JVM, for hosting dedicated games on a machine with
+ * no display.
+ *
+ * One clock thread keeps time for every match at a fixed tick rate. Each tick it hands every match that has a tick
+ * due to a fork/join pool with a worker per core, so the number of matches a box can run is limited only by how
+ * many ticks its cores get through. A match that falls behind runs its missed ticks back to back on the same
+ * worker, up to MAX_CATCH_UP_TICKS, without holding up any other match.
+ *
+ * Run from the command line with the number of matches and the first port, each match takes the port after the
+ * one before it:
+ *
+ *   java MatchServer 8 4815
+ */
+public class MatchServer implements Runnable
+{
+	// Most ticks a match can have waiting before the extra are dropped
+	private static final int MAX_CATCH_UP_TICKS = 8;
+
+	private final int ticksPerSecond;
+	private final long tickNanos;
+	private final ForkJoinPool pool;
+	private final CopyOnWriteArrayList<Match> matches = new CopyOnWriteArrayList<Match>();
+	private int nextID = 0;
+
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	public static void main(String[] args) throws IOException
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int port  = args.length > 1 ? Integer.parseInt(args[1]) : NetSession.DEFAULT_PORT;
+
+		MatchServer server = new MatchServer();
+		for(int i = 0; i < count; i++)
+		{
+			Match match = server.startMatch(port + i);
+			System.out.println("Match " + match.id + " hosted on port " + match.getPort());
+		}
+		server.start();
+	}
+
+	public MatchServer()
+	{
+		this(SimulationLoop.DEFAULT_TICKS_PER_SECOND, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism number of workers to run ticks on
+	 */
+	public MatchServer(int ticksPerSecond, int parallelism)
+	{
+		this.ticksPerSecond = ticksPerSecond;
+		tickNanos = 1000000000L / ticksPerSecond;
+		// First in first out, a match's ticks are never forked so there's nothing to gain from stealing newest first
+		pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+	}
+
+	/**
+	 * Set up a new match hosted on the given port, 0 for any free port. It starts ticking with the next tick.
+	 */
+	public synchronized Match startMatch(int port) throws IOException
+	{
+		Match match = new Match(nextID++, port, ticksPerSecond);
+		matches.add(match);
+		return match;
+	}
+
+	/**
+	 * Stop ticking and hosting a match
+	 */
+	public void endMatch(Match match)
+	{
+		matches.remove(match);
+		match.close();
+	}
+
+	public int getMatchCount()
+	{
+		return matches.size();
+	}
+
+	/**
+	 * Start the clock. Its thread isn't a daemon, it's what keeps a dedicated server running.
+	 */
+	public synchronized void start()
+	{
+		if(running) return;
+
+		running = true;
+		thread = new Thread(this, "MatchServer");
+		thread.start();
+	}
+
+	/**
+	 * Stop the clock, end every match and wait for the ticks already running to finish
+	 */
+	public void stop()
+	{
+		Thread stopping;
+		synchronized(this)
+		{
+			if(!running) return;
+
+			running = false;
+			stopping = thread;
+			thread = null;
+		}
+		LockSupport.unpark(stopping);
+		try
+		{
+			stopping.join();
+			for(Match match : matches)
+			{
+				endMatch(match);
+			}
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run()
+	{
+		long next = System.nanoTime();
+		while(running)
+		{
+			long wait = next - System.nanoTime();
+			if(wait > 0)
+			{
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+			if(wait < -MAX_CATCH_UP_TICKS*tickNanos)
+			{
+				// The clock itself stalled, carry on from now rather than rushing out every tick it missed
+				next = System.nanoTime();
+			}
+
+			for(Match match : matches)
+			{
+				match.schedule(pool, MAX_CATCH_UP_TICKS);
+			}
+			next += tickNanos;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Typed callbacks for what arrives on a NetSession. All of them are called on the network thread, or whichever
+ * thread is calling NetSession.poll.
+ *
+ * Connections are numbered from 0 in the order they were made.
+ */
+public interface NetListener
+{
+	public void connected(int connection);
+
+	public void disconnected(int connection);
+
+	/**
+	 * A shot was fired from x, y with velocity vx, vy
+	 */
+	public void shotReceived(int connection, float x, float y, float vx, float vy);
+
+	/**
+	 * The player at the other end fired from their tank at an angle and power
+	 */
+	public void fireReceived(int connection, float angle, float power);
+
+	/**
+	 * A state update arrived. The state is reused for the next one, copy out anything to keep.
+	 */
+	public void stateReceived(int connection, NetState state);
+
+	/**
+	 * Some of a geometry's instances arrived. The delta is reused for the next one, copy out anything to keep.
+	 */
+	public void instancesReceived(int connection, InstanceDelta delta);
+
+	/**
+	 * The other end has applied the INSTANCES message with the given sequence number
+	 */
+	public void instancesAcked(int connection, int geometryID, int seq);
+}
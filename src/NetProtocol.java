@@ -0,0 +1,273 @@
+import java.nio.ByteBuffer;
+
+/**
+ * NetProtocol is the binary wire format NetSession speaks.
+ *
+ * The stream is a series of packets, each a 16 bit length followed by that many bytes of messages. Each message is
+ * a one byte type followed by a body whose layout is fixed by the type, so several messages can be batched into one
+ * packet and read back without any other framing. All numbers are big-endian.
+ *
+ *   SHOT   x, y, vx, vy as floats
+ *   STATE      tick as an int, a 16 bit count, then count objects of id as an int and x, y, vx, vy as floats
+ *   INSTANCES  16 bit shared geometry id, sequence number and instance count as ints, a 16 bit count, then count entries
+ *   ACK        16 bit shared geometry id and the sequence number of the INSTANCES message being acknowledged as an int
+ *   FIRE       angle and power as floats
+ *
+ * INSTANCES entries are an instance index and position, the position quantized to 1/QUANTUM units. Entries are in
+ * index order and each is written as the difference from the one before (the first from index -1 and position 0, 0)
+ * in variable length integers, 7 bits to the byte, with the position differences zigzag encoded. Nearby instances
+ * tend to be stored together, so most entries take 3 to 4 bytes.
+ *
+ * Geometries are named by an id both ends agree on, like SHARED_DIRT, rather than the id either end's renderer
+ * happened to give them, see SnapshotStreamer.share and SnapshotReceiver.map.
+ *
+ * Decoding reads straight out of the receive buffer into primitives and a reused NetState or InstanceDelta,
+ * nothing is allocated.
+ */
+public final class NetProtocol
+{
+	// Largest packet, length field included
+	public static final int MAX_PACKET = 16384;
+	public static final int HEADER_BYTES = 2;
+
+	public static final byte SHOT  = 1;
+	public static final byte STATE = 2;
+	public static final byte INSTANCES = 3;
+	public static final byte ACK = 4;
+	public static final byte FIRE = 5;
+
+	// Shared geometry ids
+	public static final int SHARED_DIRT = 0;
+
+	public static final int SHOT_BYTES = 1 + 4*4;
+	private static final int STATE_HEADER_BYTES = 1 + 4 + 2;
+	private static final int STATE_OBJECT_BYTES = 4 + 4*4;
+	// Most objects one STATE message can carry and still fit in a packet
+	public static final int MAX_STATE_OBJECTS = (MAX_PACKET - HEADER_BYTES - STATE_HEADER_BYTES) / STATE_OBJECT_BYTES;
+
+	// Positions are sent in 1/QUANTUM units
+	public static final float QUANTUM = 64;
+	public static final int INSTANCES_HEADER_BYTES = 1 + 2 + 4 + 4 + 2;
+	// Longest an INSTANCES entry can be, three 5 byte variable length integers
+	public static final int MAX_INSTANCE_ENTRY_BYTES = 15;
+	// Biggest INSTANCES message that fits in a packet
+	public static final int MAX_INSTANCES_BYTES = MAX_PACKET - HEADER_BYTES;
+	public static final int ACK_BYTES = 1 + 2 + 4;
+	public static final int FIRE_BYTES = 1 + 4*2;
+
+	private NetProtocol() {}
+
+	/**
+	 * Size of a STATE message with count objects
+	 */
+	public static int stateBytes(int count)
+	{
+		return STATE_HEADER_BYTES + count*STATE_OBJECT_BYTES;
+	}
+
+	public static void putShot(ByteBuffer out, float x, float y, float vx, float vy)
+	{
+		out.put(SHOT);
+		out.putFloat(x);
+		out.putFloat(y);
+		out.putFloat(vx);
+		out.putFloat(vy);
+	}
+
+	public static void putFire(ByteBuffer out, float angle, float power)
+	{
+		out.put(FIRE);
+		out.putFloat(angle);
+		out.putFloat(power);
+	}
+
+	/**
+	 * Write a STATE message with objects [first, first+count) of state, count must be at most MAX_STATE_OBJECTS
+	 */
+	public static void putState(ByteBuffer out, NetState state, int first, int count)
+	{
+		out.put(STATE);
+		out.putInt(state.tick);
+		out.putShort((short)count);
+		for(int i = first; i < first+count; i++)
+		{
+			out.putInt(state.ids[i]);
+			out.putFloat(state.x[i]);
+			out.putFloat(state.y[i]);
+			out.putFloat(state.vx[i]);
+			out.putFloat(state.vy[i]);
+		}
+	}
+
+	public static int quantize(float position)
+	{
+		return Math.round(position * QUANTUM);
+	}
+
+	public static float dequantize(int quantized)
+	{
+		return quantized / QUANTUM;
+	}
+
+	/**
+	 * Start an INSTANCES message, its count is filled in by endInstances
+	 *
+	 * @return where the message starts, for endInstances
+	 */
+	public static int beginInstances(ByteBuffer out, int geometryID, int seq, int size)
+	{
+		int start = out.position();
+		out.put(INSTANCES);
+		out.putShort((short)geometryID);
+		out.putInt(seq);
+		out.putInt(size);
+		out.putShort((short)0);
+		return start;
+	}
+
+	/**
+	 * Write an INSTANCES entry given the entry before it
+	 */
+	public static void putInstance(ByteBuffer out, int previousIndex, int previousX, int previousY, int index, int x, int y)
+	{
+		_putVarInt(out, index - previousIndex - 1);
+		_putVarInt(out, _zigzag(x - previousX));
+		_putVarInt(out, _zigzag(y - previousY));
+	}
+
+	public static void endInstances(ByteBuffer out, int start, int count)
+	{
+		out.putShort(start + INSTANCES_HEADER_BYTES - 2, (short)count);
+	}
+
+	public static void putAck(ByteBuffer out, int geometryID, int seq)
+	{
+		out.put(ACK);
+		out.putShort((short)geometryID);
+		out.putInt(seq);
+	}
+
+	private static int _zigzag(int n)
+	{
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int _unzigzag(int n)
+	{
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void _putVarInt(ByteBuffer out, int n)
+	{
+		while((n & ~0x7F) != 0)
+		{
+			out.put((byte)((n & 0x7F) | 0x80));
+			n >>>= 7;
+		}
+		out.put((byte)n);
+	}
+
+	/**
+	 * Read a variable length integer that ends before end
+	 *
+	 * @return the integer, or Long.MIN_VALUE if it runs past end
+	 */
+	private static long _getVarInt(ByteBuffer in, int end)
+	{
+		int n = 0;
+		for(int shift = 0; shift < 35; shift += 7)
+		{
+			if(in.position() >= end) return Long.MIN_VALUE;
+
+			byte b = in.get();
+			n |= (b & 0x7F) << shift;
+			if(b >= 0) return n;
+		}
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Decode the entries of an INSTANCES message into delta
+	 *
+	 * @return false if they run past end
+	 */
+	private static boolean _getInstances(ByteBuffer in, int end, InstanceDelta delta, int count)
+	{
+		delta.ensureCapacity(count);
+		int index = -1, x = 0, y = 0;
+		for(int i = 0; i < count; i++)
+		{
+			long gap = _getVarInt(in, end);
+			long dx  = _getVarInt(in, end);
+			long dy  = _getVarInt(in, end);
+			if(gap == Long.MIN_VALUE || dx == Long.MIN_VALUE || dy == Long.MIN_VALUE) return false;
+
+			index += (int)gap + 1;
+			x += _unzigzag((int)dx);
+			y += _unzigzag((int)dy);
+			delta.indices[i] = index;
+			delta.x[i] = dequantize(x);
+			delta.y[i] = dequantize(y);
+		}
+		delta.count = count;
+		return true;
+	}
+
+	/**
+	 * Decode the messages of one packet, from in's position to end, and hand each to the listener
+	 *
+	 * @return false if the packet holds something that isn't a whole message of a known type
+	 */
+	public static boolean dispatch(ByteBuffer in, int end, int connection, NetState state, InstanceDelta delta, NetListener listener)
+	{
+		while(in.position() < end)
+		{
+			byte type = in.get();
+			int remaining = end - in.position();
+			switch(type)
+			{
+				case SHOT:
+					if(remaining < SHOT_BYTES-1) return false;
+					listener.shotReceived(connection, in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat());
+					break;
+				case STATE:
+					if(remaining < STATE_HEADER_BYTES-1) return false;
+					state.tick = in.getInt();
+					int count = in.getShort() & 0xFFFF;
+					if(remaining < stateBytes(count)-1) return false;
+
+					state.ensureCapacity(count);
+					for(int i = 0; i < count; i++)
+					{
+						state.ids[i] = in.getInt();
+						state.x[i]   = in.getFloat();
+						state.y[i]   = in.getFloat();
+						state.vx[i]  = in.getFloat();
+						state.vy[i]  = in.getFloat();
+					}
+					state.count = count;
+					listener.stateReceived(connection, state);
+					break;
+				case INSTANCES:
+					if(remaining < INSTANCES_HEADER_BYTES-1) return false;
+					delta.geometryID = in.getShort() & 0xFFFF;
+					delta.seq  = in.getInt();
+					delta.size = in.getInt();
+					if(!_getInstances(in, end, delta, in.getShort() & 0xFFFF)) return false;
+					listener.instancesReceived(connection, delta);
+					break;
+				case ACK:
+					if(remaining < ACK_BYTES-1) return false;
+					listener.instancesAcked(connection, in.getShort() & 0xFFFF, in.getInt());
+					break;
+				case FIRE:
+					if(remaining < FIRE_BYTES-1) return false;
+					listener.fireReceived(connection, in.getFloat(), in.getFloat());
+					break;
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,552 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * NetSession carries NetProtocol messages over non-blocking TCP channels, all served by one selector.
+ *
+ * A session can host, accepting any number of connections, and connect out to other hosts. Messages sent to a
+ * connection are batched into the packet being built for it until flush is called, then the selector writes
+ * the finished packets out as the channel takes them. Incoming packets are read into a buffer per connection
+ * and decoded in place, and each message goes to the NetListener as it's decoded.
+ *
+ * The selector is run by start on its own thread, or by calling poll. Sending and flushing can be done from any
+ * thread. Nothing is allocated per message on either side.
+ */
+public class NetSession implements Runnable
+{
+	public static final int DEFAULT_PORT = 4815;
+	// Send to every connection
+	public static final int ALL = -1;
+	// Bytes of finished and unfinished packets each connection can have waiting to be written
+	private static final int OUTGOING_BYTES = NetProtocol.MAX_PACKET * 16;
+	// Longest poll blocks for when run by start, in milliseconds
+	private static final long POLL_MILLIS = 100;
+
+	private static class Connection
+	{
+		final int id;
+		final SocketChannel channel;
+		SelectionKey key;
+
+		// Packets as they come in, only touched by the selector
+		final ByteBuffer in = ByteBuffer.allocateDirect(NetProtocol.MAX_PACKET * 2);
+
+		// Packets waiting to go out, in write mode. Guarded by itself.
+		final ByteBuffer out = ByteBuffer.allocateDirect(OUTGOING_BYTES);
+		// End of the finished packets in out, and the start of the packet being built or -1 if there isn't one
+		int finished = 0;
+		int packetStart = -1;
+
+		Connection(int id, SocketChannel channel)
+		{
+			this.id = id;
+			this.channel = channel;
+		}
+	}
+
+	private final NetListener listener;
+	private final Selector selector;
+	private ServerSocketChannel server = null;
+
+	// By id, closed connections are left as null so the ids don't move
+	private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	// Connections made by connect, waiting to be registered with the selector on its own thread
+	private final ConcurrentLinkedQueue<Connection> joining = new ConcurrentLinkedQueue<Connection>();
+	// Decoded STATE and INSTANCES messages go here, only touched by the selector
+	private final NetState state = new NetState();
+	private final InstanceDelta delta = new InstanceDelta();
+
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	public NetSession(NetListener listener) throws IOException
+	{
+		this.listener = listener;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Start accepting connections on the given port, 0 for any free port
+	 */
+	public synchronized void host(int port) throws IOException
+	{
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().bind(new InetSocketAddress(port));
+		// Registering blocks while the selector is selecting, so wake it up to let this through
+		selector.wakeup();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * The port being hosted on, -1 if not hosting
+	 */
+	public int getPort()
+	{
+		return server == null ? -1 : server.socket().getLocalPort();
+	}
+
+	/**
+	 * Connect to a host. Blocks until the connection is made, the listener hears about it on the next poll.
+	 *
+	 * @return the connection's id
+	 */
+	public int connect(String host, int port) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+		Connection connection = _add(channel);
+		joining.add(connection);
+		selector.wakeup();
+		return connection.id;
+	}
+
+	/**
+	 * Run the selector on a new thread until close
+	 */
+	public synchronized void start()
+	{
+		if(running) return;
+
+		running = true;
+		thread = new Thread(this, "NetSession");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run()
+	{
+		while(running)
+		{
+			try
+			{
+				poll(POLL_MILLIS);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Accept, read and write whatever is ready, waiting up to timeout milliseconds for something to be. 0 doesn't wait.
+	 */
+	public void poll(long timeout) throws IOException
+	{
+		_register();
+		if(timeout > 0)
+		{
+			selector.select(timeout);
+		}
+		else
+		{
+			selector.selectNow();
+		}
+
+		Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+		while(itr.hasNext())
+		{
+			SelectionKey key = itr.next();
+			itr.remove();
+			if(!key.isValid()) continue;
+
+			if(key.isAcceptable())
+			{
+				_accept();
+				continue;
+			}
+			Connection connection = (Connection) key.attachment();
+			try
+			{
+				if(key.isReadable())
+				{
+					_read(connection);
+				}
+				if(key.isValid() && key.isWritable())
+				{
+					_write(connection);
+				}
+			}
+			catch(IOException e)
+			{
+				_close(connection);
+			}
+		}
+	}
+
+	/**
+	 * Stop the selector thread and close every channel
+	 */
+	public void close() throws IOException
+	{
+		Thread stopping;
+		synchronized(this)
+		{
+			running = false;
+			stopping = thread;
+			thread = null;
+		}
+		if(stopping != null)
+		{
+			selector.wakeup();
+			try
+			{
+				stopping.join();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		for(Connection connection : connections)
+		{
+			if(connection != null)
+			{
+				_close(connection);
+			}
+		}
+		if(server != null)
+		{
+			server.close();
+		}
+		selector.close();
+	}
+
+	/**
+	 * Number of connection ids handed out, open or not
+	 */
+	public int getConnectionCount()
+	{
+		return connections.size();
+	}
+
+	public boolean isConnected(int connection)
+	{
+		return connection >= 0 && connection < connections.size() && connections.get(connection) != null;
+	}
+
+	/**
+	 * Queue a shot fired from the local player's tank at an angle and power for a connection, or for ALL of them.
+	 * Goes out on the next flush.
+	 *
+	 * @return false if a connection has too much waiting to be written already and the shot was dropped for it
+	 */
+	public boolean sendFire(int connection, float angle, float power)
+	{
+		boolean sent = true;
+		for(int c = _first(connection); c <= _last(connection); c++)
+		{
+			Connection to = connections.get(c);
+			if(to == null) continue;
+
+			synchronized(to.out)
+			{
+				if(!_begin(to, NetProtocol.FIRE_BYTES))
+				{
+					sent = false;
+					continue;
+				}
+				NetProtocol.putFire(to.out, angle, power);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Queue a shot for a connection, or for ALL of them. Goes out on the next flush.
+	 *
+	 * @return false if a connection has too much waiting to be written already and the shot was dropped for it
+	 */
+	public boolean sendShot(int connection, float x, float y, float vx, float vy)
+	{
+		boolean sent = true;
+		for(int c = _first(connection); c <= _last(connection); c++)
+		{
+			Connection to = connections.get(c);
+			if(to == null) continue;
+
+			synchronized(to.out)
+			{
+				if(!_begin(to, NetProtocol.SHOT_BYTES))
+				{
+					sent = false;
+					continue;
+				}
+				NetProtocol.putShot(to.out, x, y, vx, vy);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Queue a state update for a connection, or for ALL of them. Goes out on the next flush.
+	 * States with more than NetProtocol.MAX_STATE_OBJECTS objects are split over several messages.
+	 *
+	 * @return false if a connection has too much waiting to be written already and some of the state was dropped for it
+	 */
+	public boolean sendState(int connection, NetState state)
+	{
+		boolean sent = true;
+		for(int c = _first(connection); c <= _last(connection); c++)
+		{
+			Connection to = connections.get(c);
+			if(to == null) continue;
+
+			synchronized(to.out)
+			{
+				int first = 0;
+				do
+				{
+					int count = Math.min(state.count - first, NetProtocol.MAX_STATE_OBJECTS);
+					if(!_begin(to, NetProtocol.stateBytes(count)))
+					{
+						sent = false;
+						break;
+					}
+					NetProtocol.putState(to.out, state, first, count);
+					first += count;
+				}
+				while(first < state.count);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Acknowledge an INSTANCES message. Goes out on the next flush.
+	 *
+	 * @return false if the connection has too much waiting to be written already and the ack was dropped
+	 */
+	public boolean sendAck(int connection, int geometryID, int seq)
+	{
+		Connection to = connections.get(connection);
+		if(to == null) return false;
+
+		synchronized(to.out)
+		{
+			if(!_begin(to, NetProtocol.ACK_BYTES)) return false;
+			NetProtocol.putAck(to.out, geometryID, seq);
+		}
+		return true;
+	}
+
+	/**
+	 * Queue an already encoded message, from message's position to its limit, for a connection.
+	 * It must be no bigger than NetProtocol.MAX_PACKET - NetProtocol.HEADER_BYTES. Goes out on the next flush.
+	 *
+	 * @return false if the connection has too much waiting to be written already and the message was dropped
+	 */
+	public boolean sendMessage(int connection, ByteBuffer message)
+	{
+		Connection to = connections.get(connection);
+		if(to == null) return false;
+
+		synchronized(to.out)
+		{
+			if(!_begin(to, message.remaining())) return false;
+			to.out.put(message);
+		}
+		return true;
+	}
+
+	/**
+	 * Finish the packets being built and have the selector send them
+	 */
+	public void flush()
+	{
+		for(Connection connection : connections)
+		{
+			if(connection == null) continue;
+
+			synchronized(connection.out)
+			{
+				_finishPacket(connection);
+				if(connection.finished > 0 && connection.key != null && connection.key.isValid())
+				{
+					connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Make room in the connection's current packet for a message of the given size, starting a new packet if it
+	 * won't fit. Called holding connection.out.
+	 */
+	private boolean _begin(Connection connection, int bytes)
+	{
+		ByteBuffer out = connection.out;
+		if(connection.packetStart >= 0 && out.position() + bytes - connection.packetStart > NetProtocol.MAX_PACKET)
+		{
+			_finishPacket(connection);
+		}
+		if(connection.packetStart < 0)
+		{
+			if(out.remaining() < NetProtocol.HEADER_BYTES + bytes) return false;
+
+			connection.packetStart = out.position();
+			// Length goes in when the packet is finished
+			out.putShort((short)0);
+		}
+		return out.remaining() >= bytes;
+	}
+
+	/**
+	 * Fill in the length of the packet being built, if there is one. Called holding connection.out.
+	 */
+	private void _finishPacket(Connection connection)
+	{
+		if(connection.packetStart < 0) return;
+
+		ByteBuffer out = connection.out;
+		int length = out.position() - connection.packetStart - NetProtocol.HEADER_BYTES;
+		out.putShort(connection.packetStart, (short)length);
+		connection.finished = out.position();
+		connection.packetStart = -1;
+	}
+
+	private void _accept() throws IOException
+	{
+		SocketChannel channel = server.accept();
+		if(channel == null) return;
+
+		Connection connection = _add(channel);
+		_join(connection);
+	}
+
+	private Connection _add(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		synchronized(connections)
+		{
+			Connection connection = new Connection(connections.size(), channel);
+			connections.add(connection);
+			return connection;
+		}
+	}
+
+	/**
+	 * Register a new connection with the selector and tell the listener. Selector thread only.
+	 */
+	private void _join(Connection connection) throws IOException
+	{
+		int ops = SelectionKey.OP_READ;
+		synchronized(connection.out)
+		{
+			// Anything sent before it was registered can go now
+			if(connection.finished > 0)
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+			connection.key = connection.channel.register(selector, ops, connection);
+		}
+		listener.connected(connection.id);
+	}
+
+	private void _register() throws IOException
+	{
+		Connection connection = joining.poll();
+		while(connection != null)
+		{
+			_join(connection);
+			connection = joining.poll();
+		}
+	}
+
+	/**
+	 * Read whatever has arrived and dispatch every whole packet
+	 */
+	private void _read(Connection connection) throws IOException
+	{
+		ByteBuffer in = connection.in;
+		if(connection.channel.read(in) < 0)
+		{
+			_close(connection);
+			return;
+		}
+
+		in.flip();
+		while(in.remaining() >= NetProtocol.HEADER_BYTES)
+		{
+			int length = in.getShort(in.position()) & 0xFFFF;
+			if(length > NetProtocol.MAX_PACKET - NetProtocol.HEADER_BYTES)
+			{
+				throw new IOException("Packet of " + length + " bytes from connection " + connection.id);
+			}
+			if(in.remaining() < NetProtocol.HEADER_BYTES + length) break;
+
+			in.position(in.position() + NetProtocol.HEADER_BYTES);
+			int end = in.position() + length;
+			if(!NetProtocol.dispatch(in, end, connection.id, state, delta, listener))
+			{
+				throw new IOException("Malformed packet from connection " + connection.id);
+			}
+			in.position(end);
+		}
+		in.compact();
+	}
+
+	/**
+	 * Write as many finished packets as the channel will take
+	 */
+	private void _write(Connection connection) throws IOException
+	{
+		synchronized(connection.out)
+		{
+			ByteBuffer out = connection.out;
+			int end = out.position();
+			out.flip();
+			out.limit(connection.finished);
+			int written = connection.channel.write(out);
+			out.limit(end);
+			out.compact();
+
+			connection.finished -= written;
+			if(connection.packetStart >= 0)
+			{
+				connection.packetStart -= written;
+			}
+			if(connection.finished == 0)
+			{
+				connection.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	private void _close(Connection connection)
+	{
+		if(connections.get(connection.id) == null) return;
+
+		connections.set(connection.id, null);
+		if(connection.key != null)
+		{
+			connection.key.cancel();
+		}
+		try
+		{
+			connection.channel.close();
+		}
+		catch(IOException e) {}
+		listener.disconnected(connection.id);
+	}
+
+	private int _first(int connection)
+	{
+		return connection == ALL ? 0 : connection;
+	}
+
+	private int _last(int connection)
+	{
+		return connection == ALL ? connections.size()-1 : connection;
+	}
+}
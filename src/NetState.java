@@ -0,0 +1,45 @@
+import java.util.Arrays;
+
+/**
+ * NetState is the body of a STATE message: the positions and velocities of a set of objects as of some tick.
+ *
+ * One is reused for every STATE message decoded, so a listener must copy out anything it wants to keep before it
+ * returns. Held in parallel arrays like InstanceStore, only the first count entries mean anything.
+ */
+public class NetState
+{
+	public int tick;
+	public int count = 0;
+	public int[] ids = new int[0];
+	public float[] x = new float[0], y = new float[0];
+	public float[] vx = new float[0], vy = new float[0];
+
+	/**
+	 * Make room for at least capacity objects, keeping the ones already there
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if(ids.length >= capacity) return;
+
+		int length = Math.max(capacity, ids.length*2);
+		ids = Arrays.copyOf(ids, length);
+		x   = Arrays.copyOf(x, length);
+		y   = Arrays.copyOf(y, length);
+		vx  = Arrays.copyOf(vx, length);
+		vy  = Arrays.copyOf(vy, length);
+	}
+
+	/**
+	 * Add an object to the end
+	 */
+	public void add(int id, float newX, float newY, float newVX, float newVY)
+	{
+		ensureCapacity(count+1);
+		ids[count] = id;
+		x[count]   = newX;
+		y[count]   = newY;
+		vx[count]  = newVX;
+		vy[count]  = newVY;
+		count++;
+	}
+}
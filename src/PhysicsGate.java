@@ -0,0 +1,127 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PhysicsGate holds PhysicsController to exactly one step per simulation tick.
+ *
+ * PhysicsController runs on its own thread and asks the renderer for the Movables at the start of every step, which
+ * the renderer passes through arrive. Once the renderer is being ticked (hold) physics is stopped there until the
+ * tick lets it through with step, so it takes one step of getTimeSinceLastDraw per tick however fast its thread
+ * could loop. Between await returning and step physics is stopped, so the instances can be changed safely.
+ *
+ * Before hold physics goes through unhindered, as it did before there was a SimulationLoop.
+ *
+ * Once closed, physics is let go from the gate and arrive throws ClosedException, which ends the physics thread
+ * rather than leaving it parked here for good, holding on to everything it simulates.
+ */
+public class PhysicsGate
+{
+	/**
+	 * Thrown to physics arriving at a closed gate, to end its thread
+	 */
+	public static class ClosedException extends RuntimeException
+	{
+		public ClosedException()
+		{
+			super("Physics gate closed");
+		}
+	}
+
+	// Lets a physics thread ended by the gate go quietly, anything else goes to its thread group as usual
+	private static final Thread.UncaughtExceptionHandler QUIET = new Thread.UncaughtExceptionHandler()
+	{
+		public void uncaughtException(Thread thread, Throwable e)
+		{
+			if(!(e instanceof ClosedException))
+			{
+				thread.getThreadGroup().uncaughtException(thread, e);
+			}
+		}
+	};
+
+	// Physics is waiting at the start of a step, and is allowed to take it
+	private final Semaphore arrived = new Semaphore(0);
+	private final Semaphore go = new Semaphore(0);
+	private volatile boolean holding = false;
+	// Physics has been stopped at the gate at least once
+	private volatile boolean attached = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Start holding physics at the start of each step from now on
+	 */
+	public void hold()
+	{
+		holding = true;
+	}
+
+	/**
+	 * Whether there is a physics thread coming to the gate, false until it first does after hold
+	 */
+	public boolean isAttached()
+	{
+		return attached;
+	}
+
+	/**
+	 * Physics side, at the start of a step. Returns when the step may be taken.
+	 *
+	 * @throws ClosedException once the gate is closed, whether physics was waiting or arrives later
+	 */
+	public void arrive()
+	{
+		_checkClosed();
+		if(!holding) return;
+
+		attached = true;
+		arrived.release();
+		go.acquireUninterruptibly();
+		_checkClosed();
+	}
+
+	/**
+	 * Wait up to timeoutNanos for physics to finish its step and be back at the gate.
+	 * If it is, step must be called to let it go on.
+	 *
+	 * @return false if it didn't get there in time
+	 */
+	public boolean await(long timeoutNanos)
+	{
+		try
+		{
+			return arrived.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Let physics take one step, after await returned true
+	 */
+	public void step()
+	{
+		go.release();
+	}
+
+	/**
+	 * Let physics go for good, it gets a ClosedException instead of its next step
+	 */
+	public void close()
+	{
+		closed = true;
+		go.release();
+	}
+
+	private void _checkClosed()
+	{
+		if(!closed) return;
+
+		// Another arrival after this one mustn't park either
+		go.release();
+		Thread.currentThread().setUncaughtExceptionHandler(QUIET);
+		throw new ClosedException();
+	}
+}
@@ -5,8 +5,14 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.management.JMException;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -14,6 +20,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import poomonkeys.common.AimingHUD;
 import poomonkeys.common.DirtGeometry;
+import poomonkeys.common.Drawable;
 import poomonkeys.common.GLClickEvent;
 import poomonkeys.common.GLClickListener;
 import poomonkeys.common.GameEngine;
@@ -23,12 +30,10 @@ import poomonkeys.common.PhysicsController;
 import poomonkeys.common.Player;
 import poomonkeys.common.Point2D;
 import poomonkeys.common.Shot;
-import poomonkeys.common.SocketListener;
-import poomonkeys.common.SocketUtil;
 import poomonkeys.common.Terrain;
 import poomonkeys.common.TerrainGenerator;
 
-public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMotionListener, ActionListener, SocketListener, GLClickListener, GameEngine
+public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMotionListener, ActionListener, NetListener, GLClickListener, GameEngine
 {
 	
 	public ArrayList<Player> players = new ArrayList<Player>();
@@ -44,16 +49,45 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 
 	GLRenderer renderer = null;
 	PhysicsController physicsController = null;
+	SimulationLoop simulation = new SimulationLoop();
+	NetSession network = null;
+	// Sends the host's instances to clients, and applies them on a client
+	SnapshotStreamer streamer = null;
+	SnapshotReceiver receiver = null;
+	// Bakes settled dirt into a layer over the terrain, off while playing over the network
+	volatile DirtBaker baker = null;
+	// What's been played, and where to save it on exit, when recording
+	Recording recording = null;
+	File recordingFile;
 	
 	JFrame the_frame;
 	
-	private Terrain the_terrain;
+	private volatile Terrain the_terrain;
+	// Set once startup is done and the terrain is on screen, input is ignored until then
+	volatile boolean playable = false;
 	
 	static PooMonkeysEngine engine = null;
 	
-	public static void main(String[] args) 
+	public static void main(String[] args) throws IOException, InterruptedException
     {
-		PooMonkeysEngine.getInstance();
+		// --server [matches] [port] runs dedicated matches with no window, see MatchServer
+		if(args.length > 0 && args[0].equals("--server"))
+		{
+			MatchServer.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// --replay file [extra ticks] plays a recording back headlessly, see ReplayRunner
+		if(args.length > 0 && args[0].equals("--replay"))
+		{
+			ReplayRunner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		PooMonkeysEngine engine = PooMonkeysEngine.getInstance();
+		// --record file saves what's played to the file on exit
+		if(args.length > 1 && args[0].equals("--record"))
+		{
+			engine.record(new File(args[1]));
+		}
     }
 	
 	public static PooMonkeysEngine getInstance()
@@ -65,8 +99,17 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 	public PooMonkeysEngine()
 	{
 		renderer = new GLRenderer();
-		renderer.addMouseListener(this);
-		renderer.addMouseMotionListener(this);
+		renderer.setSleep(InstanceStore.DEFAULT_SLEEP_SPEED, InstanceStore.DEFAULT_SLEEP_TICKS);
+		streamer = new SnapshotStreamer(renderer);
+		streamer.share(NetProtocol.SHARED_DIRT, DirtGeometry.getInstance());
+		renderer.getCanvas().addMouseListener(this);
+		renderer.getCanvas().addMouseMotionListener(this);
+		try 
+		{
+			renderer.getStats().register("main");
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
 		
 	    the_frame = new JFrame("Hello World");
 	    
@@ -82,7 +125,7 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 	    menu.add(connectToAGame);
 	    the_frame.setJMenuBar(menuBar);
 	    
-	    the_frame.getContentPane().add(renderer);
+	    the_frame.getContentPane().add(renderer.getCanvas());
 	
 	    // shutdown the program on windows close event
 	    the_frame.addWindowListener(this);
@@ -103,18 +146,113 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 	    renderer.start();
 	}
 	
+	/**
+	 * Called by the renderer on the GL thread once the size of the view is known. The terrain and physics are set
+	 * up on a startup thread so frames keep being drawn meanwhile, see _startup.
+	 */
 	public void init()
-	{		
-		the_terrain = new Terrain(this, renderer);
-	    the_terrain.setWidth(renderer.viewWidth);
-	    the_terrain.setHeight(renderer.viewHeight);
-	    TerrainGenerator.generate(the_terrain);
-	    
-	    renderer.registerDrawable(the_terrain);
-	    
-		the_terrain.addTankRandom(players.get(0).tank);
+	{
+		final float viewWidth  = renderer.viewWidth;
+		final float viewHeight = renderer.viewHeight;
+		ExecutorService startup = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Startup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		startup.execute(new Runnable()
+		{
+			public void run()
+			{
+				_startup(viewWidth, viewHeight);
+			}
+		});
+		// The thread goes once startup is done
+		startup.shutdown();
+	}
+	
+	/**
+	 * Generate the terrain and build its geometry, start the simulation, then hand the terrain to the renderer to
+	 * upload. The game is playable once it's on screen.
+	 */
+	private void _startup(float viewWidth, float viewHeight)
+	{
+		DirtTerrain terrain = new DirtTerrain(this, renderer);
+		terrain.setWidth(viewWidth);
+		terrain.setHeight(viewHeight);
+		TerrainGenerator.generate(terrain);
+		terrain.addTankRandom(players.get(0).tank);
+		// Built here instead of on the GL thread the first time it's drawn
+		UploadQueue.prepare(terrain, viewWidth, viewHeight);
+		the_terrain = terrain;
 		
 		physicsController = new PhysicsController(this, renderer);
+		
+		DirtLayer dirtLayer = new DirtLayer(viewWidth);
+		UploadQueue.prepare(dirtLayer, viewWidth, viewHeight);
+		DirtBaker baker = new DirtBaker(renderer, DirtGeometry.getInstance(), dirtLayer, terrain);
+		terrain.setBaker(baker);
+		if(network != null)
+		{
+			baker.setBudget(0);
+		}
+		this.baker = baker;
+		
+		// PhysicsController still runs on its own thread, but steps by getTimeSinceLastDraw which is now the fixed tick length.
+		// The renderer goes last in the tick so it publishes the finished state.
+		simulation.add(renderer);
+		// Then dirt that just went to sleep can be baked, and whatever the publish changed is streamed to clients
+		simulation.add(baker);
+		simulation.add(streamer);
+		simulation.start();
+		
+		if(recording != null)
+		{
+			_recordView();
+		}
+		
+		renderer.registerPreparedDrawable(terrain, new Runnable()
+		{
+			public void run()
+			{
+				playable = true;
+				RendererStats stats = renderer.getStats();
+				stats.playable();
+				System.out.println("First frame after " + stats.getTimeToFirstFrameMillis() + "ms, playable after " + stats.getTimeToPlayableMillis() + "ms");
+			}
+		});
+		// After the terrain so it's drawn over it
+		renderer.registerPreparedDrawable(dirtLayer, null);
+	}
+	
+	/**
+	 * Record the clicks, shots and players joining from now on, to save to file on exit. See ReplayRunner.
+	 */
+	public void record(File file)
+	{
+		recordingFile = file;
+		recording = new Recording();
+		if(the_terrain != null)
+		{
+			_recordView();
+		}
+	}
+	
+	/**
+	 * The view the terrain was made for, the tick length, and the terrain and tank themselves since the generator
+	 * won't make the same ones again
+	 */
+	private void _recordView()
+	{
+		recording.viewWidth  = renderer.viewWidth;
+		recording.viewHeight = renderer.viewHeight;
+		recording.tickNanos  = simulation.getTickNanos();
+		recording.terrain(the_terrain.p[0], the_terrain.p[1], the_terrain.geometry.vertices);
+		Drawable tank = players.get(0).tank;
+		recording.tank(tank.p[0], tank.p[1], tank.rotation);
 	}
 	
 	public void delete()
@@ -132,16 +270,46 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 	{
 		gameState = STATE_FIRING_SHOT;
 		angleHUD.removeFromGLEngine = true;
-		Shot shot = new Shot(players.get(currentPlayer), 0, angleHUD.getPower(), renderer.viewWidth, renderer.viewHeight);
+		float angle = angleHUD.anglePicker.line.getRotation();
+		float power = angleHUD.getPower();
+		if(recording != null)
+		{
+			recording.fire(simulation.getTick(), currentPlayer, angle, power);
+		}
+		sendFire(angle, power);
+		Shot shot = new Shot(players.get(currentPlayer), 0, power, renderer.viewWidth, renderer.viewHeight);
 		players.get(currentPlayer).fireShot(shot);
 		renderer.registerDrawable(shot);
 		physicsController.addCollidable(shot);
 		shots.add(shot);
 	}
 
+	/**
+	 * Another player fired from their tank at an angle and power, the same way fireShot does
+	 */
+	public void enemyFired(int enemyID, float angle, float power)
+	{
+		gameState = STATE_ENEMY_FIRING_SHOT;
+		if(recording != null)
+		{
+			recording.fire(simulation.getTick(), enemyID, angle, power);
+		}
+		Player enemy = players.get(enemyID);
+		enemy.setAngle(angle);
+		Shot shot = new Shot(enemy, 0, power, renderer.viewWidth, renderer.viewHeight);
+		enemy.fireShot(shot);
+		renderer.registerDrawable(shot);
+		physicsController.addCollidable(shot);
+		shots.add(shot);
+	}
+
 	public void enemyFiredShot(int enemyID, float x, float y, float vx, float vy) 
 	{
 		gameState = STATE_ENEMY_FIRING_SHOT;
+		if(recording != null)
+		{
+			recording.shot(simulation.getTick(), enemyID, x, y, vx, vy);
+		}
 		Shot shot = new Shot(players.get(enemyID), 0, x, y, vx, vy, renderer.viewWidth, renderer.viewHeight);
 		players.get(enemyID).fireShot(shot);
 		renderer.registerDrawable(shot);
@@ -152,12 +320,24 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 	@Override
 	public void windowClosing(WindowEvent arg0) 
 	{
+		if(recording != null)
+		{
+			recording.endTick = Math.max(recording.endTick, simulation.getTick());
+			try
+			{
+				recording.save(recordingFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		System.exit(0);
 	}
 	
 	@Override
 	public void mouseDragged(MouseEvent e) 
 	{
+		if(!playable) return;
+		
 		float x = e.getX();
         float y = e.getY();
         float real_xy[] = {x, y};
@@ -172,6 +352,8 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 	@Override
 	public void mouseReleased(MouseEvent e) 
 	{
+		if(!playable) return;
+		
 		float x = e.getX();
         float y = e.getY();
 		float real_xy[] = {x, y};
@@ -182,6 +364,10 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 				angleHUD.click(real_xy[0], real_xy[1], renderer.viewWidth, renderer.viewHeight);
 				break;
 			case STATE_TESTING:
+				if(recording != null)
+				{
+					recording.click(simulation.getTick(), real_xy[0], real_xy[1]);
+				}
 				the_terrain.explodeCircle(real_xy[0]-the_terrain.p[0], real_xy[1]-the_terrain.p[1], 5f);
 				float[] f = new float[3];
 				f[0] = real_xy[0]; f[1] = real_xy[1]; f[2] = 10;
@@ -204,7 +390,10 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 		{
 			try 
 			{
-				SocketUtil.hostGame();
+				_stopBaking();
+				_network().host(NetSession.DEFAULT_PORT);
+				streamer.stream(network);
+				network.start();
 			} catch (IOException e1) {}
 		}
 		else if(action.equals("connect"))
@@ -217,36 +406,127 @@ public class PooMonkeysEngine implements WindowListener, MouseListener, MouseMot
 
 			if ((ip != null) && (ip.length() > 0)) 
 			{
-				SocketUtil.connectToIP(ip);
+				_connect(ip);
 			}
 		}
 	}
 	
-	@Override
+	/**
+	 * Clients only get the instances, not the dirt layer, so nothing more can be baked into it once networked
+	 */
+	private void _stopBaking()
+	{
+		DirtBaker baker = this.baker;
+		if(baker != null)
+		{
+			baker.setBudget(0);
+		}
+	}
+	
+	private NetSession _network() throws IOException
+	{
+		if(network == null) network = new NetSession(this);
+		return network;
+	}
+	
+	/**
+	 * Connect to a host on a thread of its own, since connecting blocks until the host answers
+	 */
+	private void _connect(final String ip)
+	{
+		Thread connecting = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					// The host's instance indices have to stay put here
+					renderer.setSleep(0, 0);
+					_stopBaking();
+					receiver = new SnapshotReceiver(renderer, _network());
+					receiver.map(NetProtocol.SHARED_DIRT, DirtGeometry.getInstance());
+					network.connect(ip, NetSession.DEFAULT_PORT);
+					network.start();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		}, "Connect");
+		connecting.setDaemon(true);
+		connecting.start();
+	}
+	
+	/**
+	 * Tell everyone connected the local player fired, they fire the same shot from our tank
+	 */
+	public void sendFire(float angle, float power)
+	{
+		if(network == null) return;
+		
+		network.sendFire(NetSession.ALL, angle, power);
+		network.flush();
+	}
+	
 	public void playerJoined() 
 	{
+		if(recording != null)
+		{
+			recording.join(simulation.getTick());
+		}
 		players.add(new Player());
 	}
 
 	@Override
-	public void incomingMessage(int socket_id, String[] data) 
+	public void connected(int connection) 
+	{
+		playerJoined();
+	}
+
+	@Override
+	public void disconnected(int connection) 
+	{
+		streamer.forget(connection);
+	}
+
+	@Override
+	public void shotReceived(int connection, float x, float y, float vx, float vy) 
+	{
+		// Player id is always one more than connection id, this is because the 
+		// first player's id is 0 and the first player has no connection. Then as 
+		// each other player connects they are given a connection id and then 
+		// immediately added to the player list, so the relationship should always hold.
+		engine.enemyFiredShot(connection+1, x, y, vx, vy);
+	}
+
+	@Override
+	public void fireReceived(int connection, float angle, float power) 
+	{
+		// Same numbering as shotReceived
+		engine.enemyFired(connection+1, angle, power);
+	}
+
+	@Override
+	public void stateReceived(int connection, NetState state) {}
+
+	@Override
+	public void instancesReceived(int connection, InstanceDelta delta) 
+	{
+		if(receiver != null)
+		{
+			receiver.apply(connection, delta);
+		}
+	}
+
+	@Override
+	public void instancesAcked(int connection, int geometryID, int seq) 
 	{
-		// Player id (first argument) is always one more than socket id, this 
-		// is because the first player's id is 0 and the first player has no 
-		// socket. Then as each other player connects they are given a socket_id
-		// and then immediately added to the player list, so the relationship
-		// should always hold. The same is true for removing players (I think).
-		engine.enemyFiredShot(socket_id+1, 
-								Float.parseFloat(data[0]), 
-								Float.parseFloat(data[1]), 
-								Float.parseFloat(data[2]), 
-								Float.parseFloat(data[3]));
+		streamer.ack(connection, geometryID, seq);
 	}
 
 	@Override
 	public void glClicked(GLClickEvent evt) 
 	{
-		if(evt.getSource() == angleHUD.startButton)
+		if(playable && evt.getSource() == angleHUD.startButton)
 		{
 			fireShot();
 		}
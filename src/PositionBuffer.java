@@ -0,0 +1,349 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import javax.media.opengl.GL2;
+
+/**
+ * PositionBuffer is the texture buffer that holds instance positions for the instancing shaders.
+ *
+ * Each geometry gets its own region of the buffer, sized to the capacity of its InstanceStore, so the
+ * position of instance i of geometry g always lives at getOffset(g) + i*2 floats. Because nothing moves
+ * around when other geometries gain or lose instances, only the blocks of instances marked dirty in each
+ * InstanceStore need to be uploaded, which is done with glBufferSubData. The stores are never modified.
+ *
+ * If any store outgrows its region the layout is redone (growing the buffer if needed) and everything is uploaded again.
+ *
+ * When fences are available the buffer is split into STREAM_REGIONS copies of the layout, used in rotation.
+ * Each frame writes into a copy the GPU has finished reading (checked with the fence placed after that copy was
+ * last drawn from) so the upload never has to wait on the previous frame's draws. Since a copy was last written
+ * several frames ago, dirty blocks are remembered per copy until that copy is next written.
+ *
+ * Positions are uploaded blended between each instance's previous and current position by the given alpha,
+ * so while the renderer is interpolating between two simulation ticks the dirty blocks are uploaded every frame.
+ */
+public class PositionBuffer
+{
+	private static final int FLOAT_BYTES = Float.SIZE / Byte.SIZE;
+	// Number of copies of the positions to rotate through when streaming
+	private static final int STREAM_REGIONS = 3;
+	// How long to wait on a fence before checking again, in nanoseconds
+	private static final long FENCE_TIMEOUT = 1000000;
+
+	private int bufferID;
+	// Number of instance positions each region of the buffer has room for, across all geometries
+	private int capacity = 0;
+
+	// Streaming: the region being written this frame and the fence placed after each region was last drawn from
+	// With only one region there is no streaming and the positions are always updated in place
+	private final int regions;
+	private int region = 0;
+	private long[] fences;
+	// Blocks still to be uploaded into each region, per geometry
+	private BitSet[][] pending = new BitSet[0][0];
+	// The pending blocks being uploaded when only some are
+	private final BitSet uploading = new BitSet();
+	// Number of times the CPU had to wait for the GPU to finish with a region
+	private long stalls = 0;
+	// Running totals for RendererStats
+	private long binds = 0;
+	private long bytesUploaded = 0;
+
+	// Start of each geometry's region and the store capacity it was laid out for, both in instances
+	private int[] regionStart    = new int[0];
+	private int[] regionCapacity = new int[0];
+
+	// Dirty runs are packed in here before being uploaded
+	// Reused from frame to frame and only replaced when a bigger run comes along
+	private FloatBuffer staging = null;
+	private PositionPacker packer = new PositionPacker();
+
+	private int[] idBuffer = new int[1];
+
+	public PositionBuffer(GL2 gl, int capacity)
+	{
+		regions = gl.isFunctionAvailable("glFenceSync") ? STREAM_REGIONS : 1;
+		fences  = new long[regions];
+		
+		gl.glGenBuffers(1, idBuffer, 0);
+		bufferID = idBuffer[0];
+		_allocate(gl, capacity);
+	}
+
+	public int getBufferID()
+	{
+		return bufferID;
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Size of the buffer's storage on the graphics card, all regions included
+	 */
+	public long getBytes()
+	{
+		return (long)regions * capacity * 2 * FLOAT_BYTES;
+	}
+
+	public boolean isStreaming()
+	{
+		return regions > 1;
+	}
+
+	public long getStalls()
+	{
+		return stalls;
+	}
+
+	/**
+	 * Total number of times the buffer has been bound
+	 */
+	public long getBinds()
+	{
+		return binds;
+	}
+
+	/**
+	 * Total number of bytes sent with glBufferSubData
+	 */
+	public long getBytesUploaded()
+	{
+		return bytesUploaded;
+	}
+
+	/**
+	 * Delete the buffer and any fences and stop the packing threads, the PositionBuffer can't be used after this
+	 */
+	public void delete(GL2 gl)
+	{
+		for(int r = 0; r < regions; r++)
+		{
+			if(fences[r] != 0)
+			{
+				gl.glDeleteSync(fences[r]);
+				fences[r] = 0;
+			}
+		}
+		idBuffer[0] = bufferID;
+		gl.glDeleteBuffers(1, idBuffer, 0);
+		bufferID = 0;
+		packer.shutdown();
+	}
+
+	/**
+	 * Offset of a geometry's positions in the buffer for the current frame, in floats. 
+	 * This is what the shader's positionOffset wants.
+	 */
+	public int getOffset(int g)
+	{
+		return (region*capacity + regionStart[g])*2;
+	}
+
+	/**
+	 * Upload whatever still needs uploading.
+	 * 
+	 * @param changed true if the stores have changed since the last update, in which case their dirty blocks are uploaded
+	 * @param alpha how far to blend from the previous positions (px, py) to the current ones, 1 for just the current ones
+	 */
+	public void update(GL2 gl, ArrayList<InstanceStore> stores, boolean changed, float alpha)
+	{
+		update(gl, stores, changed, alpha, null);
+	}
+
+	/**
+	 * Upload whatever still needs uploading in the visible blocks of each store. 
+	 * Blocks that aren't visible stay pending until they are.
+	 * 
+	 * @param visible the blocks to upload per geometry, null for all of them
+	 */
+	public void update(GL2 gl, ArrayList<InstanceStore> stores, boolean changed, float alpha, ArrayList<BitSet> visible)
+	{
+		_layout(gl, stores);
+		
+		if(regions > 1)
+		{
+			// Move on to the next region, making sure the GPU is done drawing from it
+			region = (region+1) % regions;
+			_waitForRegion(gl, region);
+		}
+
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, bufferID);
+		binds++;
+
+		for(int g = 0; g < stores.size(); g++)
+		{
+			InstanceStore instances = stores.get(g);
+			
+			if(changed)
+			{
+				// Every region needs these blocks eventually, this one needs them now
+				BitSet dirty = instances.getDirtyBlocks();
+				for(int r = 0; r < regions; r++)
+				{
+					pending[r][g].or(dirty);
+				}
+			}
+			BitSet blocks = pending[region][g];
+			if(visible != null)
+			{
+				uploading.clear();
+				uploading.or(blocks);
+				uploading.and(visible.get(g));
+				blocks.andNot(uploading);
+				blocks = uploading;
+			}
+			_uploadBlocks(gl, instances, blocks, region*capacity + regionStart[g], alpha);
+			blocks.clear();
+		}
+	}
+
+	/**
+	 * Mark the end of the draws that read from the current region.
+	 * Call after drawing, the region won't be written again until the GPU has passed this point.
+	 */
+	public void fence(GL2 gl)
+	{
+		if(regions == 1) return;
+		
+		if(fences[region] != 0)
+		{
+			gl.glDeleteSync(fences[region]);
+		}
+		fences[region] = gl.glFenceSync(GL2.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+	}
+	
+	/**
+	 * Block until the GPU has finished with a region. With enough regions this should almost never wait.
+	 */
+	private void _waitForRegion(GL2 gl, int r)
+	{
+		if(fences[r] == 0) return;
+		
+		int result = gl.glClientWaitSync(fences[r], 0, 0);
+		if(result == GL2.GL_TIMEOUT_EXPIRED)
+		{
+			stalls++;
+			do
+			{
+				result = gl.glClientWaitSync(fences[r], GL2.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT);
+			}
+			while(result == GL2.GL_TIMEOUT_EXPIRED);
+		}
+		
+		gl.glDeleteSync(fences[r]);
+		fences[r] = 0;
+	}
+
+	/**
+	 * Upload each run of blocks set in blocks
+	 */
+	private void _uploadBlocks(GL2 gl, InstanceStore instances, BitSet blocks, int start, float alpha)
+	{
+		int block = blocks.nextSetBit(0);
+		while(block >= 0)
+		{
+			int endBlock = blocks.nextClearBit(block);
+			int from = block * InstanceStore.DIRTY_BLOCK_SIZE;
+			int to   = Math.min(endBlock * InstanceStore.DIRTY_BLOCK_SIZE, instances.size);
+			if(from < to)
+			{
+				_upload(gl, instances, from, to, start, alpha);
+			}
+			block = blocks.nextSetBit(endBlock);
+		}
+	}
+
+	/**
+	 * Give each store a region the size of its capacity, growing the buffer if they don't fit.
+	 * If anything changed all positions need uploading again since they've either moved or been lost.
+	 */
+	private void _layout(GL2 gl, ArrayList<InstanceStore> stores)
+	{
+		boolean changed = stores.size() != regionStart.length;
+		for(int g = 0; !changed && g < stores.size(); g++)
+		{
+			changed = stores.get(g).capacity() != regionCapacity[g];
+		}
+		if(!changed) return;
+
+		regionStart    = new int[stores.size()];
+		regionCapacity = new int[stores.size()];
+		int total = 0;
+		for(int g = 0; g < stores.size(); g++)
+		{
+			regionStart[g]    = total;
+			regionCapacity[g] = stores.get(g).capacity();
+			total += regionCapacity[g];
+		}
+
+		if(total > capacity)
+		{
+			_allocate(gl, Math.max(total, capacity*2));
+		}
+		
+		pending = new BitSet[regions][stores.size()];
+		for(int r = 0; r < regions; r++)
+		{
+			for(int g = 0; g < stores.size(); g++)
+			{
+				pending[r][g] = new BitSet();
+				pending[r][g].set(0, (regionCapacity[g] + InstanceStore.DIRTY_BLOCK_SIZE-1) / InstanceStore.DIRTY_BLOCK_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * (Re)allocate the buffer with room for capacity instance positions in each region. 
+	 * Anything already in the buffer is lost.
+	 */
+	private void _allocate(GL2 gl, int capacity)
+	{
+		// The old storage is going away so there's nothing left to wait for
+		for(int r = 0; r < regions; r++)
+		{
+			if(fences[r] != 0)
+			{
+				gl.glDeleteSync(fences[r]);
+				fences[r] = 0;
+			}
+		}
+		
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, bufferID);
+		binds += 2;
+
+		int size = regions * capacity * 2 * FLOAT_BYTES;
+		// Use STREAM_DRAW since the positions get updated very often
+		gl.glBufferData(GL2.GL_TEXTURE_BUFFER, size, null, GL2.GL_STREAM_DRAW);
+
+		gl.glBindBuffer(GL2.GL_TEXTURE_BUFFER, 0);
+
+		// The magic: Point the active texture (TEXTURE0) at the position texture buffer
+		// Right now the buffer is empty, but once we fill it, the positionSampler in
+		// the vertex shader will be able to access the data using texelFetch
+		gl.glTexBuffer(GL2.GL_TEXTURE_BUFFER, GL2.GL_RGBA32F, bufferID);
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Upload the positions of instances [from, to) into the buffer, with instance 0 at start
+	 */
+	private void _upload(GL2 gl, InstanceStore instances, int from, int to, int start, float alpha)
+	{
+		int floats = (to-from)*2;
+		if(staging == null || staging.capacity() < floats)
+		{
+			staging = ByteBuffer.allocateDirect(Math.max(floats, InstanceStore.DIRTY_BLOCK_SIZE*2)*FLOAT_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		packer.pack(instances.x, instances.y, instances.px, instances.py, alpha, from, to, staging);
+		staging.flip();
+
+		gl.glBufferSubData(GL2.GL_TEXTURE_BUFFER, (long)(start+from)*2*FLOAT_BYTES, (long)floats*FLOAT_BYTES, staging);
+		bytesUploaded += (long)floats*FLOAT_BYTES;
+	}
+}
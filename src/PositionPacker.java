@@ -0,0 +1,174 @@
+import java.nio.FloatBuffer;
+import java.util.concurrent.Phaser;
+
+/**
+ * PositionPacker interleaves instance x and y arrays into a FloatBuffer as x0, y0, x1, y1...
+ * Optionally it blends each position with a previous one on the way, for drawing between simulation ticks.
+ *
+ * Small runs are packed on the calling thread. Runs of at least PARALLEL_THRESHOLD instances are split into
+ * disjoint slices, one per core, and each slice is written by its own thread through its own view of the buffer.
+ * The workers are started once and coordinated with a Phaser, and the views are kept until the target buffer
+ * changes, so packing allocates nothing per call.
+ *
+ * Each thread interleaves its slice a chunk at a time into its own float[] and copies that into the buffer with
+ * one bulk put, rather than putting each float on its own.
+ *
+ * Not thread safe, use one packer per render thread. Call shutdown when done with it to stop the workers.
+ */
+public class PositionPacker
+{
+	// Below this many instances it isn't worth waking the workers
+	public static final int PARALLEL_THRESHOLD = 32768;
+	// Floats interleaved at a time before being put into the buffer
+	private static final int CHUNK_FLOATS = 4096;
+
+	// The current job, published to the workers by the phaser
+	private float[] x, y;
+	private float[] px, py;
+	private float alpha;
+	private int from, to;
+
+	private final int slices;
+	private final Phaser phaser;
+	// One view per slice of the buffer being packed into
+	private FloatBuffer target = null;
+	private final FloatBuffer[] views;
+	// Interleaving space for each slice
+	private final float[][] chunks;
+
+	/**
+	 * Create a packer that uses up to one thread per core
+	 */
+	public PositionPacker()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public PositionPacker(int threads)
+	{
+		slices = Math.max(1, threads);
+		views  = new FloatBuffer[slices];
+		chunks = new float[slices][CHUNK_FLOATS];
+		// The calling thread is a party too
+		phaser = new Phaser(slices);
+		for(int s = 1; s < slices; s++)
+		{
+			Thread worker = new Thread(new Worker(s), "PositionPacker-" + s);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Pack instances [from, to) into out starting at index 0.
+	 * Leaves out's position at the end of the packed data.
+	 */
+	public void pack(float[] x, float[] y, int from, int to, FloatBuffer out)
+	{
+		pack(x, y, x, y, 1, from, to, out);
+	}
+
+	/**
+	 * Pack instances [from, to) into out starting at index 0, each at px + (x - px) * alpha.
+	 * Leaves out's position at the end of the packed data.
+	 */
+	public void pack(float[] x, float[] y, float[] px, float[] py, float alpha, int from, int to, FloatBuffer out)
+	{
+		out.clear();
+		if(slices == 1 || to-from < PARALLEL_THRESHOLD || phaser.isTerminated())
+		{
+			_pack(x, y, px, py, alpha, from, to, out, chunks[0]);
+			return;
+		}
+
+		if(target != out)
+		{
+			target = out;
+			for(int s = 0; s < slices; s++)
+			{
+				views[s] = out.duplicate();
+			}
+		}
+		this.x = x;
+		this.y = y;
+		this.px = px;
+		this.py = py;
+		this.alpha = alpha;
+		this.from = from;
+		this.to = to;
+
+		// Start the workers, do our own slice, then wait for everybody to finish
+		phaser.arriveAndAwaitAdvance();
+		_packSlice(0);
+		phaser.arriveAndAwaitAdvance();
+
+		this.x = this.y = this.px = this.py = null;
+		out.position((to-from)*2);
+	}
+
+	private void _packSlice(int slice)
+	{
+		int count = to-from;
+		int sliceFrom = from + (int)((long)count*slice/slices);
+		int sliceTo   = from + (int)((long)count*(slice+1)/slices);
+
+		FloatBuffer view = views[slice];
+		view.clear();
+		view.position((sliceFrom-from)*2);
+		_pack(x, y, px, py, alpha, sliceFrom, sliceTo, view, chunks[slice]);
+	}
+
+	private static void _pack(float[] x, float[] y, float[] px, float[] py, float alpha, int from, int to, FloatBuffer out, float[] chunk)
+	{
+		for(int start = from; start < to; start += CHUNK_FLOATS/2)
+		{
+			int end = Math.min(to, start + CHUNK_FLOATS/2);
+			int c = 0;
+			if(alpha >= 1)
+			{
+				for(int i = start; i < end; i++)
+				{
+					chunk[c++] = x[i];
+					chunk[c++] = y[i];
+				}
+			}
+			else
+			{
+				for(int i = start; i < end; i++)
+				{
+					chunk[c++] = px[i] + (x[i]-px[i])*alpha;
+					chunk[c++] = py[i] + (y[i]-py[i])*alpha;
+				}
+			}
+			out.put(chunk, 0, c);
+		}
+	}
+
+	/**
+	 * Stop the worker threads. Packing still works afterwards, all on the calling thread.
+	 */
+	public void shutdown()
+	{
+		phaser.forceTermination();
+	}
+
+	private class Worker implements Runnable
+	{
+		private final int slice;
+
+		Worker(int slice)
+		{
+			this.slice = slice;
+		}
+
+		public void run()
+		{
+			// A terminated phaser returns a negative phase straight away
+			while(phaser.arriveAndAwaitAdvance() >= 0)
+			{
+				_packSlice(slice);
+				phaser.arriveAndAwaitAdvance();
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import poomonkeys.common.Geometry;
+
+/**
+ * PseudoInstanceVertices builds the expanded vertex data pseudo-instancing needs: a copy of a geometry's vertices
+ * per instance, with the instance's index in z.
+ *
+ * Each geometry gets just enough copies for the instances it actually has, rounded up to a power of two, and more
+ * as the instance count grows. Up to SYNC_COPIES copies are built right away, anything bigger is built on a
+ * background thread and handed back from poll once it's done. Until then the renderer draws in chunks of however
+ * many copies the geometry's buffer already holds.
+ *
+ * Only builds the data, uploading it is up to the renderer. Render thread only, apart from the builder thread.
+ */
+public class PseudoInstanceVertices
+{
+	// Expansions up to this many copies are built on the calling thread
+	public static final int SYNC_COPIES = 1024;
+	private static final int FLOAT_BYTES = Float.SIZE / Byte.SIZE;
+
+	private static class Expansion
+	{
+		// Copies in the geometry's vertex buffer
+		int copies = 0;
+		// Bumped whenever the vertices change, so builds of old vertices can be thrown away
+		int generation = 0;
+		// Copies being built in the background and the build itself, if any
+		int building = 0;
+		int buildGeneration;
+		Future<FloatBuffer> build = null;
+	}
+
+	private final IdentityHashMap<Geometry, Expansion> expansions = new IdentityHashMap<Geometry, Expansion>();
+	private final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "PseudoInstanceVertices");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Number of copies of the geometry's vertices in its vertex buffer, 0 if it hasn't been built
+	 */
+	public int getCopies(Geometry g)
+	{
+		Expansion expansion = expansions.get(g);
+		return expansion == null ? 0 : expansion.copies;
+	}
+
+	/**
+	 * The geometry's vertices are new or have changed. Returns up to SYNC_COPIES copies of them to upload right away
+	 * and starts building the rest in the background if more are wanted.
+	 */
+	public FloatBuffer rebuild(Geometry g, int wanted)
+	{
+		Expansion expansion = _expansion(g);
+		expansion.generation++;
+		_cancel(expansion);
+
+		int copies = copiesFor(wanted);
+		int now = Math.min(copies, SYNC_COPIES);
+		expansion.copies = now;
+		if(copies > now)
+		{
+			_build(g, expansion, copies);
+		}
+		return expand(g.vertices, now);
+	}
+
+	/**
+	 * Check on the geometry before drawing wanted instances of it.
+	 * Returns a finished background build to upload, or null if there's nothing new. Starts a build if the
+	 * geometry needs more copies than it has or is getting.
+	 */
+	public FloatBuffer poll(Geometry g, int wanted)
+	{
+		Expansion expansion = expansions.get(g);
+		if(expansion == null) return null;
+
+		FloatBuffer built = null;
+		if(expansion.build != null && expansion.build.isDone())
+		{
+			if(expansion.buildGeneration == expansion.generation)
+			{
+				built = _get(expansion.build);
+				if(built != null)
+				{
+					expansion.copies = expansion.building;
+				}
+			}
+			expansion.build = null;
+			expansion.building = 0;
+		}
+
+		int copies = copiesFor(wanted);
+		if(copies > expansion.copies && copies > expansion.building)
+		{
+			_cancel(expansion);
+			_build(g, expansion, copies);
+		}
+		return built;
+	}
+
+	/**
+	 * Forget a geometry, dropping any build in progress
+	 */
+	public void remove(Geometry g)
+	{
+		Expansion expansion = expansions.remove(g);
+		if(expansion != null)
+		{
+			_cancel(expansion);
+		}
+	}
+
+	/**
+	 * Copies needed for some number of instances: the next power of two, at least 1
+	 */
+	public static int copiesFor(int instances)
+	{
+		if(instances <= 1) return 1;
+		return Integer.highestOneBit(instances-1) << 1;
+	}
+
+	/**
+	 * Expand 2d vertices into copies of x, y, index. Returns a direct buffer ready to upload.
+	 */
+	public static FloatBuffer expand(float[] vertices, int copies)
+	{
+		int points = vertices.length/2;
+		FloatBuffer expanded = ByteBuffer.allocateDirect(copies*points*3*FLOAT_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		// One copy at a time, only the index changes between them
+		float[] copy = new float[points*3];
+		for(int v = 0; v < points; v++)
+		{
+			copy[v*3]   = vertices[v*2];
+			copy[v*3+1] = vertices[v*2+1];
+		}
+		for(int i = 0; i < copies; i++)
+		{
+			for(int v = 2; v < copy.length; v += 3)
+			{
+				copy[v] = i;
+			}
+			expanded.put(copy);
+		}
+		expanded.flip();
+		return expanded;
+	}
+
+	private Expansion _expansion(Geometry g)
+	{
+		Expansion expansion = expansions.get(g);
+		if(expansion == null)
+		{
+			expansion = new Expansion();
+			expansions.put(g, expansion);
+		}
+		return expansion;
+	}
+
+	private void _build(Geometry g, Expansion expansion, final int copies)
+	{
+		// The vertices could change while building, work from a copy
+		final float[] vertices = g.vertices.clone();
+		expansion.building = copies;
+		expansion.buildGeneration = expansion.generation;
+		expansion.build = builder.submit(new Callable<FloatBuffer>()
+		{
+			public FloatBuffer call()
+			{
+				return expand(vertices, copies);
+			}
+		});
+	}
+
+	private void _cancel(Expansion expansion)
+	{
+		if(expansion.build != null)
+		{
+			expansion.build.cancel(false);
+			expansion.build = null;
+			expansion.building = 0;
+		}
+	}
+
+	private static FloatBuffer _get(Future<FloatBuffer> build)
+	{
+		try
+		{
+			return build.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch(ExecutionException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
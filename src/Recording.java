@@ -0,0 +1,238 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Recording is the input to a game, in simulation ticks, so ReplayRunner can play the same game again.
+ *
+ * Only what changes the simulation from outside is kept: test mode clicks, shots fired by the local player and
+ * by others, and players joining, each with the tick it happened on. Along with the size of the view, the tick
+ * length, the terrain as it was generated and where the local tank was put on it, that's enough to run the game
+ * again headlessly. TerrainGenerator has no seed, so the terrain itself has to be kept for a replay to match.
+ *
+ * Saved as text, one event to a line, so scenarios can be written or generated by hand:
+ *
+ *   poomonkeys-replay 1
+ *   view 100.0 55.555557 tick 8333333
+ *   terrain 0.0 0.0 0.0 12.5 0.0 1.0 13.1 0.0 ...   position x, y then the vertices x, y, z relative to it
+ *   tank 40.0 14.2 0.0                    local tank x, y and rotation
+ *   J 0
+ *   C 120 50.0 30.0                       click at x, y
+ *   F 300 0 0.7853982 0.8                 player 0 fires at an angle and power
+ *   S 400 1 20.0 10.0 0.01 0.02           player 1 fires from x, y with velocity vx, vy
+ *   E 5000                                last tick
+ *
+ * Floats are written the way Float.toString does so they read back exactly. Without the terrain and tank lines,
+ * as in a scenario written by hand, the replay generates them the way the game does.
+ */
+public class Recording
+{
+	private static final String HEADER = "poomonkeys-replay 1";
+
+	public static final char JOIN  = 'J';
+	public static final char CLICK = 'C';
+	public static final char FIRE  = 'F';
+	public static final char SHOT  = 'S';
+
+	public static class Event
+	{
+		public final long tick;
+		public final char type;
+		// Player the event is for, unused by clicks
+		public final int player;
+		public final float[] values;
+
+		Event(long tick, char type, int player, float[] values)
+		{
+			this.tick = tick;
+			this.type = type;
+			this.player = player;
+			this.values = values;
+		}
+	}
+
+	public float viewWidth, viewHeight;
+	public long tickNanos = 1000000000L / SimulationLoop.DEFAULT_TICKS_PER_SECOND;
+	// Tick the recording ends on
+	public long endTick = 0;
+	// The terrain's position and vertices, and the local tank's position and rotation, null if not kept
+	public float[] terrainPosition, terrainVertices, tank;
+	// In tick order
+	private final ArrayList<Event> events = new ArrayList<Event>();
+
+	public synchronized void join(long tick)
+	{
+		_add(new Event(tick, JOIN, 0, new float[0]));
+	}
+
+	public synchronized void click(long tick, float x, float y)
+	{
+		_add(new Event(tick, CLICK, 0, new float[] {x, y}));
+	}
+
+	public synchronized void fire(long tick, int player, float angle, float power)
+	{
+		_add(new Event(tick, FIRE, player, new float[] {angle, power}));
+	}
+
+	public synchronized void shot(long tick, int player, float x, float y, float vx, float vy)
+	{
+		_add(new Event(tick, SHOT, player, new float[] {x, y, vx, vy}));
+	}
+
+	/**
+	 * Keep the terrain the game is played on, geometry vertices relative to the position x, y
+	 */
+	public synchronized void terrain(float x, float y, float[] vertices)
+	{
+		terrainPosition = new float[] {x, y};
+		terrainVertices = vertices.clone();
+	}
+
+	/**
+	 * Keep where the local tank was put on the terrain
+	 */
+	public synchronized void tank(float x, float y, float rotation)
+	{
+		tank = new float[] {x, y, rotation};
+	}
+
+	private void _add(Event event)
+	{
+		events.add(event);
+		endTick = Math.max(endTick, event.tick);
+	}
+
+	public synchronized ArrayList<Event> getEvents()
+	{
+		return new ArrayList<Event>(events);
+	}
+
+	public synchronized void save(File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try
+		{
+			out.println(HEADER);
+			out.println("view " + viewWidth + " " + viewHeight + " tick " + tickNanos);
+			if(terrainVertices != null)
+			{
+				StringBuilder line = new StringBuilder("terrain " + terrainPosition[0] + " " + terrainPosition[1]);
+				for(float value : terrainVertices)
+				{
+					line.append(' ').append(value);
+				}
+				out.println(line);
+			}
+			if(tank != null)
+			{
+				out.println("tank " + tank[0] + " " + tank[1] + " " + tank[2]);
+			}
+			for(Event event : events)
+			{
+				StringBuilder line = new StringBuilder();
+				line.append(event.type).append(' ').append(event.tick);
+				if(event.type != CLICK && event.type != JOIN)
+				{
+					line.append(' ').append(event.player);
+				}
+				for(float value : event.values)
+				{
+					line.append(' ').append(value);
+				}
+				out.println(line);
+			}
+			out.println("E " + endTick);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public static Recording load(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			if(!HEADER.equals(in.readLine()))
+			{
+				throw new IOException(file + " isn't a recording");
+			}
+			Recording recording = new Recording();
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.length() == 0) continue;
+				String[] parts = line.split("\\s+");
+				try
+				{
+					recording._parse(parts);
+				}
+				catch(RuntimeException e)
+				{
+					throw new IOException("Bad line in " + file + ": " + line, e);
+				}
+			}
+			return recording;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void _parse(String[] parts)
+	{
+		if(parts[0].equals("view"))
+		{
+			viewWidth  = Float.parseFloat(parts[1]);
+			viewHeight = Float.parseFloat(parts[2]);
+			tickNanos  = Long.parseLong(parts[4]);
+			return;
+		}
+		if(parts[0].equals("terrain"))
+		{
+			float[] vertices = new float[parts.length - 3];
+			for(int v = 0; v < vertices.length; v++)
+			{
+				vertices[v] = Float.parseFloat(parts[3 + v]);
+			}
+			terrain(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), vertices);
+			return;
+		}
+		if(parts[0].equals("tank"))
+		{
+			tank(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3]));
+			return;
+		}
+
+		long tick = Long.parseLong(parts[1]);
+		switch(parts[0].charAt(0))
+		{
+			case JOIN:
+				join(tick);
+				break;
+			case CLICK:
+				click(tick, Float.parseFloat(parts[2]), Float.parseFloat(parts[3]));
+				break;
+			case FIRE:
+				fire(tick, Integer.parseInt(parts[2]), Float.parseFloat(parts[3]), Float.parseFloat(parts[4]));
+				break;
+			case SHOT:
+				shot(tick, Integer.parseInt(parts[2]), Float.parseFloat(parts[3]), Float.parseFloat(parts[4]),
+						Float.parseFloat(parts[5]), Float.parseFloat(parts[6]));
+				break;
+			case 'E':
+				endTick = Math.max(endTick, tick);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown event " + parts[0]);
+		}
+	}
+}
@@ -0,0 +1,470 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import javax.media.opengl.GL2;
+
+/**
+ * RecordingGL is a GL2 that doesn't need a GPU.
+ *
+ * Every call is recorded (if recordCalls is set) and otherwise does nothing, except for the handful of calls
+ * the renderer relies on for its own bookkeeping: buffer ids are handed out, buffer storage is kept in
+ * memory so mapped buffers can be written to, and uniform/attribute locations are stable per name.
+ * Limits and strings the GL reports (glGetIntegerv, glGetString) are whatever setInteger and setString say, 0 or
+ * null otherwise, and shaders compile (or not, see shadersCompile) with their sources kept for checking.
+ *
+ * Bytes sent to buffers and uniforms are counted per frame so upload costs can be measured without a GPU.
+ * Call endFrame() after each display to roll the per-frame counters over.
+ *
+ * Fences simulate a GPU running gpuFramesInFlight frames behind: a fence placed during frame f is signaled once
+ * frame f+gpuFramesInFlight starts. Waiting on an unsignaled fence with a timeout counts as a sync wait (a stall
+ * on real hardware) and then reports the fence as signaled.
+ */
+public class RecordingGL implements InvocationHandler
+{
+	/**
+	 * A single recorded GL call
+	 */
+	public static class Call
+	{
+		public final int frame;
+		public final String name;
+		public final Object[] args;
+
+		Call(int frame, String name, Object[] args)
+		{
+			this.frame = frame;
+			this.name  = name;
+			this.args  = args;
+		}
+
+		public String toString()
+		{
+			StringBuilder s = new StringBuilder(name).append('(');
+			for(int i = 0; args != null && i < args.length; i++)
+			{
+				if(i > 0) s.append(", ");
+				s.append(args[i] instanceof Buffer ? args[i].getClass().getSimpleName() : String.valueOf(args[i]));
+			}
+			return s.append(')').toString();
+		}
+	}
+
+	private final GL2 gl;
+	private final HashSet<String> availableFunctions = new HashSet<String>();
+	private final HashMap<Integer, Integer> integers = new HashMap<Integer, Integer>();
+	private final HashMap<Integer, String> strings = new HashMap<Integer, String>();
+
+	// Set to false to have every shader fail to compile
+	public boolean shadersCompile = true;
+	private final HashMap<Integer, String> shaderSources = new HashMap<Integer, String>();
+
+	// Set to false to only count, keeping the call stream can use a lot of memory for big scenes
+	public boolean recordCalls = true;
+	private final ArrayList<Call> calls = new ArrayList<Call>();
+
+	private int frame = 0;
+	private int frameCalls, frameBufferUploads;
+	private long frameBytesUploaded;
+	private long totalCalls, totalBufferUploads, totalBytesUploaded;
+	// Calls per function name in the current frame
+	private final HashMap<String, int[]> frameCallCounts = new HashMap<String, int[]>();
+
+	// Buffer storage, indexed by the id handed out by glGenBuffers
+	private final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	private final HashMap<Integer, Integer> boundBuffers = new HashMap<Integer, Integer>();
+	private final HashMap<String, Integer> locations = new HashMap<String, Integer>();
+	private int nextObjectID = 1;
+
+	// How many frames the simulated GPU lags behind the CPU
+	public int gpuFramesInFlight = 1;
+	// Frame each live fence was placed in
+	private final HashMap<Long, Integer> fences = new HashMap<Long, Integer>();
+	private long nextFence = 1;
+	private long syncWaits = 0;
+
+	/**
+	 * Create a GL that reports the functions needed for the given instancing mode as available
+	 */
+	public static RecordingGL create(InstancingMode mode)
+	{
+		RecordingGL recorder = new RecordingGL();
+		if(mode.shaders)             recorder.setFunctionAvailable("glCreateShader", true);
+		if(mode.drawArraysInstanced) recorder.setFunctionAvailable("glDrawArraysInstanced", true);
+		if(mode.textureBuffer)       recorder.setFunctionAvailable("glTexBuffer", true);
+		return recorder;
+	}
+
+	public RecordingGL()
+	{
+		gl = (GL2) Proxy.newProxyInstance(GL2.class.getClassLoader(), new Class<?>[] { GL2.class }, this);
+		// Buffer id 0 is never handed out
+		buffers.add(null);
+	}
+
+	/**
+	 * The GL2 to hand to the renderer
+	 */
+	public GL2 getGL()
+	{
+		return gl;
+	}
+
+	public void setFunctionAvailable(String function, boolean available)
+	{
+		if(available) availableFunctions.add(function);
+		else availableFunctions.remove(function);
+	}
+
+	/**
+	 * Set what glGetIntegerv reports for a parameter, such as GL_MAX_VERTEX_UNIFORM_COMPONENTS
+	 */
+	public void setInteger(int pname, int value)
+	{
+		integers.put(pname, value);
+	}
+
+	/**
+	 * Set what glGetString reports, such as GL_RENDERER
+	 */
+	public void setString(int name, String value)
+	{
+		strings.put(name, value);
+	}
+
+	/**
+	 * The source given to a shader with glShaderSource, null if it has none
+	 */
+	public String getShaderSource(int shader)
+	{
+		return shaderSources.get(shader);
+	}
+
+	/**
+	 * Finish the current frame, resetting the per-frame counters
+	 */
+	public void endFrame()
+	{
+		frame++;
+		frameCalls = 0;
+		frameBufferUploads = 0;
+		frameBytesUploaded = 0;
+		frameCallCounts.clear();
+		calls.clear();
+	}
+
+	public int getFrame()                 { return frame; }
+	public ArrayList<Call> getCalls()     { return calls; }
+	public int getFrameCalls()            { return frameCalls; }
+	public int getFrameBufferUploads()    { return frameBufferUploads; }
+	public long getFrameBytesUploaded()   { return frameBytesUploaded; }
+	public long getTotalCalls()           { return totalCalls; }
+	public long getTotalBufferUploads()   { return totalBufferUploads; }
+	public long getTotalBytesUploaded()   { return totalBytesUploaded; }
+	public long getSyncWaits()            { return syncWaits; }
+
+	/**
+	 * Number of calls made to the named function in the current frame
+	 */
+	public int getFrameCallCount(String name)
+	{
+		int[] count = frameCallCounts.get(name);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * The in-memory storage backing a buffer, for checking what was uploaded
+	 */
+	public ByteBuffer getBufferData(int bufferID)
+	{
+		return buffers.get(bufferID);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+	{
+		String name = method.getName();
+
+		if(method.getDeclaringClass() == Object.class)
+		{
+			if(name.equals("equals")) return proxy == args[0];
+			if(name.equals("hashCode")) return System.identityHashCode(proxy);
+			return "RecordingGL";
+		}
+
+		frameCalls++;
+		totalCalls++;
+		int[] count = frameCallCounts.get(name);
+		if(count == null)
+		{
+			count = new int[1];
+			frameCallCounts.put(name, count);
+		}
+		count[0]++;
+		if(recordCalls)
+		{
+			calls.add(new Call(frame, name, args));
+		}
+
+		if(name.equals("getGL") || name.equals("getGL2"))
+		{
+			return gl;
+		}
+		else if(name.equals("isFunctionAvailable"))
+		{
+			return availableFunctions.contains((String) args[0]);
+		}
+		else if(name.equals("glGenBuffers"))
+		{
+			_genBuffers(args);
+		}
+		else if(name.equals("glDeleteBuffers"))
+		{
+			_deleteBuffers(args);
+		}
+		else if(name.equals("glBindBuffer"))
+		{
+			boundBuffers.put((Integer) args[0], (Integer) args[1]);
+		}
+		else if(name.equals("glBufferData"))
+		{
+			_bufferData((Integer) args[0], ((Number) args[1]).intValue(), (Buffer) args[2]);
+		}
+		else if(name.equals("glBufferSubData"))
+		{
+			_bufferSubData((Integer) args[0], ((Number) args[1]).intValue(), ((Number) args[2]).intValue(), (Buffer) args[3]);
+		}
+		else if(name.equals("glMapBuffer"))
+		{
+			ByteBuffer storage = _bound((Integer) args[0]);
+			if(storage == null) return null;
+			ByteBuffer mapped = storage.duplicate();
+			mapped.clear();
+			return mapped;
+		}
+		else if(name.equals("glUnmapBuffer"))
+		{
+			// Assume the whole mapped buffer was written
+			ByteBuffer storage = _bound((Integer) args[0]);
+			if(storage != null) _upload(storage.capacity());
+			return true;
+		}
+		else if(name.startsWith("glUniform") && name.endsWith("v"))
+		{
+			// glUniform1fv, glUniformMatrix3fv etc, count is always the second argument
+			int components = name.startsWith("glUniformMatrix") ? (name.charAt(15)-'0')*(name.charAt(15)-'0') : name.charAt(9)-'0';
+			_upload(components * (Integer) args[1] * 4);
+		}
+		else if(name.equals("glGetUniformLocation") || name.equals("glGetAttribLocation"))
+		{
+			return _location((String) args[1]);
+		}
+		else if(name.equals("glFenceSync"))
+		{
+			fences.put(nextFence, frame);
+			return nextFence++;
+		}
+		else if(name.equals("glClientWaitSync"))
+		{
+			return _clientWaitSync((Long) args[0], ((Number) args[2]).longValue());
+		}
+		else if(name.equals("glDeleteSync"))
+		{
+			fences.remove((Long) args[0]);
+		}
+		else if(name.equals("glCreateShader") || name.equals("glCreateProgram"))
+		{
+			return nextObjectID++;
+		}
+		else if(name.equals("glShaderSource"))
+		{
+			_shaderSource(args);
+		}
+		else if(name.equals("glGetShaderiv") || name.equals("glGetProgramiv"))
+		{
+			boolean status = (Integer) args[1] == GL2.GL_COMPILE_STATUS || (Integer) args[1] == GL2.GL_LINK_STATUS;
+			_putInteger(args, 2, status && shadersCompile ? 1 : 0);
+		}
+		else if(name.equals("glGetIntegerv"))
+		{
+			Integer value = integers.get((Integer) args[0]);
+			_putInteger(args, 1, value == null ? 0 : value);
+		}
+		else if(name.equals("glGetString"))
+		{
+			return strings.get((Integer) args[0]);
+		}
+
+		return _defaultValue(method.getReturnType());
+	}
+
+	private int _clientWaitSync(long fence, long timeout)
+	{
+		Integer placed = fences.get(fence);
+		if(placed == null) return GL2.GL_WAIT_FAILED;
+		if(frame >= placed + gpuFramesInFlight) return GL2.GL_ALREADY_SIGNALED;
+		if(timeout == 0) return GL2.GL_TIMEOUT_EXPIRED;
+
+		// The CPU would sit here until the GPU caught up
+		syncWaits++;
+		fences.put(fence, frame - gpuFramesInFlight);
+		return GL2.GL_CONDITION_SATISFIED;
+	}
+
+	/**
+	 * Answer a glGet style query whose result goes into an int[] (with an offset after it) or an IntBuffer at args[i]
+	 */
+	private static void _putInteger(Object[] args, int i, int value)
+	{
+		if(args[i] instanceof IntBuffer)
+		{
+			IntBuffer result = (IntBuffer) args[i];
+			result.put(result.position(), value);
+		}
+		else
+		{
+			((int[]) args[i])[(Integer) args[i+1]] = value;
+		}
+	}
+
+	private void _shaderSource(Object[] args)
+	{
+		String[] sources = (String[]) args[2];
+		StringBuilder source = new StringBuilder();
+		for(int i = 0; i < (Integer) args[1]; i++)
+		{
+			source.append(sources[i]);
+		}
+		shaderSources.put((Integer) args[0], source.toString());
+	}
+
+	private void _genBuffers(Object[] args)
+	{
+		int n = (Integer) args[0];
+		for(int i = 0; i < n; i++)
+		{
+			int id = buffers.size();
+			buffers.add(null);
+			if(args[1] instanceof IntBuffer)
+			{
+				IntBuffer ids = (IntBuffer) args[1];
+				ids.put(ids.position()+i, id);
+			}
+			else
+			{
+				((int[]) args[1])[(Integer) args[2]+i] = id;
+			}
+		}
+	}
+
+	private void _deleteBuffers(Object[] args)
+	{
+		int n = (Integer) args[0];
+		for(int i = 0; i < n; i++)
+		{
+			int id;
+			if(args[1] instanceof IntBuffer)
+			{
+				IntBuffer ids = (IntBuffer) args[1];
+				id = ids.get(ids.position()+i);
+			}
+			else
+			{
+				id = ((int[]) args[1])[(Integer) args[2]+i];
+			}
+			if(id > 0 && id < buffers.size())
+			{
+				buffers.set(id, null);
+			}
+		}
+	}
+
+	private ByteBuffer _bound(int target)
+	{
+		Integer id = boundBuffers.get(target);
+		if(id == null || id == 0) return null;
+		return buffers.get(id);
+	}
+
+	private void _bufferData(int target, int size, Buffer data)
+	{
+		Integer id = boundBuffers.get(target);
+		if(id == null || id == 0) return;
+
+		ByteBuffer storage = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		buffers.set(id, storage);
+
+		if(data != null)
+		{
+			_copy(storage, 0, size, data);
+			_upload(size);
+		}
+	}
+
+	private void _bufferSubData(int target, int offset, int size, Buffer data)
+	{
+		ByteBuffer storage = _bound(target);
+		if(storage != null && data != null)
+		{
+			_copy(storage, offset, size, data);
+		}
+		_upload(size);
+	}
+
+	private void _copy(ByteBuffer storage, int offset, int size, Buffer data)
+	{
+		ByteBuffer dst = storage.duplicate().order(storage.order());
+		dst.position(offset);
+		dst.limit(offset+size);
+		if(data instanceof FloatBuffer)
+		{
+			FloatBuffer src = ((FloatBuffer) data).duplicate();
+			src.limit(Math.min(src.limit(), src.position()+size/4));
+			dst.asFloatBuffer().put(src);
+		}
+		else if(data instanceof ByteBuffer)
+		{
+			ByteBuffer src = ((ByteBuffer) data).duplicate();
+			src.limit(Math.min(src.limit(), src.position()+size));
+			dst.put(src);
+		}
+	}
+
+	private void _upload(long bytes)
+	{
+		frameBufferUploads++;
+		totalBufferUploads++;
+		frameBytesUploaded += bytes;
+		totalBytesUploaded += bytes;
+	}
+
+	private int _location(String name)
+	{
+		Integer location = locations.get(name);
+		if(location == null)
+		{
+			location = locations.size();
+			locations.put(name, location);
+		}
+		return location;
+	}
+
+	private static Object _defaultValue(Class<?> type)
+	{
+		if(type == boolean.class) return false;
+		if(type == int.class)     return 0;
+		if(type == long.class)    return 0L;
+		if(type == float.class)   return 0f;
+		if(type == double.class)  return 0d;
+		if(type == short.class)   return (short) 0;
+		if(type == byte.class)    return (byte) 0;
+		return null;
+	}
+}
@@ -0,0 +1,173 @@
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+
+/**
+ * RenderQueue collects the draws for a frame, along with what state each needs, before they are submitted.
+ *
+ * Each Item is one glDrawArrays of either a Drawable's client side vertices or a Geometry's vertex buffer, along with
+ * the matrix it is drawn with. Items are drawn in the order they were added. There is no depth test and the drawables
+ * overlap, so that order is what puts one drawable on top of another and it is never changed. Runs of adjacent items
+ * that share a program, buffer and draw mode only set that state once, see GLStateCache. Items are pooled and reused
+ * from frame to frame.
+ *
+ * For the fixed pipeline the queue also keeps the modelview matrix stack itself (see pushTransform) so that every
+ * item carries its whole transform and can be drawn without replaying the traversal.
+ */
+public class RenderQueue
+{
+	public static class Item
+	{
+		public int program;
+		public int buffer;
+		public int drawMode;
+		public int count;
+		// One of these is set
+		public Drawable drawable;
+		public Geometry geometry;
+		// 3x3 for shaders or 4x4 for the fixed pipeline, column major
+		public final float[] matrix = new float[16];
+	}
+
+	private Item[] items = new Item[64];
+	private int size = 0;
+
+	// Fixed pipeline transform stack, 2d affine a, b, c, d, tx, ty per level
+	private float[] transforms = new float[6*16];
+	private int depth = 0;
+
+	public RenderQueue()
+	{
+		for(int i = 0; i < items.length; i++)
+		{
+			items[i] = new Item();
+		}
+		_identity(0);
+	}
+
+	/**
+	 * Get an item to fill in. It is drawn after every item added before it.
+	 */
+	public Item add(int program, int buffer, int drawMode, int count)
+	{
+		if(size == items.length)
+		{
+			int oldLength = items.length;
+			items = Arrays.copyOf(items, oldLength*2);
+			for(int i = oldLength; i < items.length; i++)
+			{
+				items[i] = new Item();
+			}
+		}
+
+		Item item = items[size];
+		item.program  = program;
+		item.buffer   = buffer;
+		item.drawMode = drawMode;
+		item.count    = count;
+		item.drawable = null;
+		item.geometry = null;
+		size++;
+		return item;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public Item get(int i)
+	{
+		return items[i];
+	}
+
+	/**
+	 * Empty the queue, dropping its references to drawables and geometry
+	 */
+	public void clear()
+	{
+		for(int i = 0; i < size; i++)
+		{
+			items[i].drawable = null;
+			items[i].geometry = null;
+		}
+		size = 0;
+		depth = 0;
+		_identity(0);
+	}
+
+	/**
+	 * Copy a 3x3 matrix out of a FloatBuffer (as Matrix3x3.getMatrix gives) without moving its position
+	 */
+	public static void copyMatrix(FloatBuffer from, float[] to)
+	{
+		int start = from.position();
+		for(int i = 0; i < 9; i++)
+		{
+			to[i] = from.get(start+i);
+		}
+	}
+
+	/**
+	 * Fixed pipeline: push the current transform and apply a translation, rotation (in degrees) and scale to it,
+	 * the same as glTranslatef, glRotatef and glScalef would.
+	 */
+	public void pushTransform(float x, float y, float rotation, float scaleX, float scaleY)
+	{
+		if((depth+2)*6 > transforms.length)
+		{
+			transforms = Arrays.copyOf(transforms, transforms.length*2);
+		}
+		int from = depth*6;
+		int to   = from+6;
+		float a = transforms[from], b = transforms[from+1], c = transforms[from+2], d = transforms[from+3];
+
+		// Translate
+		transforms[to+4] = a*x + c*y + transforms[from+4];
+		transforms[to+5] = b*x + d*y + transforms[from+5];
+
+		// Rotate then scale
+		double radians = Math.toRadians(rotation);
+		float cos = (float)Math.cos(radians), sin = (float)Math.sin(radians);
+		transforms[to]   = (a*cos + c*sin) * scaleX;
+		transforms[to+1] = (b*cos + d*sin) * scaleX;
+		transforms[to+2] = (c*cos - a*sin) * scaleY;
+		transforms[to+3] = (d*cos - b*sin) * scaleY;
+
+		depth++;
+	}
+
+	public void popTransform()
+	{
+		depth--;
+	}
+
+	/**
+	 * Fixed pipeline: write the current transform as a column major 4x4 matrix for glLoadMatrixf
+	 */
+	public void getTransform(float[] matrix)
+	{
+		int t = depth*6;
+		Arrays.fill(matrix, 0);
+		matrix[0]  = transforms[t];
+		matrix[1]  = transforms[t+1];
+		matrix[4]  = transforms[t+2];
+		matrix[5]  = transforms[t+3];
+		matrix[10] = 1;
+		matrix[12] = transforms[t+4];
+		matrix[13] = transforms[t+5];
+		matrix[15] = 1;
+	}
+
+	private void _identity(int level)
+	{
+		int t = level*6;
+		transforms[t]   = 1;
+		transforms[t+1] = 0;
+		transforms[t+2] = 0;
+		transforms[t+3] = 1;
+		transforms[t+4] = 0;
+		transforms[t+5] = 0;
+	}
+}
@@ -0,0 +1,419 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * RendererStats times the phases of each frame and counts what the frame sent to the GPU.
+ *
+ * The render thread calls beginFrame, brackets each phase with System.nanoTime and adds it with addPhase, bumps the
+ * counters as it goes and calls endFrame. The only allocation per frame is the FrameEvent, and the per geometry
+ * events when flight recording is on.
+ *
+ * Every frame is committed as a FrameEvent (and an InstancesDrawnEvent per geometry) for Java Flight Recorder, and
+ * the last HISTORY_FRAMES frames are kept for the percentiles served over JMX once register has been called.
+ * Phases nest: geometry compilation happens inside whichever pass found the geometry had changed and is counted in both.
+ *
+ * Buffer allocations and deletions are also tracked, so the memory the renderer holds on the graphics card can be
+ * watched over a long session. Unlike the totals it isn't cleared by reset.
+ *
+ * How long startup took is kept too: from the JVM starting to the first frame, and to playable being called once
+ * the game is ready to play.
+ */
+public class RendererStats implements RendererStatsMBean
+{
+	public static final int PHASE_DRAWABLES        = 0;
+	public static final int PHASE_PACKING          = 1;
+	public static final int PHASE_INSTANCED_DRAW   = 2;
+	public static final int PHASE_GEOMETRY_COMPILE = 3;
+	private static final String[] PHASE_NAMES = {"drawables", "packing", "instancedDraw", "geometryCompile"};
+
+	// Number of frames the percentiles are taken over
+	public static final int HISTORY_FRAMES = 600;
+
+	// The frame in progress, only touched by the render thread
+	private long frameStart;
+	private final long[] phaseNanos = new long[PHASE_NAMES.length];
+	private long frameDrawCalls, frameBufferBinds, frameBytesUploaded, frameDrawablesRemoved, frameFenceStalls;
+	private long frameInstancesCulled, frameDrawablesCulled;
+	private long[] frameInstancesDrawn = new long[0];
+	private FrameEvent event;
+
+	// Totals, read from other threads
+	private volatile long frames, drawCalls, bufferBinds, bytesUploaded, drawablesRemoved, fenceStalls;
+	private volatile long instancesCulled, drawablesCulled;
+	private volatile long[] instancesDrawn = new long[0];
+
+	// Size of each buffer allocated on the graphics card, by buffer id. Only touched by the render thread.
+	private final HashMap<Integer, Long> bufferBytes = new HashMap<Integer, Long>();
+	private volatile long gpuBytes;
+	private volatile int gpuBuffers;
+
+	// Uptime at the first frame and when the game became playable, -1 until then
+	private volatile long firstFrameMillis = -1, playableMillis = -1;
+
+	// Ring of the last HISTORY_FRAMES frame times and phase times, index 0 is the whole frame. Guarded by itself.
+	private final long[][] history = new long[PHASE_NAMES.length+1][HISTORY_FRAMES];
+
+	public void beginFrame()
+	{
+		frameStart = System.nanoTime();
+		Arrays.fill(phaseNanos, 0);
+		Arrays.fill(frameInstancesDrawn, 0);
+		frameDrawCalls = frameBufferBinds = frameBytesUploaded = frameDrawablesRemoved = frameFenceStalls = 0;
+		frameInstancesCulled = frameDrawablesCulled = 0;
+
+		event = new FrameEvent();
+		event.begin();
+	}
+
+	public void addPhase(int phase, long nanos)
+	{
+		phaseNanos[phase] += nanos;
+	}
+
+	/**
+	 * Time spent in a phase so far this frame
+	 */
+	public long getPhaseNanos(int phase)
+	{
+		return phaseNanos[phase];
+	}
+
+	public void drawCalls(int n)
+	{
+		frameDrawCalls += n;
+	}
+
+	public void bufferBind()
+	{
+		frameBufferBinds++;
+	}
+
+	public void bufferBinds(long n)
+	{
+		frameBufferBinds += n;
+	}
+
+	public void bytesUploaded(long bytes)
+	{
+		frameBytesUploaded += bytes;
+	}
+
+	public void drawableRemoved()
+	{
+		frameDrawablesRemoved++;
+	}
+
+	public void fenceStalls(long n)
+	{
+		frameFenceStalls += n;
+	}
+
+	/**
+	 * Instances left out for being off screen
+	 */
+	public void instancesCulled(long n)
+	{
+		frameInstancesCulled += n;
+	}
+
+	/**
+	 * Drawables left out for being off screen, children included
+	 */
+	public void drawablesCulled(long n)
+	{
+		frameDrawablesCulled += n;
+	}
+
+	public void instancesDrawn(int geometryID, int instances)
+	{
+		if(frameInstancesDrawn.length <= geometryID)
+		{
+			frameInstancesDrawn = Arrays.copyOf(frameInstancesDrawn, geometryID+1);
+		}
+		frameInstancesDrawn[geometryID] += instances;
+	}
+
+	/**
+	 * A buffer has been given new storage of the given size, replacing whatever it had before
+	 */
+	public void bufferAllocated(int buffer, long bytes)
+	{
+		Long previous = bufferBytes.put(buffer, bytes);
+		gpuBytes  += bytes - (previous == null ? 0 : previous);
+		gpuBuffers = bufferBytes.size();
+	}
+
+	/**
+	 * A buffer has been deleted
+	 */
+	public void bufferDeleted(int buffer)
+	{
+		Long previous = bufferBytes.remove(buffer);
+		if(previous == null) return;
+
+		gpuBytes  -= previous;
+		gpuBuffers = bufferBytes.size();
+	}
+
+	public void endFrame()
+	{
+		long frameNanos = System.nanoTime() - frameStart;
+
+		synchronized(history)
+		{
+			int slot = (int)(frames % HISTORY_FRAMES);
+			history[0][slot] = frameNanos;
+			for(int p = 0; p < phaseNanos.length; p++)
+			{
+				history[p+1][slot] = phaseNanos[p];
+			}
+			frames++;
+		}
+		if(firstFrameMillis == -1)
+		{
+			firstFrameMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		}
+		drawCalls        += frameDrawCalls;
+		bufferBinds      += frameBufferBinds;
+		bytesUploaded    += frameBytesUploaded;
+		drawablesRemoved += frameDrawablesRemoved;
+		fenceStalls      += frameFenceStalls;
+		instancesCulled  += frameInstancesCulled;
+		drawablesCulled  += frameDrawablesCulled;
+		if(instancesDrawn.length != frameInstancesDrawn.length)
+		{
+			instancesDrawn = new long[frameInstancesDrawn.length];
+		}
+		System.arraycopy(frameInstancesDrawn, 0, instancesDrawn, 0, frameInstancesDrawn.length);
+
+		_commitEvents();
+	}
+
+	private void _commitEvents()
+	{
+		event.end();
+		if(!event.shouldCommit()) return;
+
+		long totalInstances = 0;
+		for(int g = 0; g < frameInstancesDrawn.length; g++)
+		{
+			totalInstances += frameInstancesDrawn[g];
+
+			InstancesDrawnEvent instancesEvent = new InstancesDrawnEvent();
+			instancesEvent.geometryID = g;
+			instancesEvent.instances  = frameInstancesDrawn[g];
+			instancesEvent.commit();
+		}
+
+		event.drawablesNanos       = phaseNanos[PHASE_DRAWABLES];
+		event.packingNanos         = phaseNanos[PHASE_PACKING];
+		event.instancedDrawNanos   = phaseNanos[PHASE_INSTANCED_DRAW];
+		event.geometryCompileNanos = phaseNanos[PHASE_GEOMETRY_COMPILE];
+		event.drawCalls        = frameDrawCalls;
+		event.bufferBinds      = frameBufferBinds;
+		event.bytesUploaded    = frameBytesUploaded;
+		event.instancesDrawn   = totalInstances;
+		event.drawablesRemoved = frameDrawablesRemoved;
+		event.fenceStalls      = frameFenceStalls;
+		event.instancesCulled  = frameInstancesCulled;
+		event.drawablesCulled  = frameDrawablesCulled;
+		event.gpuBytes         = gpuBytes;
+		event.commit();
+	}
+
+	/**
+	 * The game has finished starting up and can be played. Only the first call counts.
+	 */
+	public void playable()
+	{
+		if(playableMillis == -1)
+		{
+			playableMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		}
+	}
+
+	/**
+	 * Serve these stats over JMX as poomonkeys:type=Renderer,name=<name>
+	 */
+	public void register(String name) throws JMException
+	{
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("poomonkeys:type=Renderer,name=" + name));
+	}
+
+	/**
+	 * The p-th percentile of each row of the history
+	 */
+	private long[] _percentiles(double p)
+	{
+		long[] result = new long[history.length];
+		synchronized(history)
+		{
+			int n = (int)Math.min(frames, HISTORY_FRAMES);
+			if(n == 0) return result;
+
+			long[] sorted = new long[n];
+			for(int row = 0; row < history.length; row++)
+			{
+				System.arraycopy(history[row], 0, sorted, 0, n);
+				Arrays.sort(sorted);
+				result[row] = sorted[Math.min(n-1, (int)(p*n))];
+			}
+		}
+		return result;
+	}
+
+	private static long[] _phases(long[] rows)
+	{
+		return Arrays.copyOfRange(rows, 1, rows.length);
+	}
+
+	@Override
+	public long getFrameCount()
+	{
+		return frames;
+	}
+
+	@Override
+	public String[] getPhaseNames()
+	{
+		return PHASE_NAMES.clone();
+	}
+
+	@Override
+	public long getFrameP50Nanos()
+	{
+		return _percentiles(.5)[0];
+	}
+
+	@Override
+	public long getFrameP95Nanos()
+	{
+		return _percentiles(.95)[0];
+	}
+
+	@Override
+	public long getFrameP99Nanos()
+	{
+		return _percentiles(.99)[0];
+	}
+
+	@Override
+	public long getFrameMaxNanos()
+	{
+		return _percentiles(1)[0];
+	}
+
+	@Override
+	public long[] getPhaseP50Nanos()
+	{
+		return _phases(_percentiles(.5));
+	}
+
+	@Override
+	public long[] getPhaseP95Nanos()
+	{
+		return _phases(_percentiles(.95));
+	}
+
+	@Override
+	public long[] getPhaseP99Nanos()
+	{
+		return _phases(_percentiles(.99));
+	}
+
+	@Override
+	public long[] getPhaseMaxNanos()
+	{
+		return _phases(_percentiles(1));
+	}
+
+	@Override
+	public long getDrawCalls()
+	{
+		return drawCalls;
+	}
+
+	@Override
+	public long getBufferBinds()
+	{
+		return bufferBinds;
+	}
+
+	@Override
+	public long getBytesUploaded()
+	{
+		return bytesUploaded;
+	}
+
+	@Override
+	public long getDrawablesRemoved()
+	{
+		return drawablesRemoved;
+	}
+
+	@Override
+	public long getFenceStalls()
+	{
+		return fenceStalls;
+	}
+
+	@Override
+	public long getInstancesCulled()
+	{
+		return instancesCulled;
+	}
+
+	@Override
+	public long getDrawablesCulled()
+	{
+		return drawablesCulled;
+	}
+
+	@Override
+	public int getGpuBuffers()
+	{
+		return gpuBuffers;
+	}
+
+	@Override
+	public long getGpuBytes()
+	{
+		return gpuBytes;
+	}
+
+	@Override
+	public long getTimeToFirstFrameMillis()
+	{
+		return firstFrameMillis;
+	}
+
+	@Override
+	public long getTimeToPlayableMillis()
+	{
+		return playableMillis;
+	}
+
+	@Override
+	public long[] getInstancesDrawn()
+	{
+		return instancesDrawn.clone();
+	}
+
+	@Override
+	public void reset()
+	{
+		synchronized(history)
+		{
+			for(int row = 0; row < history.length; row++)
+			{
+				Arrays.fill(history[row], 0);
+			}
+			frames = 0;
+		}
+		drawCalls = bufferBinds = bytesUploaded = drawablesRemoved = fenceStalls = 0;
+		instancesCulled = drawablesCulled = 0;
+	}
+}
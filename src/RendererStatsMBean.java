@@ -0,0 +1,42 @@
+/**
+ * Management interface for RendererStats. 
+ * Percentiles are over the last RendererStats.HISTORY_FRAMES frames, phases are in the order of getPhaseNames.
+ */
+public interface RendererStatsMBean
+{
+	public long getFrameCount();
+
+	public String[] getPhaseNames();
+
+	public long getFrameP50Nanos();
+	public long getFrameP95Nanos();
+	public long getFrameP99Nanos();
+	public long getFrameMaxNanos();
+
+	public long[] getPhaseP50Nanos();
+	public long[] getPhaseP95Nanos();
+	public long[] getPhaseP99Nanos();
+	public long[] getPhaseMaxNanos();
+
+	// Totals since the last reset
+	public long getDrawCalls();
+	public long getBufferBinds();
+	public long getBytesUploaded();
+	public long getDrawablesRemoved();
+	public long getFenceStalls();
+	public long getInstancesCulled();
+	public long getDrawablesCulled();
+
+	// Buffers the renderer has on the graphics card right now, and their total size
+	public int getGpuBuffers();
+	public long getGpuBytes();
+
+	// Milliseconds from the JVM starting to the first frame and to the game being playable, -1 until then
+	public long getTimeToFirstFrameMillis();
+	public long getTimeToPlayableMillis();
+
+	// Instances drawn last frame, by geometry id
+	public long[] getInstancesDrawn();
+
+	public void reset();
+}
@@ -0,0 +1,275 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import poomonkeys.common.DirtGeometry;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.GameEngine;
+import poomonkeys.common.PhysicsController;
+import poomonkeys.common.Player;
+import poomonkeys.common.Shot;
+import poomonkeys.common.Terrain;
+import poomonkeys.common.TerrainGenerator;
+
+/**
+ * ReplayRunner plays a Recording again headlessly, as fast as the CPU allows, for repeatable load tests and for
+ * checking an engine change doesn't change what the simulation does.
+ *
+ * The game is set up as PooMonkeysEngine sets it up, on a LockstepRenderer so that physics takes exactly one step
+ * per recorded tick. Each event is applied between the steps for its tick, the same way the engine applied it.
+ * At the end it reports how fast the ticks went, the most instances there were, how many were baked into the dirt
+ * layer and a checksum of where every instance and the baked dirt ended up:
+ *
+ *   java ReplayRunner recording.txt [extra ticks]
+ *
+ * Extra ticks keep running after the last event, to let the debris settle.
+ *
+ * The terrain and the local tank's place on it are restored from the recording, so replays of the same recording
+ * always give the same checksum. A recording without them, such as one written by hand, has them generated the
+ * way the game does, and TerrainGenerator has no seed, so its checksums are only comparable between runs that get
+ * the same terrain out of it.
+ */
+public class ReplayRunner implements GameEngine
+{
+	public static class Result
+	{
+		public long ticks;
+		public long nanos;
+		// Most instances of each geometry at the end of any tick, and of all of them together
+		public int[] peakInstances = new int[0];
+		public int peakTotalInstances;
+		// Instances baked into the dirt layer
+		public long baked;
+		public long checksum;
+
+		public double getTicksPerSecond()
+		{
+			return ticks * 1e9 / nanos;
+		}
+
+		public String toString()
+		{
+			StringBuilder s = new StringBuilder();
+			s.append(String.format("%d ticks in %.2fs, %.0f ticks/s%n", ticks, nanos/1e9, getTicksPerSecond()));
+			s.append("peak instances " + peakTotalInstances);
+			for(int g = 0; g < peakInstances.length; g++)
+			{
+				s.append(g == 0 ? " (" : ", ").append(peakInstances[g]);
+				if(g == peakInstances.length-1) s.append(')');
+			}
+			s.append(String.format("%nbaked %d", baked));
+			s.append(String.format("%nchecksum %016x", checksum));
+			return s.toString();
+		}
+	}
+
+	private final Recording recording;
+	private final LockstepRenderer renderer;
+	private PhysicsController physicsController;
+	private DirtTerrain terrain;
+	private DirtBaker baker;
+	ArrayList<Player> players = new ArrayList<Player>();
+	ArrayList<Shot> shots = new ArrayList<Shot>();
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length == 0)
+		{
+			System.out.println("java ReplayRunner recording [extra ticks]");
+			return;
+		}
+		Recording recording = Recording.load(new File(args[0]));
+		long extra = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		System.out.println(new ReplayRunner(recording).run(extra));
+		// Don't wait on PhysicsController's thread to find the gate closed
+		System.exit(0);
+	}
+
+	public ReplayRunner(Recording recording)
+	{
+		this.recording = recording;
+		renderer = new LockstepRenderer(recording.viewWidth, recording.viewHeight);
+		renderer.setSleep(InstanceStore.DEFAULT_SLEEP_SPEED, InstanceStore.DEFAULT_SLEEP_TICKS);
+
+		// Same as PooMonkeysEngine, the local player is 0
+		players.add(new Player());
+		renderer.registerDrawable(players.get(0).tank);
+
+		terrain = new DirtTerrain(this, renderer);
+		terrain.setWidth(renderer.viewWidth);
+		terrain.setHeight(renderer.viewHeight);
+		if(recording.terrainVertices != null)
+		{
+			terrain.p[0] = recording.terrainPosition[0];
+			terrain.p[1] = recording.terrainPosition[1];
+			terrain.geometry.vertices = recording.terrainVertices.clone();
+			terrain.geometry.hasChanged = true;
+		}
+		else
+		{
+			TerrainGenerator.generate(terrain);
+		}
+		renderer.registerDrawable(terrain);
+		if(recording.tank != null)
+		{
+			Drawable tank = players.get(0).tank;
+			tank.p[0] = recording.tank[0];
+			tank.p[1] = recording.tank[1];
+			tank.rotation = recording.tank[2];
+		}
+		else
+		{
+			terrain.addTankRandom(players.get(0).tank);
+		}
+
+		DirtLayer dirtLayer = new DirtLayer(renderer.viewWidth);
+		renderer.registerDrawable(dirtLayer);
+		baker = new DirtBaker(renderer, DirtGeometry.getInstance(), dirtLayer, terrain);
+		terrain.setBaker(baker);
+
+		physicsController = new PhysicsController(this, renderer);
+	}
+
+	/**
+	 * Play the recording through, then extraTicks more
+	 */
+	public Result run(long extraTicks) throws InterruptedException
+	{
+		ArrayList<Recording.Event> events = recording.getEvents();
+		// Stable, events on the same tick stay in the order they happened
+		Collections.sort(events, new Comparator<Recording.Event>()
+		{
+			public int compare(Recording.Event a, Recording.Event b)
+			{
+				return Long.compare(a.tick, b.tick);
+			}
+		});
+
+		Result result = new Result();
+		long ticks = recording.endTick + 1 + extraTicks;
+		int next = 0;
+		long start = System.nanoTime();
+		for(long tick = 0; tick < ticks; tick++)
+		{
+			renderer.awaitPhysics();
+			// What the last step did, as the renderer would publish it
+			renderer.tick(tick, recording.tickNanos);
+			baker.tick(tick, recording.tickNanos);
+			_measure(result);
+
+			while(next < events.size() && events.get(next).tick <= tick)
+			{
+				_apply(events.get(next++));
+			}
+			renderer.step();
+		}
+		renderer.awaitPhysics();
+		renderer.tick(ticks, recording.tickNanos);
+		baker.tick(ticks, recording.tickNanos);
+		result.nanos = System.nanoTime() - start;
+		result.ticks = ticks;
+		_measure(result);
+		result.baked = baker.getBaked();
+		result.checksum = _checksum();
+		renderer.retirePhysics();
+		return result;
+	}
+
+	private void _apply(Recording.Event event)
+	{
+		float[] v = event.values;
+		switch(event.type)
+		{
+			case Recording.JOIN:
+				players.add(new Player());
+				break;
+			case Recording.CLICK:
+				// As PooMonkeysEngine does in STATE_TESTING
+				terrain.explodeCircle(v[0]-terrain.p[0], v[1]-terrain.p[1], 5f);
+				physicsController.pointForces.add(new float[] {v[0], v[1], 10});
+				if(!physicsController.hasCollidable(players.get(0).tank))
+				{
+					physicsController.addCollidable(players.get(0).tank);
+				}
+				break;
+			case Recording.FIRE:
+				Player player = players.get(event.player);
+				player.setAngle(v[0]);
+				_fired(player, new Shot(player, 0, v[1], renderer.viewWidth, renderer.viewHeight));
+				break;
+			case Recording.SHOT:
+				Player enemy = players.get(event.player);
+				_fired(enemy, new Shot(enemy, 0, v[0], v[1], v[2], v[3], renderer.viewWidth, renderer.viewHeight));
+				break;
+		}
+	}
+
+	private void _fired(Player player, Shot shot)
+	{
+		player.fireShot(shot);
+		renderer.registerDrawable(shot);
+		physicsController.addCollidable(shot);
+		shots.add(shot);
+	}
+
+	private void _measure(Result result)
+	{
+		int count = renderer.getGeometryCount();
+		if(result.peakInstances.length < count)
+		{
+			int[] peaks = new int[count];
+			System.arraycopy(result.peakInstances, 0, peaks, 0, result.peakInstances.length);
+			result.peakInstances = peaks;
+		}
+		int total = 0;
+		for(int g = 0; g < count; g++)
+		{
+			int size = renderer.getInstances(g).size;
+			result.peakInstances[g] = Math.max(result.peakInstances[g], size);
+			total += size;
+		}
+		result.peakTotalInstances = Math.max(result.peakTotalInstances, total);
+	}
+
+	/**
+	 * FNV-1a over every geometry's instance count and the exact bits of every position, then of the baked dirt
+	 */
+	private long _checksum()
+	{
+		long hash = 0xcbf29ce484222325L;
+		for(int g = 0; g < renderer.getGeometryCount(); g++)
+		{
+			InstanceStore instances = renderer.getInstances(g);
+			hash = _mix(hash, instances.size);
+			for(int i = 0; i < instances.size; i++)
+			{
+				hash = _mix(hash, Float.floatToIntBits(instances.x[i]));
+				hash = _mix(hash, Float.floatToIntBits(instances.y[i]));
+			}
+		}
+		DirtLayer layer = baker.layer;
+		for(int c = 0; c < layer.getColumns(); c++)
+		{
+			hash = _mix(hash, Float.floatToIntBits(layer.getBase(c)));
+			hash = _mix(hash, Float.floatToIntBits(layer.getTop(c)));
+		}
+		return hash;
+	}
+
+	private static long _mix(long hash, int value)
+	{
+		for(int b = 0; b < 4; b++)
+		{
+			hash ^= (value >>> (b*8)) & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	@Override
+	public Terrain getTerrain()
+	{
+		return terrain;
+	}
+}
@@ -0,0 +1,152 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SimulationLoop runs the simulation on its own thread at a fixed tick rate, independent of how fast frames are drawn.
+ *
+ * Real time is added to an accumulator and spent a whole tick at a time, so after a slow tick (or a GC pause)
+ * the loop catches up by running several ticks back to back. Every tick covers exactly the same amount of
+ * simulated time no matter what. If the loop falls more than MAX_CATCH_UP_TICKS behind the extra time is dropped
+ * rather than run, so a long stall slows the game down for a moment instead of freezing it while it catches up.
+ *
+ * Each tick the Tickables are run in the order they were added. The renderer should be added last so that
+ * it publishes the state the rest of the tick produced, see GLRenderer.tick. The renderer also lets PhysicsController
+ * take exactly one step per tick, see PhysicsGate, so physics keeps to the tick rate too.
+ */
+public class SimulationLoop implements Runnable
+{
+	public static final int DEFAULT_TICKS_PER_SECOND = 120;
+	// Most ticks to run back to back when behind
+	private static final int MAX_CATCH_UP_TICKS = 8;
+
+	private final long tickNanos;
+	private final CopyOnWriteArrayList<Tickable> tickables = new CopyOnWriteArrayList<Tickable>();
+
+	private Thread thread = null;
+	private volatile boolean running = false;
+	// Only written by the simulation thread, or whoever calls step when the loop isn't running
+	private volatile long tick = 0;
+	private volatile long droppedTicks = 0;
+
+	public SimulationLoop()
+	{
+		this(DEFAULT_TICKS_PER_SECOND);
+	}
+
+	public SimulationLoop(int ticksPerSecond)
+	{
+		tickNanos = 1000000000L / ticksPerSecond;
+	}
+
+	public void add(Tickable tickable)
+	{
+		tickables.add(tickable);
+	}
+
+	public void remove(Tickable tickable)
+	{
+		tickables.remove(tickable);
+	}
+
+	/**
+	 * Length of a tick in nanoseconds
+	 */
+	public long getTickNanos()
+	{
+		return tickNanos;
+	}
+
+	/**
+	 * Number of ticks run so far
+	 */
+	public long getTick()
+	{
+		return tick;
+	}
+
+	/**
+	 * Number of ticks skipped because the loop fell too far behind
+	 */
+	public long getDroppedTicks()
+	{
+		return droppedTicks;
+	}
+
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Start ticking on a new thread
+	 */
+	public synchronized void start()
+	{
+		if(running) return;
+
+		running = true;
+		thread = new Thread(this, "SimulationLoop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop ticking and wait for the current tick to finish
+	 */
+	public synchronized void stop()
+	{
+		if(!running) return;
+
+		running = false;
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	/**
+	 * Run a single tick on the calling thread. For driving the simulation by hand when the loop isn't running.
+	 */
+	public void step()
+	{
+		for(Tickable tickable : tickables)
+		{
+			tickable.tick(tick, tickNanos);
+		}
+		tick++;
+	}
+
+	public void run()
+	{
+		long accumulator = 0;
+		long last = System.nanoTime();
+
+		while(running)
+		{
+			long now = System.nanoTime();
+			accumulator += now - last;
+			last = now;
+
+			if(accumulator > MAX_CATCH_UP_TICKS*tickNanos)
+			{
+				droppedTicks += accumulator/tickNanos - MAX_CATCH_UP_TICKS;
+				accumulator = MAX_CATCH_UP_TICKS*tickNanos;
+			}
+
+			while(accumulator >= tickNanos && running)
+			{
+				step();
+				accumulator -= tickNanos;
+			}
+
+			// Sleep until the next tick is due
+			LockSupport.parkNanos(tickNanos - accumulator);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+import poomonkeys.common.Geometry;
+
+/**
+ * SnapshotExchange passes instance state from the simulation (the writer) to the renderer without either one
+ * ever waiting on the other.
+ *
+ * It is a triple buffer of InstanceSnapshots. The writer fills the back snapshot and swaps it into the ready slot,
+ * the renderer swaps its front snapshot for whatever is in the ready slot when something new has been published.
+ * The only thing shared between the threads is the ready slot, which is swapped atomically.
+ *
+ * Only the blocks that changed are copied on publish. Each snapshot remembers which blocks it is missing since
+ * it was last written, so a snapshot that sat in the ready slot or was being drawn still gets caught up.
+ *
+ * Publishing also settles the live stores (see InstanceStore.settle), so each snapshot carries the positions
+ * at the end of the tick in x, y and at the end of the tick before in px, py.
+ */
+public class SnapshotExchange
+{
+	private final InstanceSnapshot[] snapshots = { new InstanceSnapshot(), new InstanceSnapshot(), new InstanceSnapshot() };
+	// Blocks each snapshot is missing, per geometry. Only touched by the writer.
+	private final ArrayList<ArrayList<BitSet>> stale = new ArrayList<ArrayList<BitSet>>();
+
+	// Owned by the writer
+	private InstanceSnapshot back;
+	private long version = 0;
+	// Shared
+	private final AtomicReference<InstanceSnapshot> ready;
+	// Owned by the renderer
+	private InstanceSnapshot front;
+
+	public SnapshotExchange()
+	{
+		back  = snapshots[0];
+		ready = new AtomicReference<InstanceSnapshot>(snapshots[1]);
+		front = snapshots[2];
+		for(int s = 0; s < snapshots.length; s++)
+		{
+			stale.add(new ArrayList<BitSet>());
+		}
+	}
+
+	/**
+	 * Publish the current state of the live stores. Settles the stores, which clears their dirty blocks.
+	 * Writer side only, callers must make sure the stores aren't being changed while this runs.
+	 * 
+	 * @param tickNanos length of the simulation tick that just ended, or 0 if not ticking at a fixed rate
+	 */
+	public void publish(ArrayList<Geometry> geometries, ArrayList<InstanceStore> live, long tickNanos)
+	{
+		int b = _indexOf(back);
+
+		for(int g = 0; g < live.size(); g++)
+		{
+			InstanceStore instances = live.get(g);
+			// Blocks that moved this tick, and blocks that moved last tick and have now come to rest at their previous positions
+			BitSet dirty = (BitSet) instances.getDirtyBlocks().clone();
+			dirty.or(instances.getSettledBlocks());
+
+			// Every snapshot is now missing these blocks
+			for(int s = 0; s < snapshots.length; s++)
+			{
+				if(stale.get(s).size() <= g)
+				{
+					stale.get(s).add(new BitSet());
+				}
+				stale.get(s).get(g).or(dirty);
+			}
+
+			if(back.stores.size() <= g)
+			{
+				back.geometries.add(null);
+				back.stores.add(new InstanceStore(g, instances.capacity()));
+			}
+			// Ids are reused once a geometry is unregistered, and a free id has no geometry
+			back.geometries.set(g, geometries.get(g));
+			_copy(instances, back.stores.get(g), stale.get(b).get(g));
+			stale.get(b).get(g).clear();
+
+			InstanceStore copy = back.stores.get(g);
+			copy.clearDirty();
+			copy.getDirtyBlocks().or(dirty);
+		}
+
+		// If the renderer never took the last snapshot it never saw its changes either, so pass them along.
+		// If the renderer takes it after this check the changes are just uploaded twice.
+		InstanceSnapshot previous = ready.get();
+		if(previous.fresh)
+		{
+			for(int g = 0; g < previous.stores.size(); g++)
+			{
+				back.stores.get(g).getDirtyBlocks().or(previous.stores.get(g).getDirtyBlocks());
+			}
+		}
+
+		for(int g = 0; g < live.size(); g++)
+		{
+			live.get(g).settle();
+		}
+
+		back.version = ++version;
+		back.publishTime = System.nanoTime();
+		back.tickNanos = tickNanos;
+		back.fresh = true;
+		back = ready.getAndSet(back);
+	}
+
+	/**
+	 * Take the most recently published snapshot if there is one the renderer hasn't seen yet.
+	 * Renderer side only.
+	 *
+	 * @return true if the front snapshot changed
+	 */
+	public boolean acquire()
+	{
+		if(!ready.get().fresh) return false;
+
+		InstanceSnapshot latest = ready.getAndSet(front);
+		latest.fresh = false;
+		front = latest;
+		return true;
+	}
+
+	/**
+	 * The snapshot the renderer is drawing. Renderer side only.
+	 */
+	public InstanceSnapshot getFront()
+	{
+		return front;
+	}
+
+	/**
+	 * Copy the size and the given blocks from one store to another
+	 */
+	private void _copy(InstanceStore from, InstanceStore to, BitSet blocks)
+	{
+		to.ensureCapacity(from.capacity());
+		to.size = from.size;
+
+		int block = blocks.nextSetBit(0);
+		while(block >= 0)
+		{
+			int endBlock = blocks.nextClearBit(block);
+			int start = block * InstanceStore.DIRTY_BLOCK_SIZE;
+			int end   = Math.min(endBlock * InstanceStore.DIRTY_BLOCK_SIZE, from.size);
+			if(start < end)
+			{
+				System.arraycopy(from.x,  start, to.x,  start, end-start);
+				System.arraycopy(from.y,  start, to.y,  start, end-start);
+				System.arraycopy(from.px, start, to.px, start, end-start);
+				System.arraycopy(from.py, start, to.py, start, end-start);
+				System.arraycopy(from.vx, start, to.vx, start, end-start);
+				System.arraycopy(from.vy, start, to.vy, start, end-start);
+			}
+			block = blocks.nextSetBit(endBlock);
+		}
+	}
+
+	private int _indexOf(InstanceSnapshot snapshot)
+	{
+		for(int s = 0; s < snapshots.length; s++)
+		{
+			if(snapshots[s] == snapshot) return s;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import poomonkeys.common.Geometry;
+
+/**
+ * SnapshotReceiver is the client end of a SnapshotStreamer. It applies each INSTANCES message to the renderer's
+ * instances and acknowledges it.
+ *
+ * Messages name their geometry by the id the host shared it under, which map ties to a local geometry. A message
+ * for a shared id with nothing mapped to it isn't acknowledged, so the host sends its instances again later.
+ *
+ * Instances the host has that no message has placed yet are parked well off screen until their position arrives.
+ *
+ * The renderer is put to mirroring the host, so local physics and explosions leave the streamed instances alone
+ * and they stay where the host last put them.
+ */
+public class SnapshotReceiver
+{
+	private static final float PARKED = -10000;
+
+	private final InstanceRenderer renderer;
+	private final NetSession network;
+	// Local geometry for each shared id
+	private final ArrayList<Geometry> mapped = new ArrayList<Geometry>();
+
+	// Positions of new instances, and the instances to remove when the host has fewer
+	private float[] spawning = new float[0];
+	private final BitSet removing = new BitSet();
+
+	public SnapshotReceiver(InstanceRenderer renderer, NetSession network)
+	{
+		this.renderer = renderer;
+		this.network  = network;
+		renderer.setMirroring(true);
+	}
+
+	/**
+	 * Draw the host's instances of the geometry shared under sharedID as instances of local
+	 */
+	public synchronized void map(int sharedID, Geometry local)
+	{
+		while(mapped.size() <= sharedID)
+		{
+			mapped.add(null);
+		}
+		mapped.set(sharedID, local);
+	}
+
+	/**
+	 * Apply an INSTANCES message and acknowledge it, if it's for a mapped geometry. Called on the network thread.
+	 *
+	 * @return false if nothing is mapped to its geometry
+	 */
+	public synchronized boolean apply(int connection, InstanceDelta delta)
+	{
+		Geometry geometry = delta.geometryID < mapped.size() ? mapped.get(delta.geometryID) : null;
+		if(geometry == null) return false;
+
+		synchronized(renderer.getInstanceLock())
+		{
+			// With no instances here and none at the host there's nothing to do
+			if(delta.size > 0 || renderer.getGeometryID(geometry) != -1)
+			{
+				_resize(geometry, delta.size);
+
+				InstanceStore instances = renderer.getInstances(renderer.getGeometryID(geometry));
+				for(int e = 0; e < delta.count; e++)
+				{
+					int i = delta.indices[e];
+					if(i < instances.size)
+					{
+						instances.setPosition(i, delta.x[e], delta.y[e]);
+					}
+				}
+			}
+		}
+		network.sendAck(connection, delta.geometryID, delta.seq);
+		network.flush();
+		return true;
+	}
+
+	/**
+	 * Add or remove instances from the end until the geometry has size of them
+	 */
+	private void _resize(Geometry geometry, int size)
+	{
+		int id = renderer.getGeometryID(geometry);
+		int current = id == -1 ? 0 : renderer.getInstances(id).size;
+		if(size > current)
+		{
+			int count = size - current;
+			if(spawning.length < count*2)
+			{
+				spawning = new float[count*2];
+				Arrays.fill(spawning, PARKED);
+			}
+			renderer.mirrorInstances(spawning, 0, count, geometry);
+		}
+		else if(size < current)
+		{
+			removing.clear();
+			removing.set(size, current);
+			renderer.removeInstances(id, removing);
+		}
+	}
+}
@@ -0,0 +1,424 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import poomonkeys.common.Geometry;
+
+/**
+ * SnapshotStreamer sends the host's instances to everyone connected as INSTANCES messages, so every client draws
+ * the debris the host simulated instead of simulating its own.
+ *
+ * Only the geometries given to share are streamed, each under a shared id the clients map back to their own
+ * geometry, since the order geometries are registered in differs between host and client.
+ *
+ * For every connection and geometry it remembers the quantized position of each instance the client has
+ * acknowledged, and the one it was last sent. Each tick only the instances whose quantized position differs from
+ * what was last sent go out, and only the blocks of instances that moved since they were last looked at are
+ * checked, so particles at rest cost nothing. A message still unacknowledged HISTORY messages later is taken as
+ * lost, and its instances are sent again if they differ from what was acknowledged.
+ *
+ * Each connection gets at most bytesPerTick bytes of messages a tick. Whatever doesn't fit waits for the next tick,
+ * which carries on from where this one stopped so every instance gets its turn.
+ *
+ * Add it to the SimulationLoop after the renderer. Which blocks moved is read from the stores' settled blocks,
+ * which the renderer's publish leaves behind.
+ */
+public class SnapshotStreamer implements Tickable
+{
+	public static final int DEFAULT_BYTES_PER_TICK = 2048;
+	// Messages per connection and geometry that can be waiting on an ack
+	private static final int HISTORY = 64;
+	// A position the client doesn't have
+	private static final int UNKNOWN = Integer.MIN_VALUE;
+	private static final int BLOCK = InstanceStore.DIRTY_BLOCK_SIZE;
+	// Stands in for a shared geometry with no instances here
+	private static final InstanceStore NONE = new InstanceStore(-1, 0);
+
+	/**
+	 * What one INSTANCES message carried
+	 */
+	private static class Sent
+	{
+		// 0 once acknowledged or given up on
+		int seq = 0;
+		int size;
+		int count = 0;
+		int[] indices = new int[0];
+		int[] x = new int[0], y = new int[0];
+
+		void add(int i, int qx, int qy)
+		{
+			if(count == indices.length)
+			{
+				int length = Math.max(64, count*2);
+				indices = Arrays.copyOf(indices, length);
+				x = Arrays.copyOf(x, length);
+				y = Arrays.copyOf(y, length);
+			}
+			indices[count] = i;
+			x[count] = qx;
+			y[count] = qy;
+			count++;
+		}
+	}
+
+	/**
+	 * What one connection has of one geometry. Sequence numbers of 0 mean nothing is waiting on an ack.
+	 */
+	private static class Baseline
+	{
+		int[] ackedX = new int[0], ackedY = new int[0], ackedSeq = new int[0];
+		int[] sentX  = new int[0], sentY  = new int[0], sentSeq  = new int[0];
+		int ackedSize = 0, ackedSizeSeq = 0;
+		int sentSize  = 0, sentSizeSeq  = 0;
+		// Blocks that may have instances that differ from what was sent
+		final BitSet pending = new BitSet();
+		// Block to carry on from next tick
+		int cursor = 0;
+		int nextSeq = 1;
+		final Sent[] history = new Sent[HISTORY];
+
+		void ensureCapacity(int capacity)
+		{
+			int known = sentX.length;
+			if(known >= capacity) return;
+
+			int length = Math.max(capacity, known*2);
+			ackedX   = Arrays.copyOf(ackedX, length);
+			ackedY   = Arrays.copyOf(ackedY, length);
+			ackedSeq = Arrays.copyOf(ackedSeq, length);
+			sentX    = Arrays.copyOf(sentX, length);
+			sentY    = Arrays.copyOf(sentY, length);
+			sentSeq  = Arrays.copyOf(sentSeq, length);
+			Arrays.fill(ackedX, known, length, UNKNOWN);
+			Arrays.fill(ackedY, known, length, UNKNOWN);
+			Arrays.fill(sentX, known, length, UNKNOWN);
+			Arrays.fill(sentY, known, length, UNKNOWN);
+		}
+	}
+
+	private final InstanceRenderer renderer;
+	private final int bytesPerTick;
+	private NetSession network = null;
+	// The geometries to stream, by shared id
+	private final ArrayList<Geometry> shared = new ArrayList<Geometry>();
+
+	// By connection, then shared id
+	private final ArrayList<ArrayList<Baseline>> baselines = new ArrayList<ArrayList<Baseline>>();
+	// The message being built, and the record of what it carries
+	private final ByteBuffer message = ByteBuffer.allocate(NetProtocol.MAX_INSTANCES_BYTES);
+	private Sent building = new Sent();
+	private volatile long bytesSent = 0;
+
+	public SnapshotStreamer(InstanceRenderer renderer)
+	{
+		this(renderer, DEFAULT_BYTES_PER_TICK);
+	}
+
+	public SnapshotStreamer(InstanceRenderer renderer, int bytesPerTick)
+	{
+		this.renderer = renderer;
+		this.bytesPerTick = bytesPerTick;
+	}
+
+	/**
+	 * Start streaming to the connections of a session, or stop streaming if it's null
+	 */
+	public synchronized void stream(NetSession network)
+	{
+		this.network = network;
+		baselines.clear();
+	}
+
+	/**
+	 * Stream a geometry's instances under sharedID, see NetProtocol.SHARED_DIRT
+	 */
+	public synchronized void share(int sharedID, Geometry geometry)
+	{
+		while(shared.size() <= sharedID)
+		{
+			shared.add(null);
+		}
+		shared.set(sharedID, geometry);
+	}
+
+	/**
+	 * Total bytes of INSTANCES messages sent
+	 */
+	public long getBytesSent()
+	{
+		return bytesSent;
+	}
+
+	@Override
+	public synchronized void tick(long tick, long tickNanos)
+	{
+		if(network == null) return;
+
+		synchronized(renderer.getInstanceLock())
+		{
+			int geometries = shared.size();
+			for(int c = 0; c < network.getConnectionCount(); c++)
+			{
+				if(!network.isConnected(c))
+				{
+					forget(c);
+					continue;
+				}
+
+				// Every geometry hears about what moved, even the ones the budget doesn't reach this tick
+				for(int g = 0; g < geometries; g++)
+				{
+					_baseline(c, g).pending.or(_instancesOf(g).getSettledBlocks());
+				}
+
+				// Take turns going first so one busy geometry can't starve the rest
+				int budget = bytesPerTick;
+				for(int g = 0; g < geometries && budget > 0; g++)
+				{
+					int id = (int)((tick + g) % geometries);
+					int used = _send(c, id, _instancesOf(id), _baseline(c, id), budget);
+					if(used < 0) break;
+					budget -= used;
+				}
+			}
+		}
+		network.flush();
+	}
+
+	/**
+	 * The live instances of the geometry shared under sharedID, none if it has none here. Call under the instance lock.
+	 */
+	private InstanceStore _instancesOf(int sharedID)
+	{
+		Geometry geometry = shared.get(sharedID);
+		int id = geometry == null ? -1 : renderer.getGeometryID(geometry);
+		return id == -1 ? NONE : renderer.getInstances(id);
+	}
+
+	/**
+	 * A connection has applied an INSTANCES message
+	 */
+	public synchronized void ack(int connection, int sharedID, int seq)
+	{
+		if(connection >= baselines.size() || baselines.get(connection) == null) return;
+		if(sharedID >= baselines.get(connection).size()) return;
+
+		Baseline b = baselines.get(connection).get(sharedID);
+		Sent sent = b.history[seq % HISTORY];
+		if(sent == null || sent.seq != seq) return;
+
+		for(int k = 0; k < sent.count; k++)
+		{
+			int i = sent.indices[k];
+			if(i >= b.ackedSeq.length) continue;
+
+			if(seq > b.ackedSeq[i])
+			{
+				b.ackedX[i]   = sent.x[k];
+				b.ackedY[i]   = sent.y[k];
+				b.ackedSeq[i] = seq;
+			}
+			if(b.sentSeq[i] == seq)
+			{
+				b.sentSeq[i] = 0;
+			}
+		}
+		if(seq > b.ackedSizeSeq)
+		{
+			// The client threw away anything past the end
+			for(int i = sent.size; i < Math.min(b.ackedSize, b.ackedX.length); i++)
+			{
+				b.ackedX[i]   = UNKNOWN;
+				b.ackedY[i]   = UNKNOWN;
+				b.ackedSeq[i] = seq;
+			}
+			b.ackedSize    = sent.size;
+			b.ackedSizeSeq = seq;
+		}
+		if(b.sentSizeSeq == seq)
+		{
+			b.sentSizeSeq = 0;
+		}
+		sent.seq = 0;
+	}
+
+	/**
+	 * Forget everything about a connection, it's gone
+	 */
+	public synchronized void forget(int connection)
+	{
+		if(connection < baselines.size())
+		{
+			baselines.set(connection, null);
+		}
+	}
+
+	/**
+	 * Send as much of what's changed in a geometry's instances as fits in budget bytes
+	 *
+	 * @return the number of bytes sent, or -1 if the connection is backed up and nothing more should be sent to it this tick
+	 */
+	private int _send(int connection, int sharedID, InstanceStore instances, Baseline b, int budget)
+	{
+		int size = instances.size;
+		b.ensureCapacity(size);
+		if(size < b.sentSize)
+		{
+			// Whatever was sent past the new end will be thrown away, it has to be sent again if the instances come back
+			Arrays.fill(b.sentX, size, b.sentSize, UNKNOWN);
+			Arrays.fill(b.sentY, size, b.sentSize, UNKNOWN);
+			Arrays.fill(b.sentSeq, size, b.sentSize, 0);
+		}
+		int blocks = (size + BLOCK-1) / BLOCK;
+		b.pending.clear(blocks, Math.max(blocks, b.pending.length()));
+		if(b.cursor >= blocks)
+		{
+			b.cursor = 0;
+		}
+
+		float[] x = instances.x, y = instances.y;
+		int used = 0;
+		boolean again = true;
+		while(again && (size != b.sentSize || !b.pending.isEmpty()))
+		{
+			int room = Math.min(budget - used, NetProtocol.MAX_INSTANCES_BYTES);
+			if(room < NetProtocol.INSTANCES_HEADER_BYTES + NetProtocol.MAX_INSTANCE_ENTRY_BYTES) break;
+
+			int seq = b.nextSeq;
+			message.clear();
+			message.limit(room);
+			int start = NetProtocol.beginInstances(message, sharedID, seq, size);
+			building.seq   = seq;
+			building.size  = size;
+			building.count = 0;
+
+			// Entries have to go in index order, so a message stops at the last block and the next starts again from 0
+			int from = b.cursor;
+			boolean full = false;
+			int previous = -1, previousX = 0, previousY = 0;
+			int block = b.pending.nextSetBit(b.cursor);
+			while(block >= 0 && block < blocks && !full)
+			{
+				int end = Math.min((block+1)*BLOCK, size);
+				for(int i = block*BLOCK; i < end; i++)
+				{
+					int qx = NetProtocol.quantize(x[i]);
+					int qy = NetProtocol.quantize(y[i]);
+					if(qx == b.sentX[i] && qy == b.sentY[i]) continue;
+
+					if(message.remaining() < NetProtocol.MAX_INSTANCE_ENTRY_BYTES)
+					{
+						full = true;
+						break;
+					}
+					NetProtocol.putInstance(message, previous, previousX, previousY, i, qx, qy);
+					building.add(i, qx, qy);
+					b.sentX[i]   = qx;
+					b.sentY[i]   = qy;
+					b.sentSeq[i] = seq;
+					previous  = i;
+					previousX = qx;
+					previousY = qy;
+				}
+				if(full)
+				{
+					b.cursor = block;
+				}
+				else
+				{
+					b.pending.clear(block);
+					block = b.pending.nextSetBit(block+1);
+				}
+			}
+			if(!full)
+			{
+				b.cursor = 0;
+			}
+			again = full || from > 0;
+
+			if(building.count == 0 && size == b.sentSize) continue;
+
+			NetProtocol.endInstances(message, start, building.count);
+			message.flip();
+			int bytes = message.remaining();
+			_commit(b, size);
+			if(!network.sendMessage(connection, message))
+			{
+				// Never went out, same as if it was lost
+				_expire(b, b.history[seq % HISTORY]);
+				return -1;
+			}
+			used += bytes;
+			bytesSent += bytes;
+		}
+		return used;
+	}
+
+	/**
+	 * The message in building is going out, file it in the history in place of the oldest one
+	 */
+	private void _commit(Baseline b, int size)
+	{
+		int slot = building.seq % HISTORY;
+		Sent oldest = b.history[slot];
+		if(oldest != null && oldest.seq != 0)
+		{
+			_expire(b, oldest);
+		}
+		b.history[slot] = building;
+		building = oldest != null ? oldest : new Sent();
+
+		b.nextSeq++;
+		if(size != b.sentSize)
+		{
+			b.sentSize    = size;
+			b.sentSizeSeq = b.history[slot].seq;
+		}
+	}
+
+	/**
+	 * Give up on a message. Its instances go back to what was acknowledged so they're sent again if they need to be.
+	 */
+	private void _expire(Baseline b, Sent sent)
+	{
+		for(int k = 0; k < sent.count; k++)
+		{
+			int i = sent.indices[k];
+			if(i < b.sentSeq.length && b.sentSeq[i] == sent.seq)
+			{
+				b.sentX[i]   = b.ackedX[i];
+				b.sentY[i]   = b.ackedY[i];
+				b.sentSeq[i] = 0;
+				b.pending.set(i / BLOCK);
+			}
+		}
+		if(b.sentSizeSeq == sent.seq)
+		{
+			b.sentSize    = b.ackedSize;
+			b.sentSizeSeq = 0;
+		}
+		sent.seq = 0;
+	}
+
+	private Baseline _baseline(int connection, int sharedID)
+	{
+		while(baselines.size() <= connection)
+		{
+			baselines.add(null);
+		}
+		if(baselines.get(connection) == null)
+		{
+			baselines.set(connection, new ArrayList<Baseline>());
+		}
+		ArrayList<Baseline> forConnection = baselines.get(connection);
+		while(forConnection.size() <= sharedID)
+		{
+			// Everything is new to a new connection
+			Baseline b = new Baseline();
+			b.pending.set(0, (_instancesOf(forConnection.size()).size + BLOCK-1) / BLOCK);
+			forConnection.add(b);
+		}
+		return forConnection.get(sharedID);
+	}
+}
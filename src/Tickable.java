@@ -0,0 +1,13 @@
+/**
+ * Something that advances with the simulation, one fixed length tick at a time. See SimulationLoop.
+ */
+public interface Tickable
+{
+	/**
+	 * Advance by one tick
+	 * 
+	 * @param tick number of the tick, counting up from 0
+	 * @param tickNanos length of every tick in nanoseconds
+	 */
+	public void tick(long tick, long tickNanos);
+}
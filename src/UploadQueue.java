@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+
+/**
+ * UploadQueue hands drawables that were built off the GL thread to the renderer, which uploads their geometry a
+ * piece at a time between frames and only starts drawing each one once all of it is on the graphics card.
+ *
+ * prepare does the CPU side of getting a drawable ready, the same init and buildGeometry the renderer would
+ * otherwise do on the GL thread the first time it's drawn, and add queues it. Both can be called from any thread.
+ * The renderer takes the geometries to upload from next, render thread only.
+ */
+public class UploadQueue
+{
+	public static class Upload
+	{
+		public final Drawable drawable;
+		// Run on the render thread once the drawable is being drawn, may be null
+		public final Runnable uploaded;
+		// Geometries of the drawable and its children that still need uploading
+		private final ArrayList<Geometry> geometries = new ArrayList<Geometry>();
+		private int next = 0;
+
+		Upload(Drawable drawable, Runnable uploaded)
+		{
+			this.drawable = drawable;
+			this.uploaded = uploaded;
+		}
+
+		public boolean isDone()
+		{
+			return next == geometries.size();
+		}
+
+		public Geometry next()
+		{
+			return geometries.get(next++);
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Upload> queue = new ConcurrentLinkedQueue<Upload>();
+
+	/**
+	 * Initialize a drawable and its children and build their geometry for the given view, as the renderer would
+	 */
+	public static void prepare(Drawable d, float viewWidth, float viewHeight)
+	{
+		if(!d.didInit)
+		{
+			d.init(viewWidth, viewHeight);
+		}
+		if(d.geometry != null && d.geometry.hasChanged)
+		{
+			d.geometry.buildGeometry(viewWidth, viewHeight);
+		}
+		for(int i = 0; i < d.drawables.size(); i++)
+		{
+			prepare(d.drawables.get(i), viewWidth, viewHeight);
+		}
+	}
+
+	/**
+	 * Queue a prepared drawable to be uploaded and then drawn
+	 */
+	public void add(Drawable d, Runnable uploaded)
+	{
+		Upload upload = new Upload(d, uploaded);
+		_collect(d, upload.geometries);
+		queue.add(upload);
+	}
+
+	private static void _collect(Drawable d, ArrayList<Geometry> geometries)
+	{
+		if(d.geometry != null && d.geometry.hasChanged && d.geometry.vertices != null)
+		{
+			geometries.add(d.geometry);
+		}
+		for(int i = 0; i < d.drawables.size(); i++)
+		{
+			_collect(d.drawables.get(i), geometries);
+		}
+	}
+
+	/**
+	 * The drawable being uploaded, null if there's nothing to upload
+	 */
+	public Upload peek()
+	{
+		return queue.peek();
+	}
+
+	/**
+	 * Done with the drawable being uploaded
+	 */
+	public void remove()
+	{
+		queue.poll();
+	}
+
+	public boolean isEmpty()
+	{
+		return queue.isEmpty();
+	}
+}
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.IdentityHashMap;
+import javax.media.opengl.GL2;
+import poomonkeys.common.Geometry;
+
+/**
+ * VertexChunks lets a big geometry that changes a little at a time, like the terrain after an explosion, upload
+ * only the parts of its vertices that changed instead of the whole buffer.
+ *
+ * A copy of what was last uploaded is kept for each geometry of at least MIN_FLOATS floats, split into chunks of
+ * CHUNK_FLOATS. When the geometry changes without changing size, each chunk is compared with the copy and only the
+ * ones that differ are sent, with glBufferSubData into the buffer the geometry already has. The terrain's
+ * vertices run across it from left to right, so its chunks are columns of fixed width and an explosion only
+ * touches the few under its radius.
+ *
+ * Render thread only.
+ */
+public class VertexChunks
+{
+	public static final int CHUNK_FLOATS = 1024;
+	// Anything smaller is just uploaded whole every time
+	public static final int MIN_FLOATS = CHUNK_FLOATS * 4;
+	private static final int FLOAT_BYTES = Float.SIZE / Byte.SIZE;
+
+	// What's in each geometry's buffer
+	private final IdentityHashMap<Geometry, float[]> uploaded = new IdentityHashMap<Geometry, float[]>();
+	private final FloatBuffer staging = ByteBuffer.allocateDirect(CHUNK_FLOATS*FLOAT_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	private int chunksUploaded = 0;
+
+	/**
+	 * Upload the chunks of a geometry's vertices that differ from what's in its buffer, which must be bound
+	 * to GL_ARRAY_BUFFER
+	 *
+	 * @return bytes uploaded, or -1 if the buffer has to be replaced whole because its size changed or nothing
+	 *         is known about what's in it. Call uploaded after replacing it.
+	 */
+	public long update(GL2 gl, Geometry g)
+	{
+		float[] vertices = g.vertices;
+		float[] last = uploaded.get(g);
+		if(last == null || last.length != vertices.length) return -1;
+
+		long bytes = 0;
+		for(int start = 0; start < vertices.length; start += CHUNK_FLOATS)
+		{
+			int end = Math.min(vertices.length, start + CHUNK_FLOATS);
+			if(_equal(vertices, last, start, end)) continue;
+
+			System.arraycopy(vertices, start, last, start, end - start);
+			staging.clear();
+			staging.put(vertices, start, end - start);
+			staging.flip();
+			gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, (long)start*FLOAT_BYTES, (long)(end - start)*FLOAT_BYTES, staging);
+			bytes += (long)(end - start)*FLOAT_BYTES;
+			chunksUploaded++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * A geometry's buffer was just filled with the whole of its vertices
+	 */
+	public void uploaded(Geometry g)
+	{
+		if(g.vertices.length >= MIN_FLOATS)
+		{
+			uploaded.put(g, g.vertices.clone());
+		}
+		else
+		{
+			uploaded.remove(g);
+		}
+	}
+
+	/**
+	 * Forget a geometry whose buffer is gone
+	 */
+	public void remove(Geometry g)
+	{
+		uploaded.remove(g);
+	}
+
+	/**
+	 * Number of chunks uploaded by update so far
+	 */
+	public int getChunksUploaded()
+	{
+		return chunksUploaded;
+	}
+
+	private static boolean _equal(float[] a, float[] b, int from, int to)
+	{
+		for(int i = from; i < to; i++)
+		{
+			// Bitwise, so a NaN that's still there doesn't count as a change
+			if(Float.floatToRawIntBits(a[i]) != Float.floatToRawIntBits(b[i])) return false;
+		}
+		return true;
+	}
+}
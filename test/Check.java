@@ -0,0 +1,28 @@
+/**
+ * Check is what the tests in this directory share. Each test is a main that runs its checks in order and stops
+ * at the first one that fails, exiting non-zero.
+ */
+public class Check
+{
+	private static int passed = 0;
+
+	/**
+	 * Fail the test, saying what was expected, unless condition holds
+	 */
+	public static void that(boolean condition, String expected)
+	{
+		if(!condition)
+		{
+			throw new AssertionError(expected);
+		}
+		passed++;
+	}
+
+	/**
+	 * Print how many checks passed, at the end of a test's main
+	 */
+	public static void done(String test)
+	{
+		System.out.println(test + ": " + passed + " checks passed");
+	}
+}
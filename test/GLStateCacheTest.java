@@ -0,0 +1,116 @@
+import javax.media.opengl.GL;
+import poomonkeys.common.Drawable;
+import poomonkeys.common.Geometry;
+
+/**
+ * Checks that GLStateCache skips the GL calls that wouldn't change anything, and that drawing many drawables with
+ * the same state through GLRenderer sets that state once instead of once per draw.
+ */
+public class GLStateCacheTest
+{
+	private static final int DRAWABLES = 50;
+
+	public static void main(String[] args)
+	{
+		_cache();
+		_frame(InstancingMode.INSTANCING_TEXTURE);
+		_frame(InstancingMode.FIXED_PIPELINE);
+		Check.done("GLStateCacheTest");
+	}
+
+	/**
+	 * The cache on its own
+	 */
+	private static void _cache()
+	{
+		RecordingGL recorder = new RecordingGL();
+		GLStateCache state = new GLStateCache();
+
+		state.useProgram(recorder.getGL(), 3);
+		state.useProgram(recorder.getGL(), 3);
+		Check.that(recorder.getFrameCallCount("glUseProgram") == 1, "the same program used once");
+		state.useProgram(recorder.getGL(), 4);
+		Check.that(recorder.getFrameCallCount("glUseProgram") == 2, "another program used");
+
+		Check.that(state.bindArrayBuffer(recorder.getGL(), 7), "first bind issued");
+		Check.that(!state.bindArrayBuffer(recorder.getGL(), 7), "same bind skipped");
+		state.forgetBuffer(7);
+		Check.that(state.bindArrayBuffer(recorder.getGL(), 7), "bind issued again once the buffer is forgotten");
+
+		state.color3f(recorder.getGL(), 1, 1, 1);
+		state.color3f(recorder.getGL(), 1, 1, 1);
+		state.polygonMode(recorder.getGL(), GL.GL_TRIANGLES);
+		state.polygonMode(recorder.getGL(), GL.GL_TRIANGLES);
+		Check.that(recorder.getFrameCallCount("glColor3f") == 1, "the same color set once");
+		Check.that(recorder.getFrameCallCount("glPolygonMode") == 1, "the same polygon mode set once");
+
+		state.invalidate();
+		state.color3f(recorder.getGL(), 1, 1, 1);
+		Check.that(recorder.getFrameCallCount("glColor3f") == 2, "color set again after invalidate");
+		Check.that(state.getSkipped() == 4, "4 calls skipped, not " + state.getSkipped());
+	}
+
+	/**
+	 * A frame of drawables that all share a geometry, and so a program, buffer and vertex pointer
+	 */
+	private static void _frame(InstancingMode mode)
+	{
+		RecordingGL recorder = RecordingGL.create(mode);
+		GLRenderer renderer = GLRenderer.createHeadless();
+		renderer.init(recorder.getGL());
+		renderer.reshape(recorder.getGL(), 1000, 1000);
+
+		Geometry shared = new Geometry()
+		{
+			@Override
+			public int getNumPoints()
+			{
+				return vertices.length / 3;
+			}
+		};
+		shared.vertices = new float[] {0, 0, 0, 1, 0, 0, 0, 1, 0};
+		shared.drawMode = GL.GL_TRIANGLES;
+		for(int d = 0; d < DRAWABLES; d++)
+		{
+			Drawable drawable = new Drawable();
+			drawable.geometry = shared;
+			drawable.p[0] = d;
+			drawable.p[1] = d;
+			renderer.registerDrawable(drawable);
+		}
+
+		// The first frame uploads the geometry, the second only draws
+		renderer.display(recorder.getGL());
+		recorder.endFrame();
+		renderer.display(recorder.getGL());
+
+		int draws = recorder.getFrameCallCount("glDrawArrays");
+		Check.that(draws == DRAWABLES, mode + ": a draw per drawable, not " + draws);
+		int programs = recorder.getFrameCallCount("glUseProgram");
+		int binds    = recorder.getFrameCallCount("glBindBuffer");
+		int pointers = recorder.getFrameCallCount("glVertexPointer");
+		Check.that(programs <= 2, mode + ": program set once for the drawables and once for the instances, not " + programs);
+		Check.that(binds <= 2, mode + ": geometry bound once, not " + binds);
+		Check.that(pointers <= 2, mode + ": vertex pointer set once, not " + pointers);
+
+		// No depth test, so they have to go down in the order they were registered, each one further right
+		float lastX = Float.NEGATIVE_INFINITY;
+		float x = 0;
+		for(RecordingGL.Call call : recorder.getCalls())
+		{
+			if(call.name.equals("glUniformMatrix3fv"))
+			{
+				x = ((float[])call.args[3])[6];
+			}
+			else if(call.name.equals("glLoadMatrixf"))
+			{
+				x = ((float[])call.args[0])[12];
+			}
+			else if(call.name.equals("glDrawArrays"))
+			{
+				Check.that(x > lastX, mode + ": drawn in the order registered");
+				lastX = x;
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import javax.media.opengl.GL2;
+
+/**
+ * Checks the instancing mode and batch size InstancingAutotuner picks for RecordingGLs standing in for drivers
+ * with different functions and uniform limits, and that the choice is saved and only redone when it has to be.
+ */
+public class InstancingAutotunerTest
+{
+	private static final int BENCHMARK_FRAMES = 3;
+
+	public static void main(String[] args) throws BackingStoreException
+	{
+		_modes();
+		_batchSize();
+		_fallback();
+
+		Preferences preferences = Preferences.userRoot().node("poomonkeys-test/instancing");
+		preferences.clear();
+		try
+		{
+			_choose(preferences);
+		}
+		finally
+		{
+			preferences.removeNode();
+		}
+		Check.done("InstancingAutotunerTest");
+	}
+
+	/**
+	 * Only the modes the GL's functions allow, the most efficient last
+	 */
+	private static void _modes()
+	{
+		for(InstancingMode mode : InstancingMode.values())
+		{
+			GL2 gl = RecordingGL.create(mode).getGL();
+			ArrayList<InstancingMode> modes = InstancingAutotuner.availableModes(gl);
+			Check.that(InstancingAutotuner.bestAvailable(gl) == mode, mode + " is the best a GL made for it has");
+			for(InstancingMode available : modes)
+			{
+				Check.that(available.shaders == mode.shaders, mode + ": shaders only when there are shaders");
+				Check.that(!available.textureBuffer || mode.textureBuffer, mode + ": no texture buffer modes without glTexBuffer");
+				Check.that(!available.drawArraysInstanced || mode.drawArraysInstanced, mode + ": no instanced modes without glDrawArraysInstanced");
+			}
+		}
+		Check.that(InstancingAutotuner.availableModes(RecordingGL.create(InstancingMode.INSTANCING_TEXTURE).getGL()).size() == 4, "every shader mode with every function");
+	}
+
+	/**
+	 * The batch size follows the driver's uniform limit and the shaders are generated to match
+	 */
+	private static void _batchSize()
+	{
+		int[][] limits = {
+			// Components reported, batch size expected, 0 for a driver that won't say
+			{4096,   2016},
+			{1024,   480},
+			{0,      InstancingAutotuner.DEFAULT_BATCH_SIZE},
+			{100000, InstancingAutotuner.MAX_BATCH_SIZE},
+		};
+		for(int[] limit : limits)
+		{
+			RecordingGL recorder = RecordingGL.create(InstancingMode.INSTANCING_UNIFORM);
+			if(limit[0] > 0)
+			{
+				recorder.setInteger(GL2.GL_MAX_VERTEX_UNIFORM_COMPONENTS, limit[0]);
+			}
+			Check.that(InstancingAutotuner.uniformBatchSize(recorder.getGL()) == limit[1], limit[0] + " components: batches of " + limit[1]);
+
+			GLRenderer renderer = GLRenderer.createHeadless();
+			renderer.setInstancingMode(InstancingMode.INSTANCING_UNIFORM);
+			renderer.init(recorder.getGL());
+			Check.that(renderer.getBatchSize() == limit[1], limit[0] + " components: renderer batches of " + limit[1]);
+
+			boolean generated = false;
+			for(int shader = 1; shader < 20; shader++)
+			{
+				String source = recorder.getShaderSource(shader);
+				generated |= source != null && source.startsWith("#define BATCH_SIZE " + limit[1] + "\n");
+			}
+			Check.that(generated, limit[0] + " components: shader generated for batches of " + limit[1]);
+		}
+	}
+
+	/**
+	 * Shaders that won't compile leave the fixed pipeline
+	 */
+	private static void _fallback()
+	{
+		RecordingGL recorder = RecordingGL.create(InstancingMode.PSEUDO_INSTANCING_UNIFORM);
+		recorder.shadersCompile = false;
+		GLRenderer renderer = GLRenderer.createHeadless();
+		renderer.setInstancingMode(InstancingMode.PSEUDO_INSTANCING_UNIFORM);
+		renderer.init(recorder.getGL());
+		Check.that(renderer.getInstancingMode() == InstancingMode.FIXED_PIPELINE, "fixed pipeline when the shaders don't compile");
+	}
+
+	/**
+	 * Benchmarked once per GL, then the saved choice is used until it isn't available
+	 */
+	private static void _choose(Preferences preferences)
+	{
+		RecordingGL recorder = RecordingGL.create(InstancingMode.INSTANCING_TEXTURE);
+		recorder.recordCalls = false;
+		recorder.setString(GL2.GL_RENDERER, "Test");
+		GL2 gl = recorder.getGL();
+
+		InstancingAutotuner untimed = new InstancingAutotuner(null, 0);
+		Check.that(untimed.choose(gl) == InstancingMode.INSTANCING_TEXTURE && untimed.getTimings().isEmpty(), "best available without benchmarking");
+
+		InstancingAutotuner autotuner = new InstancingAutotuner(preferences, BENCHMARK_FRAMES);
+		InstancingMode chosen = autotuner.choose(gl);
+		Check.that(autotuner.getTimings().size() == 4, "every available mode timed");
+		Check.that(autotuner.getTimings().containsKey(chosen), "one of the timed modes chosen");
+		for(Long nanos : autotuner.getTimings().values())
+		{
+			Check.that(autotuner.getTimings().get(chosen) <= nanos, "the fastest mode chosen");
+		}
+
+		Check.that(autotuner.choose(gl) == chosen && autotuner.getTimings().isEmpty(), "saved choice used without benchmarking again");
+		Check.that(new InstancingAutotuner(preferences, BENCHMARK_FRAMES).choose(gl) == chosen, "saved choice kept for later runs");
+
+		GLRenderer renderer = GLRenderer.createHeadless();
+		renderer.setAutotuner(autotuner);
+		renderer.init(gl);
+		Check.that(renderer.getInstancingMode() == chosen, "renderer uses the autotuner's choice");
+
+		// A driver update that loses texture buffers
+		recorder.setFunctionAvailable("glTexBuffer", false);
+		InstancingMode rechosen = autotuner.choose(gl);
+		Check.that(!rechosen.textureBuffer, "saved choice dropped once it isn't available");
+		Check.that(chosen.textureBuffer == (autotuner.getTimings().size() == 2), "benchmarked again only if the saved choice was lost");
+	}
+}
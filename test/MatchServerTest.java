@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Checks that matches started and ended on a MatchServer leave no threads behind: each match's physics thread has
+ * to end with it rather than wait at its PhysicsGate for a tick that never comes.
+ */
+public class MatchServerTest
+{
+	private static final int MATCHES = 8;
+	private static final int ROUNDS = 3;
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		int before = Thread.activeCount();
+		MatchServer server = new MatchServer(120, 2);
+		server.start();
+		try
+		{
+			for(int round = 0; round < ROUNDS; round++)
+			{
+				ArrayList<Match> matches = new ArrayList<Match>();
+				for(int m = 0; m < MATCHES; m++)
+				{
+					matches.add(server.startMatch(0));
+				}
+				Check.that(Thread.activeCount() >= before + MATCHES, "round " + round + ": a physics thread per match");
+
+				// Long enough for physics to be held at the gate between ticks
+				long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+				while(matches.get(MATCHES-1).simulation.getTick() < 10 && System.currentTimeMillis() < deadline)
+				{
+					Thread.sleep(10);
+				}
+				Check.that(matches.get(MATCHES-1).simulation.getTick() >= 10, "round " + round + ": matches ticking");
+
+				for(Match match : matches)
+				{
+					server.endMatch(match);
+				}
+				Check.that(server.getMatchCount() == 0, "round " + round + ": every match ended");
+			}
+		}
+		finally
+		{
+			server.stop();
+		}
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(Thread.activeCount() > before && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		Check.that(Thread.activeCount() <= before, "threads back to " + before + ", not " + Thread.activeCount());
+		Check.done("MatchServerTest");
+	}
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Checks NetSession over loopback: every kind of message arrives whole, in order and with the values it was sent
+ * with, batched into packets or spread over several, whether the sessions are polled or run on their own threads.
+ */
+public class NetSessionTest
+{
+	private static final long TIMEOUT_MILLIS = 5000;
+	private static final int STATE_OBJECTS = 5000;
+
+	/**
+	 * Writes down what it's told, the reusable NetState and InstanceDelta have to be read before returning
+	 */
+	static class Received implements NetListener
+	{
+		final ArrayList<String> events = new ArrayList<String>();
+		int stateObjects = 0;
+		boolean statesInOrder = true;
+
+		public synchronized void connected(int connection)    { events.add("connected " + connection); }
+		public synchronized void disconnected(int connection) { events.add("disconnected " + connection); }
+
+		public synchronized void shotReceived(int connection, float x, float y, float vx, float vy)
+		{
+			events.add("shot " + x + " " + y + " " + vx + " " + vy);
+		}
+
+		public synchronized void fireReceived(int connection, float angle, float power)
+		{
+			events.add("fire " + angle + " " + power);
+		}
+
+		public synchronized void stateReceived(int connection, NetState state)
+		{
+			for(int o = 0; o < state.count; o++)
+			{
+				statesInOrder &= state.ids[o] == stateObjects && state.x[o] == stateObjects*.5f && state.vy[o] == -1;
+				stateObjects++;
+			}
+		}
+
+		public synchronized void instancesReceived(int connection, InstanceDelta delta)
+		{
+			StringBuilder s = new StringBuilder("instances " + delta.geometryID + " " + delta.seq + " " + delta.size);
+			for(int e = 0; e < delta.count; e++)
+			{
+				s.append(" ").append(delta.indices[e]).append(":").append(delta.x[e]).append(",").append(delta.y[e]);
+			}
+			events.add(s.toString());
+		}
+
+		public synchronized void instancesAcked(int connection, int geometryID, int seq)
+		{
+			events.add("ack " + geometryID + " " + seq);
+		}
+
+		synchronized boolean has(String event)
+		{
+			return events.contains(event);
+		}
+
+		synchronized int count()
+		{
+			return events.size();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		Received atHost = new Received(), atClient = new Received();
+		NetSession host = new NetSession(atHost), client = new NetSession(atClient);
+		host.host(0);
+		int connection = client.connect("127.0.0.1", host.getPort());
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(!(atHost.has("connected 0") && atClient.has("connected " + connection)) && System.currentTimeMillis() < deadline)
+		{
+			host.poll(10);
+			client.poll(10);
+		}
+		Check.that(atHost.has("connected 0"), "host sees the client connect");
+		Check.that(atClient.has("connected " + connection), "client sees itself connect");
+
+		// Everything in one flush, the state alone takes several packets
+		for(int s = 0; s < 5; s++)
+		{
+			client.sendShot(NetSession.ALL, s, 2.5f, 3.5f, -4);
+		}
+		client.sendFire(NetSession.ALL, 1.25f, 30);
+		NetState state = new NetState();
+		state.tick = 7;
+		for(int o = 0; o < STATE_OBJECTS; o++)
+		{
+			state.add(o, o*.5f, 1, 0, -1);
+		}
+		client.sendState(connection, state);
+		client.sendMessage(connection, _instances());
+		client.sendAck(connection, 2, 7);
+		client.flush();
+
+		deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(!atHost.has("ack 2 7") && System.currentTimeMillis() < deadline)
+		{
+			client.poll(10);
+			host.poll(10);
+		}
+		for(int s = 0; s < 5; s++)
+		{
+			Check.that(atHost.events.get(1+s).equals("shot " + (float)s + " 2.5 3.5 -4.0"), "shot " + s + " arrives in order and whole");
+		}
+		Check.that(atHost.events.get(6).equals("fire 1.25 30.0"), "fire arrives after the shots");
+		Check.that(atHost.stateObjects == STATE_OBJECTS && atHost.statesInOrder, "state arrives in order across packets");
+		Check.that(atHost.events.get(7).equals("instances 2 9 3 0:1.5,2.25 2:-3.0,100.0"), "instances decoded, not " + atHost.events.get(7));
+		Check.that(atHost.has("ack 2 7"), "ack arrives");
+
+		// The same the other way, with each session on its own thread
+		host.start();
+		client.start();
+		int before = atClient.count();
+		host.sendShot(0, 9, 9, 9, 9);
+		host.flush();
+		deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(atClient.count() == before && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		Check.that(atClient.has("shot 9.0 9.0 9.0 9.0"), "client thread receives from the host");
+
+		client.close();
+		deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(!atHost.has("disconnected 0") && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		Check.that(atHost.has("disconnected 0"), "host sees the client leave");
+		Check.that(!host.isConnected(0), "connection closed at the host");
+		host.close();
+
+		Check.done("NetSessionTest");
+	}
+
+	/**
+	 * An INSTANCES message for geometry 2, seq 9, of 3 instances with two of them placed
+	 */
+	private static ByteBuffer _instances()
+	{
+		ByteBuffer message = ByteBuffer.allocate(NetProtocol.MAX_INSTANCES_BYTES);
+		int start = NetProtocol.beginInstances(message, 2, 9, 3);
+		NetProtocol.putInstance(message, -1, 0, 0, 0, NetProtocol.quantize(1.5f), NetProtocol.quantize(2.25f));
+		NetProtocol.putInstance(message, 0, NetProtocol.quantize(1.5f), NetProtocol.quantize(2.25f), 2, NetProtocol.quantize(-3), NetProtocol.quantize(100));
+		NetProtocol.endInstances(message, start, 2);
+		message.flip();
+		return message;
+	}
+}
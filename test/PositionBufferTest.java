@@ -0,0 +1,104 @@
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks PositionBuffer against a RecordingGL whose fake GPU runs some frames behind: every frame the positions
+ * the shader is pointed at have to be the current ones, and with fences the upload only waits on the GPU when it
+ * is further behind than there are regions to rotate through.
+ */
+public class PositionBufferTest
+{
+	private static final int FRAMES = 40;
+
+	public static void main(String[] args)
+	{
+		// Fences, GPU up to as many frames behind as there are regions: a free region every frame
+		for(int lag = 1; lag <= 3; lag++)
+		{
+			RecordingGL recorder = _recorder(true, lag);
+			PositionBuffer positions = _run(recorder, true);
+			Check.that(positions.getStalls() == 0, "no stalls with the GPU " + lag + " frames behind");
+			Check.that(recorder.getSyncWaits() == 0, "no sync waits with the GPU " + lag + " frames behind");
+			positions.delete(recorder.getGL());
+		}
+
+		// GPU further behind than there are regions: the region wanted is still being read
+		RecordingGL recorder = _recorder(true, 4);
+		PositionBuffer positions = _run(recorder, true);
+		Check.that(positions.getStalls() > 0, "stalls once the GPU is further behind than there are regions");
+		positions.delete(recorder.getGL());
+
+		// No fences, one region updated in place
+		recorder = _recorder(false, 1);
+		positions = _run(recorder, false);
+		Check.that(!positions.isStreaming() && positions.getStalls() == 0, "no streaming without fences");
+		positions.delete(recorder.getGL());
+
+		Check.done("PositionBufferTest");
+	}
+
+	private static RecordingGL _recorder(boolean fences, int lag)
+	{
+		RecordingGL recorder = RecordingGL.create(InstancingMode.INSTANCING_TEXTURE);
+		recorder.setFunctionAvailable("glFenceSync", fences);
+		recorder.gpuFramesInFlight = lag;
+		recorder.recordCalls = false;
+		return recorder;
+	}
+
+	/**
+	 * Move instances of two geometries around for FRAMES frames, checking what's in the buffer after each upload
+	 */
+	private static PositionBuffer _run(RecordingGL recorder, boolean streaming)
+	{
+		Random random = new Random(6);
+		ArrayList<InstanceStore> stores = new ArrayList<InstanceStore>();
+		stores.add(new InstanceStore(0, 64));
+		stores.add(new InstanceStore(1, 64));
+		PositionBuffer positions = new PositionBuffer(recorder.getGL(), 128);
+		Check.that(positions.isStreaming() == streaming, "streaming " + streaming);
+
+		int lastOffset = -1;
+		for(int frame = 0; frame < FRAMES; frame++)
+		{
+			for(InstanceStore instances : stores)
+			{
+				for(int n = random.nextInt(200); n > 0; n--)
+				{
+					instances.add(random.nextFloat()*100, random.nextFloat()*50);
+				}
+				for(int n = 0; n < 100 && instances.size > 0; n++)
+				{
+					instances.setPosition(random.nextInt(instances.size), random.nextFloat()*100, random.nextFloat()*50);
+				}
+			}
+
+			positions.update(recorder.getGL(), stores, true, 1);
+			FloatBuffer uploaded = recorder.getBufferData(positions.getBufferID()).duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for(int g = 0; g < stores.size(); g++)
+			{
+				InstanceStore instances = stores.get(g);
+				int offset = positions.getOffset(g);
+				for(int i = 0; i < instances.size; i++)
+				{
+					if(uploaded.get(offset + i*2) != instances.x[i] || uploaded.get(offset + i*2 + 1) != instances.y[i])
+					{
+						Check.that(false, "frame " + frame + " geometry " + g + " instance " + i + " uploaded");
+					}
+				}
+				instances.clearDirty();
+			}
+			if(streaming && frame > 0)
+			{
+				Check.that(positions.getOffset(0) != lastOffset, "frame " + frame + " written to another region");
+			}
+			lastOffset = positions.getOffset(0);
+
+			positions.fence(recorder.getGL());
+			recorder.endFrame();
+		}
+		return positions;
+	}
+}
@@ -0,0 +1,68 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Checks that a Recording keeps the terrain and tank it was played on through a save and load, and that replaying
+ * the same recording twice ends with the same checksum.
+ */
+public class ReplayRunnerTest
+{
+	private static final int CLICKS = 40;
+	private static final long EXTRA_TICKS = 500;
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		Recording recording = _recording();
+		File file = File.createTempFile("replay", ".txt");
+		try
+		{
+			recording.save(file);
+			Recording loaded = Recording.load(file);
+			Check.that(loaded.getEvents().size() == recording.getEvents().size(), "every event loaded");
+			Check.that(Arrays.equals(loaded.terrainPosition, recording.terrainPosition), "terrain position loaded");
+			Check.that(Arrays.equals(loaded.terrainVertices, recording.terrainVertices), "terrain vertices loaded exactly");
+			Check.that(Arrays.equals(loaded.tank, recording.tank), "tank loaded");
+
+			ReplayRunner.Result first = new ReplayRunner(loaded).run(EXTRA_TICKS);
+			ReplayRunner.Result second = new ReplayRunner(Recording.load(file)).run(EXTRA_TICKS);
+			Check.that(first.peakTotalInstances > 0, "the clicks made debris");
+			Check.that(first.ticks == second.ticks, "both replays as long");
+			Check.that(first.checksum == second.checksum, String.format("the same checksum, not %016x and %016x", first.checksum, second.checksum));
+			Check.that(first.baked == second.baked, "the same dirt baked");
+		}
+		finally
+		{
+			file.delete();
+		}
+		Check.done("ReplayRunnerTest");
+	}
+
+	/**
+	 * Clicks over uneven ground, a second player joining and shots from both
+	 */
+	private static Recording _recording()
+	{
+		Recording recording = new Recording();
+		recording.viewWidth = HeadlessRenderer.DEFAULT_VIEW_WIDTH;
+		recording.viewHeight = HeadlessRenderer.DEFAULT_VIEW_HEIGHT;
+
+		float[] vertices = new float[101*3];
+		for(int v = 0; v <= 100; v++)
+		{
+			vertices[v*3] = v;
+			vertices[v*3+1] = 10 + 5*(float)Math.sin(v / 7.0);
+		}
+		recording.terrain(0, 0, vertices);
+		recording.tank(40, 10 + 5*(float)Math.sin(40 / 7.0), 0);
+
+		for(int c = 0; c < CLICKS; c++)
+		{
+			recording.click(c*5, (c*37) % 100, 20 + c % 7);
+		}
+		recording.join(10);
+		recording.shot(50, 1, 1.5f, 2.25f, 0.1f, 0.2f);
+		recording.fire(60, 0, 0.7853982f, 0.8f);
+		return recording;
+	}
+}
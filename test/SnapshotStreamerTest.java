@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.util.Random;
+import poomonkeys.common.Geometry;
+
+/**
+ * Checks SnapshotStreamer and SnapshotReceiver over loopback: a client that maps the shared geometry ends up with
+ * the host's instances wherever they are registered on either side, and a delta for a geometry the client hasn't
+ * mapped is neither applied nor acknowledged.
+ */
+public class SnapshotStreamerTest
+{
+	private static final int INSTANCES = 3000;
+	private static final int TICKS = 100;
+	private static final long TICK_NANOS = 8000000;
+	private static final float QUANTUM = 1 / 128f + 1e-4f;
+
+	/**
+	 * Hands messages to the streamer or receiver at its end and counts the acks
+	 */
+	static class End implements NetListener
+	{
+		SnapshotStreamer streamer;
+		SnapshotReceiver receiver;
+		int acks = 0, unapplied = 0;
+
+		public void connected(int connection) {}
+		public void disconnected(int connection) {}
+		public void shotReceived(int connection, float x, float y, float vx, float vy) {}
+		public void fireReceived(int connection, float angle, float power) {}
+		public void stateReceived(int connection, NetState state) {}
+
+		public void instancesReceived(int connection, InstanceDelta delta)
+		{
+			if(!receiver.apply(connection, delta))
+			{
+				unapplied++;
+			}
+		}
+
+		public void instancesAcked(int connection, int sharedID, int seq)
+		{
+			acks++;
+			streamer.ack(connection, sharedID, seq);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		HeadlessRenderer host = new HeadlessRenderer(), client = new HeadlessRenderer(), unmappedClient = new HeadlessRenderer();
+		Geometry hostDirt = _geometry(), clientDirt = _geometry();
+
+		// Something else registered first on the host, so the registry ids don't line up
+		host.addGeometryInstance(0, 0, _geometry());
+		Random random = new Random(3);
+		for(int i = 0; i < INSTANCES; i++)
+		{
+			host.addGeometryInstance(random.nextFloat()*100, random.nextFloat()*50, hostDirt);
+		}
+
+		End atHost = new End(), atClient = new End(), atUnmapped = new End();
+		NetSession hostSession = new NetSession(atHost);
+		NetSession clientSession = new NetSession(atClient), unmappedSession = new NetSession(atUnmapped);
+		atHost.streamer = new SnapshotStreamer(host, 16384);
+		atHost.streamer.share(NetProtocol.SHARED_DIRT, hostDirt);
+		atClient.receiver = new SnapshotReceiver(client, clientSession);
+		atClient.receiver.map(NetProtocol.SHARED_DIRT, clientDirt);
+		atUnmapped.receiver = new SnapshotReceiver(unmappedClient, unmappedSession);
+
+		hostSession.host(0);
+		atHost.streamer.stream(hostSession);
+		clientSession.connect("127.0.0.1", hostSession.getPort());
+		unmappedSession.connect("127.0.0.1", hostSession.getPort());
+		_poll(hostSession, clientSession, unmappedSession);
+
+		InstanceStore hostInstances = host.getInstances(host.getGeometryID(hostDirt));
+		for(int t = 0; t < TICKS; t++)
+		{
+			if(t < TICKS/2)
+			{
+				synchronized(host.getInstanceLock())
+				{
+					for(int n = 0; n < 100; n++)
+					{
+						int i = random.nextInt(hostInstances.size);
+						hostInstances.setPosition(i, hostInstances.x[i] + random.nextFloat() - .5f, hostInstances.y[i] - .1f);
+					}
+				}
+			}
+			host.tick(t, TICK_NANOS);
+			atHost.streamer.tick(t, TICK_NANOS);
+			_poll(hostSession, clientSession, unmappedSession);
+		}
+
+		Check.that(client.getGeometryID(clientDirt) != -1, "the mapped geometry registered at the client");
+		InstanceStore clientInstances = client.getInstances(client.getGeometryID(clientDirt));
+		Check.that(clientInstances.size == hostInstances.size, "client has " + hostInstances.size + " instances, not " + clientInstances.size);
+		int wrong = 0;
+		for(int i = 0; i < hostInstances.size; i++)
+		{
+			if(Math.abs(clientInstances.x[i] - hostInstances.x[i]) > QUANTUM || Math.abs(clientInstances.y[i] - hostInstances.y[i]) > QUANTUM)
+			{
+				wrong++;
+			}
+		}
+		Check.that(wrong == 0, "client positions within a quantum of the host's, " + wrong + " aren't");
+		Check.that(atHost.acks > 0, "the mapped client acknowledges");
+
+		Check.that(atUnmapped.unapplied > 0, "deltas reach the client that didn't map the geometry");
+		Check.that(unmappedClient.getGeometryCount() == 0, "nothing registered at the client that didn't map the geometry");
+
+		// Nothing here and nothing at the host, for a mapped geometry that was never registered
+		HeadlessRenderer empty = new HeadlessRenderer();
+		SnapshotReceiver receiver = new SnapshotReceiver(empty, unmappedSession);
+		receiver.map(NetProtocol.SHARED_DIRT, _geometry());
+		InstanceDelta delta = new InstanceDelta();
+		delta.geometryID = NetProtocol.SHARED_DIRT;
+		delta.seq = 1;
+		delta.size = 0;
+		Check.that(receiver.apply(0, delta), "an empty delta for an unregistered geometry applied");
+		Check.that(empty.getGeometryCount() == 0, "an empty delta registers nothing");
+
+		hostSession.close();
+		clientSession.close();
+		unmappedSession.close();
+		Check.done("SnapshotStreamerTest");
+	}
+
+	private static Geometry _geometry()
+	{
+		Geometry geometry = new Geometry()
+		{
+			@Override
+			public int getNumPoints()
+			{
+				return vertices.length / 3;
+			}
+		};
+		geometry.vertices = new float[] {0, 0, 0, 1, 0, 0, 0, 1, 0};
+		return geometry;
+	}
+
+	private static void _poll(NetSession... sessions) throws IOException
+	{
+		for(int round = 0; round < 3; round++)
+		{
+			for(NetSession session : sessions)
+			{
+				session.poll(1);
+			}
+		}
+	}
+}